@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.proninyaroslav.template;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Property accessors of the template set and the getters
+ * resolved by them for each class and field name
+ */
+
+class Accessors
+{
+	/* Marks the name that isn't resolved by any accessor */
+	static final PropertyAccessor.Getter NONE = new PropertyAccessor.Getter()
+	{
+		@Override
+		public Object get(Object receiver)
+		{
+			return null;
+		}
+	};
+
+	final PropertyAccessor[] providers;
+	private final ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, PropertyAccessor.Getter>> resolved =
+		new ConcurrentHashMap<>();
+
+	Accessors(PropertyAccessor[] providers)
+	{
+		this.providers = providers;
+	}
+
+	/**
+	 * Returns the getter of the first accessor that resolves the name or NONE.
+	 * Public fields and methods declared with this name are evaluated by
+	 * reflection as before, so accessors aren't asked for them
+	 */
+	PropertyAccessor.Getter resolve(Class<?> type, String name)
+	{
+		ConcurrentHashMap<String, PropertyAccessor.Getter> names = resolved.get(type);
+		if (names == null) {
+			names = new ConcurrentHashMap<>();
+			ConcurrentHashMap<String, PropertyAccessor.Getter> prev = resolved.putIfAbsent(type, names);
+			if (prev != null)
+				names = prev;
+		}
+		PropertyAccessor.Getter getter = names.get(name);
+		if (getter != null)
+			return getter;
+
+		getter = NONE;
+		if (!isDeclared(type, name)) {
+			for (PropertyAccessor provider : providers) {
+				PropertyAccessor.Getter g = provider.resolve(type, name);
+				if (g != null) {
+					getter = g;
+					break;
+				}
+			}
+		}
+		names.put(name, getter);
+
+		return getter;
+	}
+
+	private static boolean isDeclared(Class<?> type, String name)
+	{
+		for (Method m : type.getDeclaredMethods())
+			if (m.getName().equals(name) && Modifier.isPublic(m.getModifiers()))
+				return true;
+		try {
+			return Modifier.isPublic(type.getDeclaredField(name).getModifiers());
+		} catch (NoSuchFieldException | SecurityException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Getter resolved by the field chain for the class
+	 * of the last receiver, that is checked before resolving again
+	 */
+	static class Site
+	{
+		final Accessors owner;
+		final Class<?> type;
+		final PropertyAccessor.Getter getter;
+
+		Site(Accessors owner, Class<?> type, PropertyAccessor.Getter getter)
+		{
+			this.owner = owner;
+			this.type = type;
+			this.getter = getter;
+		}
+	}
+}
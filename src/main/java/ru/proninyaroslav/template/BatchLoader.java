@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.proninyaroslav.template;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the values of many deferred values with one call,
+ * see {@link Deferred}
+ *
+ * @param <K> type of key
+ * @param <V> type of value
+ */
+
+public interface BatchLoader<K, V>
+{
+	/**
+	 * Loads the values for the keys
+	 *
+	 * @param keys distinct keys
+	 * @return values by key, missing keys have null values
+	 * @throws Exception in case of an error, the values are loaded one by one
+	 */
+	Map<K, V> load(List<K> keys) throws Exception;
+}
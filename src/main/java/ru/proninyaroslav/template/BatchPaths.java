@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.proninyaroslav.template;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Collects the field chains that the body of the for loop evaluates
+ * on the element: .x.y while dot is the element and $v.x.y where $v
+ * is the element variable. The executor reads them for a window of
+ * elements ahead to load the deferred values in batches
+ */
+
+class BatchPaths
+{
+	private String elemVar;
+	private HashSet<List<String>> paths = new HashSet<>();
+
+	private BatchPaths(Node.For f)
+	{
+		int n = f.pipe.vars.size();
+		if (n > 0)
+			elemVar = f.pipe.vars.get(n - 1).ident.get(0);
+	}
+
+	/**
+	 * Returns the field chains of the element in the body of the loop
+	 */
+	static ArrayList<List<String>> collect(Node.For f)
+	{
+		BatchPaths b = new BatchPaths(f);
+		b.visit(f.list, true);
+
+		return new ArrayList<>(b.paths);
+	}
+
+	private void visit(Node node, boolean elemDot)
+	{
+		if (node == null)
+			return;
+
+		if (node instanceof Node.List) {
+			for (Node n : ((Node.List)node).nodes)
+				visit(n, elemDot);
+		} else if (node instanceof Node.Action) {
+			visit(((Node.Action)node).pipe, elemDot);
+		} else if (node instanceof Node.If || node instanceof Node.Cache) {
+			Node.Branch branch = (Node.Branch)node;
+			visit(branch.pipe, elemDot);
+			visit(branch.list, elemDot);
+			visit(branch.elseList, elemDot);
+		} else if (node instanceof Node.Branch) {
+			/* with and for change dot in the body */
+			Node.Branch branch = (Node.Branch)node;
+			visit(branch.pipe, elemDot);
+			visit(branch.list, false);
+			visit(branch.elseList, elemDot);
+		} else if (node instanceof Node.Switch) {
+			Node.Switch sw = (Node.Switch)node;
+			visit(sw.pipe, elemDot);
+			for (Node.Case c : sw.cases)
+				visit(c.list, elemDot);
+			visit(sw.defaultList, elemDot);
+		} else if (node instanceof Node.Template) {
+			visit(((Node.Template)node).pipe, elemDot);
+		} else if (node instanceof Node.Pipe) {
+			for (Node.Command cmd : ((Node.Pipe)node).cmds)
+				for (Node arg : cmd.args)
+					visit(arg, elemDot);
+		} else if (node instanceof Node.Chain) {
+			visit(((Node.Chain)node).node, elemDot);
+		} else if (node instanceof Node.Field) {
+			if (elemDot)
+				paths.add(((Node.Field)node).ident);
+		} else if (node instanceof Node.Assign) {
+			List<String> ident = ((Node.Assign)node).ident;
+			if (ident.size() > 1 && ident.get(0).equals(elemVar))
+				paths.add(new ArrayList<>(ident.subList(1, ident.size())));
+		}
+	}
+}
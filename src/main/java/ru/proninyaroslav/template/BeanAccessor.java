@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.proninyaroslav.template;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Resolves the field name to the JavaBeans getter: .name calls
+ * getName() or isName() (for boolean properties) of the data
+ */
+
+public class BeanAccessor implements PropertyAccessor
+{
+	@Override
+	public Getter resolve(Class<?> type, String name)
+	{
+		if (name.isEmpty())
+			return null;
+
+		String property = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+		Method getter = find(type, "get" + property);
+		if (getter == null) {
+			getter = find(type, "is" + property);
+			if (getter != null && getter.getReturnType() != boolean.class &&
+			    getter.getReturnType() != Boolean.class)
+				getter = null;
+		}
+		if (getter == null)
+			return null;
+
+		final MethodHandle mh;
+		try {
+			mh = MethodHandles.publicLookup().unreflect(getter)
+				.asType(MethodType.genericMethodType(1));
+		} catch (IllegalAccessException e) {
+			return null;
+		}
+
+		return new Getter()
+		{
+			@Override
+			public Object get(Object receiver) throws Exception
+			{
+				try {
+					return (Object)mh.invokeExact(receiver);
+				} catch (Exception | Error e) {
+					throw e;
+				} catch (Throwable e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+	}
+
+	private static Method find(Class<?> type, String name)
+	{
+		try {
+			Method m = type.getMethod(name);
+			if (Modifier.isStatic(m.getModifiers()) || m.getReturnType() == void.class)
+				return null;
+
+			return m;
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
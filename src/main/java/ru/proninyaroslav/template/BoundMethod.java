@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+
+/**
+ * Instance methods of the object, that are called as a template function.
+ * Method handles are bound to the object and adapted
+ * to take the array of arguments once, when the function is put
+ */
+
+class BoundMethod
+{
+	private String name;
+	/* Handles taking Object[], one for each method */
+	private MethodHandle[] handles;
+	/* Number of parameters, -1 for variable arity methods */
+	private int[] arity;
+	private Method[] methods;
+
+	BoundMethod(Object service, String methodName)
+	{
+		name = methodName;
+		ArrayList<Method> found = new ArrayList<>();
+		for (Method m : service.getClass().getMethods())
+			if (m.getName().equals(methodName) && !Modifier.isStatic(m.getModifiers()) &&
+			    m.getReturnType() != void.class)
+				found.add(m);
+		if (found.isEmpty())
+			throw new IllegalArgumentException(String.format("method '%s' not found, static, non-public or void", methodName));
+
+		methods = found.toArray(new Method[found.size()]);
+		handles = new MethodHandle[methods.length];
+		arity = new int[methods.length];
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		for (int i = 0; i < methods.length; i++) {
+			Method m = methods[i];
+			MethodHandle mh;
+			try {
+				mh = lookup.unreflect(m).bindTo(service);
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException(e);
+			}
+			Class<?>[] params = m.getParameterTypes();
+			if (m.isVarArgs()) {
+				arity[i] = -1;
+				/* Binding drops the variable arity of the handle */
+				handles[i] = mh.asVarargsCollector(params[params.length - 1]);
+			} else {
+				int n = params.length;
+				arity[i] = n;
+				handles[i] = mh.asType(MethodType.genericMethodType(n))
+					.asSpreader(Object[].class, n);
+			}
+		}
+	}
+
+	/**
+	 * Calls the first method that accepts the arguments
+	 */
+	Object invoke(Object[] args) throws Throwable
+	{
+		Throwable error = null;
+		for (int i = 0; i < handles.length; i++) {
+			try {
+				if (arity[i] == args.length)
+					return (Object)handles[i].invokeExact(args);
+				else if (arity[i] < 0)
+					return handles[i].invokeWithArguments(args);
+			} catch (ClassCastException | NullPointerException e) {
+				/* Wrong types of arguments, try other methods */
+				error = e;
+			}
+		}
+		if (error != null)
+			throw error;
+
+		throw new IllegalArgumentException(String.format("wrong number of args for %s: got %d",
+			name, args.length));
+	}
+}
@@ -16,7 +16,11 @@
 
 package ru.proninyaroslav.template;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Array;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,9 +33,27 @@ public class BuiltinsFuncs
 		HashMap<String, String> builtins = new HashMap<>();
 		builtins.put("range", "range");
 		builtins.put("index", "index");
-
-		builtins.put("print", "print");
-		builtins.put("println", "println");
+		builtins.put("len", "len");
+		builtins.put("first", "first");
+		builtins.put("skip", "skip");
+		builtins.put("slice", "slice");
+
+		fm.putSink("print", new SinkFunction()
+		{
+			@Override
+			public void write(Writer out, Object... args) throws IOException
+			{
+				print(out, args);
+			}
+		}, "print", BuiltinsFuncs.class);
+		fm.putSink("println", new SinkFunction()
+		{
+			@Override
+			public void write(Writer out, Object... args) throws IOException
+			{
+				println(out, args);
+			}
+		}, "println", BuiltinsFuncs.class);
 		fm.put("printf", "format", String.class);
 
 		builtins.put("add", "add");
@@ -52,6 +74,10 @@ public class BuiltinsFuncs
 		builtins.put("not", "not");
 
 		fm.put(builtins, BuiltinsFuncs.class);
+		fm.markPure("range", "index", "len", "first", "skip", "slice", "print", "println", "printf",
+			    "add", "sub", "mul", "div", "mod",
+			    "eq", "ne", "lt", "le", "gt", "ge",
+			    "or", "and", "not");
 
 		return fm;
 	}
@@ -121,20 +147,95 @@ public class BuiltinsFuncs
 			throw new IllegalArgumentException("the array/list must not be null");
 
 		Object a = arr;
-		for (Object i : indexes) {
-			if (a.getClass().isArray())
-				a = Array.get(a, (int)i);
-			else if (List.class.isInstance(a))
-				a = ((List) a).get((int)i);
-			else if (Map.class.isInstance(a))
-				a = ((Map) a).get(i);
-			else
-				throw new IllegalArgumentException("can't index object with type " + a.getClass());
-		}
+		for (Object i : indexes)
+			a = index(a, i);
 
 		return a;
 	}
 
+	static Object index(Object a, Object i)
+	{
+		if (a instanceof List)
+			return ((List)a).get((int)i);
+		else if (a instanceof Map)
+			return ((Map)a).get(i);
+		else if (a instanceof Object[])
+			return ((Object[])a)[(int)i];
+		else if (a != null && a.getClass().isArray())
+			return Array.get(a, (int)i);
+
+		throw new IllegalArgumentException("can't index object with type " +
+			(a != null ? a.getClass() : null));
+	}
+
+	/**
+	 * Returns the length of the string, array, collection or map
+	 *
+	 * @param obj object
+	 * @return length
+	 */
+	public static int len(Object obj)
+	{
+		if (obj instanceof CharSequence)
+			return ((CharSequence)obj).length();
+		else if (obj instanceof Collection)
+			return ((Collection)obj).size();
+		else if (obj instanceof Map)
+			return ((Map)obj).size();
+		else if (obj != null && obj.getClass().isArray())
+			return Array.getLength(obj);
+
+		throw new IllegalArgumentException("len of type " +
+			(obj != null ? obj.getClass() : null));
+	}
+
+	/**
+	 * Returns the view of the first n elements of the collection, array,
+	 * iterator, stream or spliterator. The elements aren't copied,
+	 * for stops taking them from the source after the n-th element
+	 *
+	 * @param n number of elements
+	 * @param items source of elements
+	 * @return view of elements or null if the source is null
+	 */
+	public static Iterable<Object> first(int n, Object items)
+	{
+		if (n < 0)
+			throw new IllegalArgumentException("negative number of elements");
+
+		return (items != null ? new Slice(items, 0, n) : null);
+	}
+
+	/**
+	 * Returns the view of the elements of the collection, array,
+	 * iterator, stream or spliterator after the first n elements
+	 *
+	 * @param n number of skipped elements
+	 * @param items source of elements
+	 * @return view of elements or null if the source is null
+	 */
+	public static Iterable<Object> skip(int n, Object items)
+	{
+		return (items != null ? new Slice(items, n, -1) : null);
+	}
+
+	/**
+	 * Returns the view of the elements from (inclusive) to to (exclusive)
+	 * of the collection, array, iterator, stream or spliterator
+	 *
+	 * @param from index of the first element
+	 * @param to index after the last element
+	 * @param items source of elements
+	 * @return view of elements or null if the source is null
+	 */
+	public static Iterable<Object> slice(int from, int to, Object items)
+	{
+		if (to < 0)
+			throw new IllegalArgumentException("negative slice index");
+
+		return (items != null ? new Slice(items, from, to) : null);
+	}
+
 	/**
 	 * Uses the default formats for its arguments and returns the resulting string.
 	 * Spaces are added between arguments when neither is a string
@@ -144,15 +245,24 @@ public class BuiltinsFuncs
 	 */
 	public static String print(Object... args)
 	{
-		StringBuilder sb = new StringBuilder();
+		StringWriter sw = new StringWriter();
+		try {
+			print(sw, args);
+		} catch (IOException e) {
+			/* Not thrown by StringWriter */
+		}
+
+		return sw.toString();
+	}
+
+	static void print(Writer out, Object... args) throws IOException
+	{
 		int size = args.length;
 		for (int i = 0; i < size; i++) {
-			sb.append(args[i]);
+			out.write(String.valueOf(args[i]));
 			if (i != size - 1 && !String.class.isInstance(args[i]))
-				sb.append(" ");
+				out.write(' ');
 		}
-
-		return sb.toString();
 	}
 
 	/**
@@ -164,12 +274,23 @@ public class BuiltinsFuncs
 	 */
 	public static String println(Object... args)
 	{
-		StringBuilder sb = new StringBuilder();
-		for (Object arg : args)
-			sb.append(arg).append(" ");
-		sb.append("\n");
+		StringWriter sw = new StringWriter();
+		try {
+			println(sw, args);
+		} catch (IOException e) {
+			/* Not thrown by StringWriter */
+		}
 
-		return sb.toString();
+		return sw.toString();
+	}
+
+	static void println(Writer out, Object... args) throws IOException
+	{
+		for (Object arg : args) {
+			out.write(String.valueOf(arg));
+			out.write(' ');
+		}
+		out.write('\n');
 	}
 
 	/**
@@ -207,7 +328,7 @@ public class BuiltinsFuncs
 	 * @param b second value
 	 * @return comparison result
 	 */
-	public static boolean lessThan(Object a, Object b) { return compare(a, b, "<"); }
+	public static boolean lessThan(Object a, Object b) { return compare(a, b, Intrinsic.LT); }
 
 	/**
 	 * Evaluates the comparison a {@literal <}= b
@@ -216,7 +337,7 @@ public class BuiltinsFuncs
 	 * @param b second value
 	 * @return comparison result
 	 */
-	public static boolean lessThanOrEqual(Object a, Object b) { return compare(a, b, "<="); }
+	public static boolean lessThanOrEqual(Object a, Object b) { return compare(a, b, Intrinsic.LE); }
 
 	/**
 	 * Evaluates the comparison a {@literal >} b
@@ -225,7 +346,7 @@ public class BuiltinsFuncs
 	 * @param b second value
 	 * @return comparison result
 	 */
-	public static boolean greaterThan(Object a, Object b) { return compare(a, b, ">"); }
+	public static boolean greaterThan(Object a, Object b) { return compare(a, b, Intrinsic.GT); }
 
 	/**
 	 * Evaluates the comparison a {@literal >}= b
@@ -234,7 +355,7 @@ public class BuiltinsFuncs
 	 * @param b second value
 	 * @return comparison result
 	 */
-	public static boolean greaterThanOrEqual(Object a, Object b) { return compare(a, b, ">="); }
+	public static boolean greaterThanOrEqual(Object a, Object b) { return compare(a, b, Intrinsic.GE); }
 
 	/**
 	 * Returns the boolean negation of its argument
@@ -333,145 +454,223 @@ public class BuiltinsFuncs
 
 	public static boolean compare(Object a, Object b, String op)
 	{
-		String errFmt = String.format("can't apply %s to the values %s (%s) and %s (%s)",
-			op, a, a.getClass().getName(), b, b.getClass().getName());
+		Intrinsic cmp;
+		switch (op) {
+			case "<":
+				cmp = Intrinsic.LT;
+				break;
+			case ">":
+				cmp = Intrinsic.GT;
+				break;
+			case "<=":
+				cmp = Intrinsic.LE;
+				break;
+			case ">=":
+				cmp = Intrinsic.GE;
+				break;
+			default:
+				throw opError(op, a, b);
+		}
+
+		return compare(a, b, cmp);
+	}
 
+	static boolean compare(Object a, Object b, Intrinsic op)
+	{
 		double ad, bd;
 		if (a instanceof Number)
 			ad = ((Number)a).doubleValue();
 		else if (a instanceof Character)
 			ad = ((Character)a);
 		else
-			throw new IllegalArgumentException(errFmt);
+			throw opError(op.symbol, a, b);
 
 		if (b instanceof Number)
 			bd = ((Number)b).doubleValue();
 		else if (b instanceof Character)
 			bd = ((Character)b);
 		else
-			throw new IllegalArgumentException(errFmt);
+			throw opError(op.symbol, a, b);
+
+		return compare(ad, bd, op);
+	}
 
+	static boolean compare(double a, double b, Intrinsic op)
+	{
 		switch (op) {
-			case "<":
-				return ad < bd;
-			case ">":
-				return ad > bd;
-			case "<=":
-				return ad <= bd;
-			case ">=":
-				return ad >= bd;
+			case LT:
+				return a < b;
+			case GT:
+				return a > b;
+			case LE:
+				return a <= b;
+			case GE:
+				return a >= b;
 			default:
-				throw new IllegalArgumentException(errFmt);
+				throw new IllegalArgumentException("no such an operation " + op.symbol);
 		}
 	}
 
 	public static Object doArithmetic(Object a, Object b, char op)
 	{
-		String errFmt = String.format("can't apply %c to the values %s (%s) and %s (%s)",
-			op, a, a.getClass().getName(), b, b.getClass().getName());
-
-		int ai = 0, bi = 0;
-		long al = 0, bl = 0;
-		double ad = 0, bd = 0;
-
-		if (a instanceof Integer || a instanceof Character ||
-			a instanceof Short || a instanceof Byte) {
-			ai = (a instanceof Character ? ((Character)a) : ((Number)a).intValue());
-			if (b instanceof Integer || b instanceof Short || b instanceof Byte) {
-				bi = ((Number)b).intValue();
-			} else if (b instanceof Character) {
-				bi = ((Character)b);
-			} else if (b instanceof Long) {
-				al = (long)ai;
-				ai = 0;
-				bl = (long) b;
-			} else if (b instanceof Double || b instanceof Float) {
-				ad = ((Number)ai).doubleValue();
-				ai = 0;
-				bd = ((Number)b).doubleValue();
-			} else {
-				throw new IllegalArgumentException(errFmt);
-			}
-		} else if (a instanceof Long) {
-			al = (long) a;
-			if (b instanceof Integer || b instanceof Long ||
-				b instanceof Short || b instanceof Byte) {
-				bl = ((Number)b).longValue();
-			} else if (b instanceof Character) {
-				bl = ((Character)b);
-			} else if (b instanceof Double || b instanceof Float) {
-				ad = ((Number)al).doubleValue();
-				al = 0;
-				bd = ((Number)b).doubleValue();
-			} else {
-				throw new IllegalArgumentException(errFmt);
-			}
-		} else if (a instanceof Double || a instanceof Float) {
-			ad = ((Number)a).doubleValue();
-			if (b instanceof Integer || b instanceof Long ||
-				b instanceof Short || b instanceof Byte) {
-				bd = (double) ((Number)b).longValue();
-			} else if (b instanceof Character) {
-				bd = ((Character)b);
-			} else if (b instanceof Double || b instanceof Float) {
-				bd = ((Number)b).doubleValue();
-			} else {
-				throw new IllegalArgumentException(errFmt);
-			}
-		} else if (a instanceof String) {
-			String as = (String)a;
-			if (b instanceof String && op == '+')
-				return as + b;
-			else
-				throw new IllegalArgumentException(errFmt);
-		} else {
-			throw new IllegalArgumentException(errFmt);
+		Kind ka = Kind.of(a);
+		Kind kb = Kind.of(b);
+		if (ka == Kind.STRING) {
+			if (kb == Kind.STRING && op == '+')
+				return (String)a + b;
+			throw opError(String.valueOf(op), a, b);
+		}
+		if (ka == Kind.OTHER || kb == Kind.OTHER || kb == Kind.STRING)
+			throw opError(String.valueOf(op), a, b);
+
+		/* The widest type of the operands */
+		switch (ka.compareTo(kb) >= 0 ? ka : kb) {
+			case INT:
+				return intArithmetic(intValue(a), intValue(b), op);
+			case LONG:
+				return longArithmetic(longValue(a), longValue(b), op);
+			default:
+				return doubleArithmetic(doubleValue(a), doubleValue(b), op);
 		}
+	}
 
+	/**
+	 * Types of arithmetic operands, from the narrowest
+	 */
+	enum Kind
+	{
+		INT,	/* Integer, Short, Byte or Character */
+		LONG,
+		DOUBLE,	/* Double or Float */
+		STRING,
+		OTHER;
+
+		static Kind of(Object o)
+		{
+			if (o instanceof Integer || o instanceof Character ||
+			    o instanceof Short || o instanceof Byte)
+				return INT;
+			else if (o instanceof Long)
+				return LONG;
+			else if (o instanceof Double || o instanceof Float)
+				return DOUBLE;
+			else if (o instanceof String)
+				return STRING;
+
+			return OTHER;
+		}
+	}
+
+	private static int intValue(Object o)
+	{
+		return (o instanceof Character ? (Character)o : ((Number)o).intValue());
+	}
+
+	private static long longValue(Object o)
+	{
+		return (o instanceof Character ? (Character)o : ((Number)o).longValue());
+	}
+
+	private static double doubleValue(Object o)
+	{
+		if (o instanceof Character)
+			return (Character)o;
+		else if (o instanceof Long)
+			return (double)((Long)o);
+
+		return ((Number)o).doubleValue();
+	}
+
+	static Object intArithmetic(int a, int b, char op)
+	{
 		switch (op) {
 			case '+':
-				if (ai != 0 || bi != 0)
-					return ai + bi;
-				else if (al != 0 || bl != 0)
-					return al + bl;
-				else if (ad != 0 || bd != 0)
-					return ad + bd;
-				return 0;
+				return a + b;
 			case '-':
-				if (ai != 0 || bi != 0)
-					return ai - bi;
-				else if (al != 0 || bl != 0)
-					return al - bl;
-				else if (ad != 0 || bd != 0)
-					return ad - bd;
-				return 0;
+				return a - b;
 			case '*':
-				if (ai != 0 || bi != 0)
-					return ai * bi;
-				else if (al != 0 || bl != 0)
-					return al * bl;
-				else if (ad != 0 || bd != 0)
-					return ad * bd;
-				return 0;
+				return a * b;
 			case '/':
-				if (bi != 0)
-					return ai / bi;
-				else if (bl != 0)
-					return al / bl;
-				else if (bd != 0)
-					return ad / bd;
-				throw new IllegalArgumentException("can't divide the value by 0");
+				if (b == 0)
+					throw new IllegalArgumentException("can't divide the value by 0");
+				return a / b;
 			case '%':
-				if (bi != 0)
-					return ai % bi;
-				else if (bl != 0)
-					return al % bl;
-				else if (bd != 0)
-					return ad % bd;
-				throw new IllegalArgumentException("can't modulo the value by 0");
+				if (b == 0)
+					throw new IllegalArgumentException("can't modulo the value by 0");
+				return a % b;
 			default:
 				throw new IllegalArgumentException("no such an operation " + op);
 		}
 	}
-}
 
+	/*
+	 * Operations on long and double values return integer 0,
+	 * if the both operands are zero
+	 */
+
+	static Object longArithmetic(long a, long b, char op)
+	{
+		switch (op) {
+			case '+':
+				if (a == 0 && b == 0)
+					return 0;
+				return a + b;
+			case '-':
+				if (a == 0 && b == 0)
+					return 0;
+				return a - b;
+			case '*':
+				if (a == 0 && b == 0)
+					return 0;
+				return a * b;
+			case '/':
+				if (b == 0)
+					throw new IllegalArgumentException("can't divide the value by 0");
+				return a / b;
+			case '%':
+				if (b == 0)
+					throw new IllegalArgumentException("can't modulo the value by 0");
+				return a % b;
+			default:
+				throw new IllegalArgumentException("no such an operation " + op);
+		}
+	}
+
+	static Object doubleArithmetic(double a, double b, char op)
+	{
+		switch (op) {
+			case '+':
+				if (a == 0 && b == 0)
+					return 0;
+				return a + b;
+			case '-':
+				if (a == 0 && b == 0)
+					return 0;
+				return a - b;
+			case '*':
+				if (a == 0 && b == 0)
+					return 0;
+				return a * b;
+			case '/':
+				if (b == 0)
+					throw new IllegalArgumentException("can't divide the value by 0");
+				return a / b;
+			case '%':
+				if (b == 0)
+					throw new IllegalArgumentException("can't modulo the value by 0");
+				return a % b;
+			default:
+				throw new IllegalArgumentException("no such an operation " + op);
+		}
+	}
+
+	/**
+	 * Returns the exception for the operation that can't be applied
+	 * to the values. The message is built only in case of an error
+	 */
+	static IllegalArgumentException opError(String op, Object a, Object b)
+	{
+		return new IllegalArgumentException(String.format("can't apply %s to the values %s (%s) and %s (%s)",
+			op, a, a.getClass().getName(), b, b.getClass().getName()));
+	}
+}
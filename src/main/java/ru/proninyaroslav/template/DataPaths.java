@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.proninyaroslav.template;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Tree of the data paths read by the template, see {@link Template#accessedPaths()}.
+ * Each node is a field, key or method name; the elements of the value
+ * iterated by for are the child named {@link #ELEMENTS}
+ */
+
+public class DataPaths
+{
+	/* Name of the child that holds the paths of the elements */
+	public static final String ELEMENTS = "[]";
+
+	private TreeMap<String, DataPaths> children = new TreeMap<>();
+	/* Null for the root */
+	DataPaths parent;
+	String name;
+
+	DataPaths child(String name)
+	{
+		DataPaths child = children.get(name);
+		if (child == null) {
+			child = new DataPaths();
+			child.parent = this;
+			child.name = name;
+			children.put(name, child);
+		}
+
+		return child;
+	}
+
+	/**
+	 * Returns the paths read from this value by name
+	 *
+	 * @return unmodifiable map of children
+	 */
+	public Map<String, DataPaths> getChildren()
+	{
+		return Collections.unmodifiableMap(children);
+	}
+
+	/**
+	 * Returns the child with the given name or null
+	 *
+	 * @param name field, key or method name, or {@link #ELEMENTS}
+	 * @return child node
+	 */
+	public DataPaths get(String name)
+	{
+		return children.get(name);
+	}
+
+	/**
+	 * Returns the complete paths from this node, e.g. Orders[].Customer.Name
+	 *
+	 * @return sorted paths
+	 */
+	public Set<String> paths()
+	{
+		TreeSet<String> paths = new TreeSet<>();
+		collect("", paths);
+
+		return paths;
+	}
+
+	private void collect(String prefix, TreeSet<String> paths)
+	{
+		for (Map.Entry<String, DataPaths> e : children.entrySet()) {
+			String name = e.getKey();
+			String path;
+			if (name.equals(ELEMENTS))
+				path = prefix + name;
+			else
+				path = (prefix.isEmpty() ? name : prefix + "." + name);
+			if (e.getValue().children.isEmpty())
+				paths.add(path);
+			else
+				e.getValue().collect(path, paths);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return paths().toString();
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.proninyaroslav.template;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Lazy value that is loaded by the key with the batch loader.
+ * When the body of for reads deferred values from the elements
+ * (e.g. {{for .Orders}}{{.Customer.Name}}{{end}}, where Customer is
+ * a deferred value), the executor collects them for a window of
+ * elements and loads them with one call of the loader before
+ * executing the body. Otherwise the value is loaded alone
+ *
+ * @param <K> type of key
+ * @param <V> type of value
+ */
+
+public class Deferred<K, V> extends Lazy<V>
+{
+	final BatchLoader<K, V> loader;
+	final K key;
+
+	public Deferred(BatchLoader<K, V> loader, K key)
+	{
+		if (loader == null)
+			throw new NullPointerException();
+
+		this.loader = loader;
+		this.key = key;
+	}
+
+	@Override
+	protected V compute() throws Exception
+	{
+		Map<K, V> values = loader.load(Collections.singletonList(key));
+
+		return (values != null ? values.get(key) : null);
+	}
+}
@@ -18,13 +18,20 @@ package ru.proninyaroslav.template;
 
 import ru.proninyaroslav.template.exceptions.ExecException;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.stream.BaseStream;
 
 /**
  * Represents the state of an execution
@@ -33,13 +40,33 @@ import java.util.*;
 class Exec
 {
 	private static final int maxExecDepth = 1500; /* Max nesting of templates */
+	private static final int batchWindow = 64;    /* Elements read ahead to load deferred values */
 
 	private Template tmpl;
 	private Node node;                           /* current node, for errors */
 	private ArrayList<Template.Variable> vars;   /* stack of variable values */
+	private int frame;                           /* start of the variables of the executing template */
 	private int depth;                           /* the height of the stack of executing templates */
 	private int forDepth;			     /* nesting level of for loops */
+	/* Loop invariants of the set, the table is replaced by relinking */
+	private Hoister.Table hoisted;
+	/* Values of loop invariants of the executing loops, see Hoister */
+	private IdentityHashMap<Node.For, Object[]> invariants;
+	/* Values of the lazy values computed during the execution */
+	private IdentityHashMap<Lazy<?>, Object> lazyValues;
+	/* Results of field chains and pure functions, see Template.setMemoization() */
+	private HashMap<MemoKey, Object> memo;
+	private int memoLimit;
+	/* Cleared when the evaluated field chain invokes a method */
+	private boolean propertyRead;
+	/* Number of invoked methods and impure functions, see sideEffect() */
+	private int calls;
 	PrintWriter pw;
+	/* Stream written by pw, the stored fragments are written to it directly; can be null */
+	OutputStream os;
+
+	/* Marks the loop invariant that hasn't been evaluated yet */
+	static final Object notEvaluated = new Object();
 
 	enum ForControl
 	{
@@ -53,15 +80,102 @@ class Exec
 		this.tmpl = tmpl;
 		this.pw = pw;
 		this.vars = vars;
+		hoisted = tmpl.common.hoisted;
+		memoLimit = (tmpl.memoization ? tmpl.memoLimit : 0);
+	}
+
+	/**
+	 * Key of the memoized result: the field chain and the receiver
+	 * (compared by identity) or the function name and the arguments
+	 */
+	private static final class MemoKey
+	{
+		final Object head;
+		final Object receiver;
+		final Object[] args;
+		final int hash;
+
+		MemoKey(Object head, Object receiver, Object[] args)
+		{
+			this.head = head;
+			this.receiver = receiver;
+			this.args = args;
+			hash = 31 * (31 * head.hashCode() + System.identityHashCode(receiver)) +
+				Arrays.hashCode(args);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof MemoKey))
+				return false;
+			MemoKey key = (MemoKey)o;
+
+			return hash == key.hash && receiver == key.receiver &&
+				head.equals(key.head) && Arrays.equals(args, key.args);
+		}
+	}
+
+	private Object memoized(MemoKey key)
+	{
+		if (memo == null)
+			return notEvaluated;
+		Object val = memo.get(key);
+		if (val == null && !memo.containsKey(key))
+			return notEvaluated;
+
+		return val;
+	}
+
+	/**
+	 * Reports whether the value can be iterated only once,
+	 * so it can't be reused
+	 */
+	private static boolean isSingleUse(Object val)
+	{
+		return val instanceof Iterator || val instanceof BaseStream || val instanceof Spliterator ||
+			(val instanceof Slice && ((Slice)val).isSingleUse());
+	}
+
+	private void memoize(MemoKey key, Object val)
+	{
+		if (isSingleUse(val))
+			return;
+		if (memo == null)
+			memo = new HashMap<>();
+		if (memo.size() < memoLimit)
+			memo.put(key, val);
+	}
+
+	/**
+	 * Counts the call of a method or an impure function,
+	 * which may change the data read by the template,
+	 * so the memoized results are discarded
+	 */
+	private void sideEffect()
+	{
+		calls++;
+		if (memo != null)
+			memo.clear();
 	}
 
-	private Exec(Exec s)
+	/**
+	 * Reports whether the function is pure, taking into account
+	 * that the template functions override the builtins
+	 */
+	private boolean isPure(String name)
 	{
-		this.tmpl = s.tmpl;
-		this.pw = s.pw;
-		this.node = s.node;
-		this.vars = s.vars;
-		this.depth = s.depth;
+		FuncMap funcs = tmpl.common.funcs;
+		if (funcs.contains(name))
+			return funcs.isPure(name);
+
+		return FuncMap.builtins.isPure(name);
 	}
 
 	void errorf(String format, Object... args) throws ExecException
@@ -91,7 +205,7 @@ class Exec
 	 */
 	private void pop(int mark)
 	{
-		vars = new ArrayList<>(vars.subList(0, mark));
+		vars.subList(mark, vars.size()).clear();
 	}
 
 	private int stackSize()
@@ -109,13 +223,24 @@ class Exec
 		vars.get(vars.size() - n).value = value;
 	}
 
+	/**
+	 * Sets the top-nth declared loop variable or assigns the variable
+	 */
+	private void setLoopVar(Node.For f, int n, Object value) throws ExecException
+	{
+		if (f.pipe.decl)
+			setTopVar(n, value);
+		else
+			setVar(f.pipe.vars.get(f.pipe.vars.size() - n).ident.get(0), value);
+	}
+
 	/**
 	 * Overwrites the last declared variable with the given name.
 	 * Used by variable assignments
 	 */
 	private void setVar(String name, Object value) throws ExecException
 	{
-		for (int i = stackSize() - 1; i >= 0; i--) {
+		for (int i = stackSize() - 1; i >= frame; i--) {
 			if (vars.get(i).name.equals(name)) {
 				vars.get(i).value = value;
 				return;
@@ -127,15 +252,40 @@ class Exec
 
 	private Object varValue(String name) throws ExecException
 	{
-		for (int i = vars.size() - 1; i >= 0; i--){
+		for (int i = vars.size() - 1; i >= frame; i--){
 			if (vars.get(i).name.equals(name))
-				return vars.get(i).value;
+				return force(vars.get(i).value);
 		}
 		errorf("undefined variable: %s", name);
 
 		return null;
 	}
 
+	/**
+	 * Returns the value of the lazy value, computing it on first use.
+	 * Other values are returned as is
+	 */
+	Object force(Object val) throws ExecException
+	{
+		while (val instanceof Lazy) {
+			Lazy<?> lazy = (Lazy<?>)val;
+			if (lazyValues == null)
+				lazyValues = new IdentityHashMap<>();
+			if (lazyValues.containsKey(lazy)) {
+				val = lazyValues.get(lazy);
+				continue;
+			}
+			try {
+				val = lazy.compute();
+			} catch (Exception e) {
+				errorf("error computing lazy value: %s", e);
+			}
+			lazyValues.put(lazy, val);
+		}
+
+		return val;
+	}
+
 	/**
 	 * Marks the state to be on node, for error reporting
 	 */
@@ -171,13 +321,8 @@ class Exec
 	private Object constant(Node.Number num)
 	{
 		at(num);
-		if (num.isFloat && !Utils.isHexConstant(num.text) &&
-		    Utils.containsAny(num.text, ".eE"))
-			return num.floatVal;
-		else if (num.isInt)
-			return num.intVal;
 
-		return null;
+		return num.value();
 	}
 
 	ForControl walk(Object dot, Node node) throws ExecException {
@@ -185,9 +330,12 @@ class Exec
 		if (node instanceof Node.Action) {
 			/* If the action declares variables, don't print the result */
 			Node.Action nodeAction = (Node.Action) node;
-			Object val = evalPipeline(dot, nodeAction.pipe);
-			if (nodeAction.pipe.vars.size() == 0)
-				printValue(val);
+			if (nodeAction.pipe.vars.size() == 0) {
+				if (!printDirect(dot, nodeAction.pipe))
+					printValue(evalPipeline(dot, nodeAction.pipe));
+			} else {
+				evalPipeline(dot, nodeAction.pipe);
+			}
 		} else if (node instanceof Node.If) {
 			Node.If nodeIf = (Node.If) node;
 			return walkIfOrWith(Node.Type.IF, dot, nodeIf.pipe,
@@ -201,13 +349,19 @@ class Exec
 		} else if (node instanceof Node.For) {
 			return walkFor(dot, (Node.For) node);
 		} else if (node instanceof Node.Template) {
-			walkTemplate(dot, (Node.Template) node);
+			walkTemplate(dot, (Node.Template) node, null);
+		} else if (node instanceof Node.Inline) {
+			walkTemplate(dot, ((Node.Inline) node).call, (Node.Inline) node);
 		} else if (node instanceof Node.Text) {
 			pw.write(((Node.Text) node).text);
 		} else if (node instanceof Node.With) {
 			Node.With nodeWith = (Node.With) node;
 			return walkIfOrWith(Node.Type.WITH, dot, nodeWith.pipe,
 				nodeWith.list, nodeWith.elseList);
+		} else if (node instanceof Node.Switch) {
+			return walkSwitch(dot, (Node.Switch) node);
+		} else if (node instanceof Node.Cache) {
+			return walkCache(dot, (Node.Cache) node);
 		} else if (node instanceof Node.Break) {
 			if (forDepth == 0)
 				errorf("invalid break outside of for");
@@ -255,32 +409,135 @@ class Exec
 		return ForControl.NONE;
 	}
 
+	/**
+	 * Writes the stored output of the fragment or executes it
+	 * and stores the output. The fragment is executed every time
+	 * if the template has no cache or the key is null
+	 */
+	private ForControl walkCache(Object dot, Node.Cache c) throws ExecException
+	{
+		at(c);
+		int stackSize = stackSize();
+		try {
+			Object key = evalPipeline(dot, c.pipe);
+			FragmentCache cache = tmpl.common.fragmentCache;
+			if (cache == null || key == null)
+				return walk(dot, c.list);
+
+			FragmentCache.Key k = new FragmentCache.Key(tmpl.common.id, c.id, key.toString());
+			int version = tmpl.common.generation;
+			byte[] stored = cache.get(k, version);
+			if (stored != null) {
+				writeEncoded(stored);
+				return ForControl.NONE;
+			}
+
+			PrintWriter outer = pw;
+			OutputStream outerStream = os;
+			StringWriter sw = new StringWriter();
+			pw = new PrintWriter(sw);
+			os = null;
+			ForControl ctl;
+			try {
+				ctl = walk(dot, c.list);
+				pw.flush();
+			} finally {
+				pw = outer;
+				os = outerStream;
+			}
+			String output = sw.toString();
+			pw.write(output);
+			/* The output is incomplete if the loop was interrupted */
+			if (ctl == ForControl.NONE)
+				cache.put(k, version, output.getBytes(Charset.defaultCharset()));
+
+			return ctl;
+		} finally {
+			pop(stackSize);
+		}
+	}
+
+	/**
+	 * Writes the output encoded like by pw: to the stream
+	 * without decoding if it's known
+	 */
+	private void writeEncoded(byte[] output) throws ExecException
+	{
+		if (os == null) {
+			pw.write(new String(output, Charset.defaultCharset()));
+			return;
+		}
+		pw.flush();
+		try {
+			os.write(output);
+		} catch (IOException e) {
+			errorf("error writing output: %s", e.getMessage());
+		}
+	}
+
+	private ForControl walkSwitch(Object dot, Node.Switch sw) throws ExecException
+	{
+		int stackSize = stackSize();
+		try {
+			Node.List list = sw.select(evalPipeline(dot, sw.pipe));
+			if (list != null)
+				return walk(dot, list);
+		} finally {
+			pop(stackSize);
+		}
+
+		return ForControl.NONE;
+	}
+
 	private ForControl walkFor(Object dot, Node.For f) throws ExecException
 	{
 		at(f);
 		int stackSize = stackSize();
+		Object[] outerInvariants = null;
+		Hoister.Loop loop = hoisted.loops.get(f);
+		boolean hasInvariants = (loop != null && loop.invariants > 0);
+		if (hasInvariants) {
+			if (invariants == null)
+				invariants = new IdentityHashMap<>();
+			Object[] values = new Object[loop.invariants];
+			Arrays.fill(values, notEvaluated);
+			outerInvariants = invariants.put(f, values);
+		}
 		try {
 			Object val = evalPipeline(dot, f.pipe);
 			int startStackSize = stackSize();
 			++forDepth;
 			if (val != null){
-				if (Iterable.class.isInstance(val)){
-					Iterator i = ((Iterable)val).iterator();
+				if (val instanceof Slice){
+					if (forStream(f, val, startStackSize)){
+						--forDepth;
+						return ForControl.NONE;
+					}
+				} else if (Iterable.class.isInstance(val)){
+					if (forIterator(f, ((Iterable)val).iterator(), startStackSize)){
+						--forDepth;
+						return ForControl.NONE;
+					}
+				} else if (val instanceof Map){
+					Iterator<? extends Map.Entry<?, ?>> i = ((Map<?, ?>)val).entrySet().iterator();
 					if (i.hasNext()){
-						while (i.hasNext())
-							if (forIteration(f, i.next(),
+						while (i.hasNext()) {
+							Map.Entry<?, ?> e = i.next();
+							if (forIteration(f, e.getKey(), 0, e.getValue(),
 									 startStackSize) == ForControl.BREAK)
 								break;
+						}
+						--forDepth;
+						return ForControl.NONE;
+					}
+				} else if (val instanceof Iterator || val instanceof BaseStream ||
+					   val instanceof Spliterator){
+					if (forStream(f, val, startStackSize)){
 						--forDepth;
 						return ForControl.NONE;
 					}
 				} else if (val.getClass().isArray()){
-					int length = Array.getLength(val);
-					if (length > 0){
-						for (int i = 0; i < length; i++)
-							if (forIteration(f, Array.get(val, i),
-									 startStackSize) == ForControl.BREAK)
-								break;
+					if (forIterator(f, new Slice(val, 0, -1).iterator(), startStackSize)){
 						--forDepth;
 						return ForControl.NONE;
 					}
@@ -293,52 +550,316 @@ class Exec
 				return walk(dot, f.elseList);
 		} finally {
 			pop(stackSize);
+			if (hasInvariants) {
+				if (outerInvariants != null)
+					invariants.put(f, outerInvariants);
+				else
+					invariants.remove(f);
+			}
 		}
 
 		return ForControl.NONE;
 	}
 
-	private ForControl forIteration(Node.For f, Object elem, int startStackSize) throws ExecException
+	/**
+	 * Iterates over the elements of the iterator, stream, spliterator
+	 * or slice one by one. The source is closed after the loop, if it's closeable.
+	 * Returns false if there are no elements
+	 */
+	private boolean forStream(Node.For f, Object source, int startStackSize) throws ExecException
+	{
+		boolean completed = false;
+		try {
+			Iterator<?> i;
+			if (source instanceof Slice)
+				i = ((Slice)source).iterator();
+			else if (source instanceof BaseStream)
+				i = ((BaseStream<?, ?>)source).iterator();
+			else if (source instanceof Spliterator)
+				i = Spliterators.iterator((Spliterator<?>)source);
+			else
+				i = (Iterator<?>)source;
+			boolean iterated = forIterator(f, i, startStackSize);
+			completed = true;
+			if (!iterated)
+				return false;
+		} finally {
+			if (source instanceof AutoCloseable) {
+				try {
+					((AutoCloseable)source).close();
+				} catch (Exception e) {
+					/* Doesn't hide the error of the loop */
+					if (completed)
+						errorf("error closing %s: %s", source, e);
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Iterates over the elements with the index counter.
+	 * Returns false if there are no elements
+	 */
+	private boolean forIterator(Node.For f, Iterator<?> i, int startStackSize) throws ExecException
 	{
-		if (f.pipe.vars.size() == 1)
-			setTopVar(1, elem);
+		if (!i.hasNext())
+			return false;
+
+		Hoister.Loop loop = hoisted.loops.get(f);
+		List<List<String>> paths = (loop != null ? loop.batchPaths : null);
+		Object first = force(i.next());
+		/* Reads elements ahead only if the first one has deferred values */
+		if (paths == null || paths.isEmpty() || !hasDeferred(paths, first)) {
+			if (forIteration(f, notEvaluated, 0, first, startStackSize) == ForControl.BREAK)
+				return true;
+			for (int index = 1; i.hasNext(); index++)
+				if (forIteration(f, notEvaluated, index, i.next(), startStackSize) == ForControl.BREAK)
+					break;
+
+			return true;
+		}
+
+		ArrayList<Object> window = new ArrayList<>(batchWindow);
+		window.add(first);
+		int index = 0;
+		for (;;) {
+			while (window.size() < batchWindow && i.hasNext())
+				window.add(force(i.next()));
+			loadDeferred(paths, window);
+			for (Object elem : window)
+				if (forIteration(f, notEvaluated, index++, elem, startStackSize) == ForControl.BREAK)
+					return true;
+			if (!i.hasNext())
+				return true;
+			window.clear();
+		}
+	}
+
+	private boolean hasDeferred(List<List<String>> paths, Object elem)
+	{
+		IdentityHashMap<BatchLoader<?, ?>, ArrayList<Deferred<?, ?>>> pending = new IdentityHashMap<>();
+		collectDeferred(paths, Collections.singletonList(elem), pending);
+
+		return !pending.isEmpty();
+	}
+
+	/**
+	 * Loads the deferred values of the elements, reachable by the
+	 * field chains, with one call of each batch loader. The chains are
+	 * read by rounds, since the loaded values can have deferred values.
+	 * The values are stored as computed values of the execution.
+	 * Only fields, keys and property accessors are read; errors are ignored,
+	 * so that they are reported when the body is executed
+	 */
+	@SuppressWarnings("unchecked")
+	private void loadDeferred(List<List<String>> paths, List<Object> elems)
+	{
+		IdentityHashMap<BatchLoader<?, ?>, ArrayList<Deferred<?, ?>>> pending = new IdentityHashMap<>();
+		while (collectDeferred(paths, elems, pending)) {
+			for (Map.Entry<BatchLoader<?, ?>, ArrayList<Deferred<?, ?>>> e : pending.entrySet()) {
+				BatchLoader<Object, Object> loader = (BatchLoader<Object, Object>)e.getKey();
+				LinkedHashSet<Object> keys = new LinkedHashSet<>();
+				for (Deferred<?, ?> d : e.getValue())
+					keys.add(d.key);
+				Map<Object, Object> values;
+				try {
+					values = loader.load(new ArrayList<>(keys));
+				} catch (Exception ex) {
+					return;
+				}
+				if (values == null)
+					return;
+				if (lazyValues == null)
+					lazyValues = new IdentityHashMap<>();
+				for (Deferred<?, ?> d : e.getValue())
+					lazyValues.put(d, values.get(d.key));
+			}
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Collects the deferred values that haven't been computed yet, grouped by loader.
+	 * Returns false if there are no such values
+	 */
+	private boolean collectDeferred(List<List<String>> paths, List<Object> elems,
+					IdentityHashMap<BatchLoader<?, ?>, ArrayList<Deferred<?, ?>>> pending)
+	{
+		for (Object elem : elems) {
+			for (List<String> path : paths) {
+				Object val = elem;
+				for (String name : path) {
+					val = readProperty(val, name);
+					if (val instanceof Lazy) {
+						if (lazyValues != null && lazyValues.containsKey(val)) {
+							val = lazyValues.get(val);
+						} else {
+							if (val instanceof Deferred) {
+								Deferred<?, ?> d = (Deferred<?, ?>)val;
+								ArrayList<Deferred<?, ?>> list = pending.get(d.loader);
+								if (list == null) {
+									list = new ArrayList<>();
+									pending.put(d.loader, list);
+								}
+								list.add(d);
+							}
+							/* Other lazy values are computed when used */
+							break;
+						}
+					}
+					if (val == notEvaluated || val == null)
+						break;
+				}
+			}
+		}
+
+		return !pending.isEmpty();
+	}
+
+	/**
+	 * Returns the value of the field, the key or the property resolved
+	 * by the accessor, without invoking methods, or notEvaluated
+	 */
+	private Object readProperty(Object receiver, String name)
+	{
+		if (receiver == null || receiver == notEvaluated)
+			return notEvaluated;
+		try {
+			if (receiver instanceof Map)
+				return ((Map<?, ?>)receiver).get(name);
+			else if (receiver instanceof KeyValue)
+				return ((KeyValue)receiver).get(name);
+
+			Accessors accessors = tmpl.common.accessors;
+			if (accessors.providers.length > 0) {
+				PropertyAccessor.Getter getter = accessors.resolve(receiver.getClass(), name);
+				if (getter != Accessors.NONE)
+					return getter.get(receiver);
+			}
+			Field field = receiver.getClass().getDeclaredField(name);
+			if (Modifier.isPublic(field.getModifiers()))
+				return field.get(receiver);
+		} catch (Exception e) {
+			/* Reported when the body is executed */
+		}
+
+		return notEvaluated;
+	}
+
+	/**
+	 * Returns the computed value of the property, see readProperty().
+	 * Used by {@link IncrementalRenderer} to read the inputs of regions
+	 */
+	Object readInput(Object receiver, String name) throws ExecException
+	{
+		Object val = readProperty(receiver, name);
+
+		return (val == notEvaluated ? val : force(val));
+	}
+
+	/**
+	 * Executes the body for the element. The first of two loop variables
+	 * is set to the key of the map entry (which may be null) or, if the
+	 * source has no keys and key is notEvaluated, to the index
+	 */
+	private ForControl forIteration(Node.For f, Object key, int index,
+					Object elem, int startStackSize) throws ExecException
+	{
+		elem = force(elem);
+		ArrayList<Node.Assign> loopVars = f.pipe.vars;
+		if (loopVars.size() == 2) {
+			setLoopVar(f, 2, (key != notEvaluated ? key : index));
+			setLoopVar(f, 1, elem);
+		} else if (loopVars.size() == 1) {
+			setLoopVar(f, 1, elem);
+		}
 		ForControl c = walk(elem, f.list);
 		pop(startStackSize);
 
 		return c;
 	}
 
-	private void walkTemplate(Object dot, Node.Template template) throws ExecException
+	/**
+	 * Walks the template invocation or its inlined body, if the inlined
+	 * template hasn't been redefined. The template body is executed
+	 * in the new frame of the variable stack
+	 */
+	private void walkTemplate(Object dot, Node.Template template,
+				  Node.Inline inline) throws ExecException
 	{
 		at(template);
-		Template tmpl = this.tmpl.common.tmpl.get(template.name);
-		if (tmpl == null){
-			errorf("template %s not defined", template.name);
-			return;
+		Template.Common common = tmpl.common;
+		Template target;
+		Node.List body;
+		if (inline != null && inline.target.common == common &&
+		    inline.version == common.version) {
+			target = inline.target;
+			body = inline.list;
+		} else {
+			Node.Template.Link link = template.link;
+			if (link == null || link.common != common || link.version != common.version) {
+				link = new Node.Template.Link(common, common.version,
+							      common.tmpl.get(template.name));
+				template.link = link;
+			}
+			target = link.target;
+			if (target == null){
+				errorf("template %s not defined", template.name);
+				return;
+			}
+			body = target.tree.root;
 		}
 		if (depth == maxExecDepth)
 			errorf("exceeded maximum template depth (%d)", maxExecDepth);
 
 		/* Variables declared by the pipeline persist */
 		dot = evalPipeline(dot, template.pipe);
-		Exec newState = new Exec(this);
-		newState.depth++;
-		newState.tmpl = tmpl;
+		Template callerTmpl = tmpl;
+		int callerFrame = frame;
+		int callerForDepth = forDepth;
+		tmpl = target;
+		frame = stackSize();
+		forDepth = 0;
+		depth++;
 		/* Template invocations inherit no variables */
-		newState.vars = new ArrayList<>();
-		newState.vars.add(new Template.Variable("$", dot));
-		newState.walk(dot, tmpl.tree.root);
+		push("$", dot);
+		try {
+			walk(dot, body);
+		} finally {
+			pop(frame);
+			depth--;
+			forDepth = callerForDepth;
+			frame = callerFrame;
+			tmpl = callerTmpl;
+		}
 	}
 
-	private Object evalPipeline(Object dot, Node.Pipe pipe) throws ExecException
+	Object evalPipeline(Object dot, Node.Pipe pipe) throws ExecException
 	{
 		if (pipe == null)
 			return null;
 
 		at(pipe);
 		Object val = null;
-		for (Node.Command cmd : pipe.cmds)
-			val = evalCommand(dot, cmd, val);
+		Hoister.Slot slot = null;
+		Object[] values = null;
+		if (invariants != null && !invariants.isEmpty()) {
+			slot = hoisted.slots.get(pipe);
+			if (slot != null)
+				values = invariants.get(slot.loop);
+		}
+		if (values != null && values[slot.index] != notEvaluated) {
+			val = values[slot.index];
+		} else {
+			int mark = calls;
+			for (Node.Command cmd : pipe.cmds)
+				val = evalCommand(dot, cmd, val);
+			/* Methods may return a new value on each call, so it isn't reused */
+			if (values != null && calls == mark && !isSingleUse(val))
+				values[slot.index] = val;
+		}
 		for (Node.Assign var : pipe.vars) {
 			if (pipe.decl)
 				push(var.ident.get(0), val);
@@ -383,6 +904,8 @@ class Exec
 			return constant((Node.Number)firstWord);
 		else if (firstWord instanceof Node.StringConst)
 			return ((Node.StringConst)firstWord).text;
+		else if (firstWord instanceof Node.Value)
+			return ((Node.Value)firstWord).value;
 
 		errorf("can't evaluate command %s", firstWord);
 
@@ -440,6 +963,8 @@ class Exec
 			return constant((Node.Number)node);
 		} else if (node instanceof Node.StringConst){
 			return ((Node.StringConst)node).text;
+		} else if (node instanceof Node.Value){
+			return ((Node.Value)node).value;
 		}
 		errorf("can't handle %s for arg", node);
 
@@ -456,12 +981,26 @@ class Exec
 				      Object finalVal) throws ExecException
 	{
 		int n = ident.size();
+		receiver = force(receiver);
+		/* Chains of fields and keys without arguments are memoized */
+		MemoKey key = null;
+		if (memoLimit > 0 && finalVal == null && (args == null || args.size() <= 1)) {
+			key = new MemoKey(ident, receiver, null);
+			Object val = memoized(key);
+			if (val != notEvaluated)
+				return val;
+			propertyRead = true;
+		}
 		for (int i = 0; i < n - 1; i++)
-			receiver = evalField(dot, ident.get(i), node,
-					     null, null, receiver);
+			receiver = force(evalField(dot, ident.get(i), i, node,
+						   null, null, receiver));
 		/* If it's a method, it gets the arguments */
-		return evalField(dot, ident.get(n - 1), node,
-				 args, finalVal, receiver);
+		Object val = force(evalField(dot, ident.get(n - 1), n - 1, node,
+					     args, finalVal, receiver));
+		if (key != null && propertyRead)
+			memoize(key, val);
+
+		return val;
 	}
 
 	/**
@@ -470,7 +1009,7 @@ class Exec
 	 * preceding value of the pipeline.
 	 * Field and method with one name are not allowed
 	 */
-	private Object evalField(Object dot, String fieldName, Node node,
+	private Object evalField(Object dot, String fieldName, int index, Node node,
 				 List<Node> args, Object finalVal, Object receiver) throws ExecException
 	{
 		if (receiver == null){
@@ -482,9 +1021,42 @@ class Exec
 		if (receiver.getClass().isArray() && fieldName.equals("length"))
 			return Array.getLength(receiver);
 
+		boolean hasArgs = args != null && (args.size() > 1 || finalVal != null);
+		/* Keys of maps and key-value objects are looked up directly */
+		boolean keyed = (receiver instanceof Map || receiver instanceof KeyValue);
+		if (keyed) {
+			Object val;
+			boolean found;
+			if (receiver instanceof Map) {
+				Map<?, ?> map = (Map<?, ?>)receiver;
+				val = map.get(fieldName);
+				found = (val != null || map.containsKey(fieldName));
+			} else {
+				val = ((KeyValue)receiver).get(fieldName);
+				found = (val != null);
+			}
+			if (found) {
+				if (hasArgs)
+					errorf("%s is a key, but has arguments", fieldName);
+				return val;
+			}
+		}
+
+		Accessors accessors = tmpl.common.accessors;
+		if (!hasArgs && accessors.providers.length > 0) {
+			PropertyAccessor.Getter getter = resolveAccessor(accessors, fieldName, index,
+									 node, receiver.getClass());
+			if (getter != Accessors.NONE) {
+				try {
+					return getter.get(receiver);
+				} catch (Exception e) {
+					errorf("error calling %s: %s", fieldName, e);
+				}
+			}
+		}
+
 		Method[] methods = receiver.getClass().getDeclaredMethods();
 		Field field = null;
-		boolean hasArgs = args != null && (args.size() > 1 || finalVal != null);
 
 		/* Find methods */
 		ArrayList<Method> foundMethods = new ArrayList<>();
@@ -496,6 +1068,9 @@ class Exec
 		try {
 			 field = receiver.getClass().getDeclaredField(fieldName);
 		} catch (NoSuchFieldException | SecurityException e) {
+			/* Missing key */
+			if (foundMethods.isEmpty() && keyed)
+				return null;
 			if (foundMethods.isEmpty())
 				errorf("can't evaluate field %s in class %s",
 					fieldName, receiver.getClass().getName());
@@ -508,8 +1083,13 @@ class Exec
 		}
 
 		if (!foundMethods.isEmpty()) {
-			return evalCall(dot, foundMethods, node, fieldName,
-					args, finalVal, receiver);
+			Object result = evalCall(dot, foundMethods, node, fieldName,
+						 args, finalVal, receiver);
+			/* Methods may have side effects, the result isn't memoized */
+			propertyRead = false;
+			sideEffect();
+
+			return result;
 
 		} else if (field != null) {
 			if (hasArgs){
@@ -531,17 +1111,434 @@ class Exec
 		return null;
 	}
 
+	/**
+	 * Returns the getter for the field of the chain, cached
+	 * in the node for the last seen class of the receiver
+	 */
+	private PropertyAccessor.Getter resolveAccessor(Accessors accessors, String fieldName,
+							int index, Node node, Class<?> type)
+	{
+		Accessors.Site[] sites = node.sites;
+		if (sites == null || sites.length <= index) {
+			Accessors.Site[] newSites = new Accessors.Site[index + 1];
+			if (sites != null)
+				System.arraycopy(sites, 0, newSites, 0, sites.length);
+			sites = newSites;
+			node.sites = sites;
+		}
+		Accessors.Site site = sites[index];
+		if (site == null || site.owner != accessors || site.type != type) {
+			site = new Accessors.Site(accessors, type, accessors.resolve(type, fieldName));
+			sites[index] = site;
+		}
+
+		return site.getter;
+	}
+
 	private Object evalFunction(Object dot, Node.Identifier node,
 				    Node cmd, List<Node> args, Object finalVal) throws ExecException
+	{
+		return force(callFunction(dot, node, cmd, args, finalVal));
+	}
+
+	private Object callFunction(Object dot, Node.Identifier node,
+				    Node cmd, List<Node> args, Object finalVal) throws ExecException
 	{
 		String name = node.ident;
-		List<Method> func = tmpl.findFunc(name);
+		if (node.intrinsic != null && !tmpl.common.funcs.contains(name)) {
+			Object result = evalIntrinsic(dot, node, cmd, args, finalVal);
+			if (result != notEvaluated)
+				return result;
+		}
+		Object func = tmpl.findFunc(name);
 		if (func == null){
 			errorf("%s is not a defined function", name);
 			return null;
+		} else if (func instanceof SinkFunction) {
+			/* The result isn't printed, so it's needed as a value */
+			StringWriter sw = new StringWriter();
+			callSink(dot, (SinkFunction)func, node, cmd, args, finalVal, sw);
+			return sw.toString();
+		}
+
+		/* Results of pure template functions are memoized by the arguments */
+		if (memoLimit > 0 && tmpl.common.funcs.contains(name) && tmpl.common.funcs.isPure(name)) {
+			Object[] argv = evalArgs(dot, args, 1, finalVal);
+			MemoKey key = new MemoKey(name, null, argv);
+			Object val = memoized(key);
+			if (val == notEvaluated) {
+				val = callFunction(func, node, cmd, argv);
+				memoize(key, val);
+			}
+
+			return val;
+		}
+
+		Object result = callFunction(func, node, cmd, evalArgs(dot, args, 1, finalVal));
+		if (!isPure(name))
+			sideEffect();
+
+		return result;
+	}
+
+	/**
+	 * Calls the function object or the methods with the evaluated arguments
+	 */
+	private Object callFunction(Object func, Node.Identifier node, Node cmd,
+				    Object[] argv) throws ExecException
+	{
+		if (!(func instanceof List))
+			return callObject(func, node, cmd, argv);
+
+		@SuppressWarnings("unchecked")
+		List<Method> methods = (List<Method>)func;
+
+		return callMethods(methods, cmd, node.ident, Arrays.asList(argv));
+	}
+
+	private void callSink(Object dot, SinkFunction func, Node.Identifier node, Node cmd,
+			      List<Node> args, Object finalVal, Writer out) throws ExecException
+	{
+		Object[] argv = evalArgs(dot, args, 1, finalVal);
+		try {
+			func.write(out, argv);
+		} catch (Exception e) {
+			at(cmd);
+			errorf("error calling %s: %s", node.ident, e);
+		}
+		if (!isPure(node.ident))
+			sideEffect();
+	}
+
+	/**
+	 * Calls the functional object or the bound method directly
+	 */
+	@SuppressWarnings("unchecked")
+	private Object callObject(Object func, Node.Identifier node, Node cmd,
+				  Object[] argv) throws ExecException
+	{
+		int want = -1;
+		if (func instanceof Function0)
+			want = 0;
+		else if (func instanceof Function1)
+			want = 1;
+		else if (func instanceof Function2)
+			want = 2;
+		else if (func instanceof Function3)
+			want = 3;
+		else if (func instanceof Function4)
+			want = 4;
+		if (want >= 0 && want != argv.length) {
+			at(cmd);
+			errorf("wrong number of args for %s: want %d got %d",
+				node.ident, want, argv.length);
+		}
+
+		Object result = null;
+		try {
+			switch (want) {
+				case 0:
+					result = ((Function0<Object>)func).apply();
+					break;
+				case 1:
+					result = ((Function1<Object, Object>)func).apply(argv[0]);
+					break;
+				case 2:
+					result = ((Function2<Object, Object, Object>)func).apply(argv[0], argv[1]);
+					break;
+				case 3:
+					result = ((Function3<Object, Object, Object, Object>)func)
+						.apply(argv[0], argv[1], argv[2]);
+					break;
+				case 4:
+					result = ((Function4<Object, Object, Object, Object, Object>)func)
+						.apply(argv[0], argv[1], argv[2], argv[3]);
+					break;
+				default:
+					if (func instanceof FunctionN)
+						result = ((FunctionN<Object>)func).apply(argv);
+					else
+						result = ((BoundMethod)func).invoke(argv);
+			}
+		} catch (Throwable e) {
+			at(cmd);
+			errorf("error calling %s: %s", node.ident, e);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Writes the result of the pipeline, which last command is a sink
+	 * function or printf with the parsed format, directly to the output.
+	 * Returns false if the pipeline must be evaluated as usual
+	 */
+	private boolean printDirect(Object dot, Node.Pipe pipe) throws ExecException
+	{
+		Node.Command last = pipe.cmds.get(pipe.cmds.size() - 1);
+		if (!(last.args.get(0) instanceof Node.Identifier) || hoisted.slots.containsKey(pipe))
+			return false;
+		Node.Identifier ident = (Node.Identifier)last.args.get(0);
+		boolean format = (last.format != null && !tmpl.common.funcs.contains(ident.ident));
+		Object func = (format ? null : tmpl.findFunc(ident.ident));
+		if (!format && !(func instanceof SinkFunction))
+			return false;
+
+		at(pipe);
+		Object val = null;
+		for (int i = 0; i < pipe.cmds.size() - 1; i++)
+			val = evalCommand(dot, pipe.cmds.get(i), val);
+		if (format) {
+			Object[] argv = evalArgs(dot, last.args, 2, val);
+			try {
+				last.format.write(pw, argv);
+			} catch (IOException | RuntimeException e) {
+				callError(ident, last, formatArgs(last, argv), e);
+			}
+		} else {
+			callSink(dot, (SinkFunction)func, ident, last, last.args, val, pw);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the arguments of printf with the parsed format
+	 */
+	private static Object[] formatArgs(Node.Command cmd, Object[] argv)
+	{
+		Object[] all = new Object[argv.length + 1];
+		all[0] = ((Node.StringConst)cmd.args.get(1)).text;
+		System.arraycopy(argv, 0, all, 1, argv.length);
+
+		return all;
+	}
+
+	/**
+	 * Evaluates the arguments of the command starting from the given one
+	 * and appends the final value of the pipeline
+	 */
+	private Object[] evalArgs(Object dot, List<Node> args, int from, Object finalVal) throws ExecException
+	{
+		int n = (args != null ? args.size() - from : 0);
+		Object[] argv = new Object[n + (finalVal != null ? 1 : 0)];
+		for (int i = 0; i < n; i++)
+			argv[i] = evalArg(dot, args.get(i + from));
+		if (finalVal != null)
+			argv[n] = finalVal;
+
+		return argv;
+	}
+
+	/**
+	 * Reports the exception thrown by the builtin, with
+	 * the same message as if it was called by evalCall().
+	 * The exception is reported for the overloads accepting the arguments,
+	 * the others report the mismatch of the arguments
+	 */
+	private void callError(Node.Identifier node, Node cmd, Object[] argv, Exception e) throws ExecException
+	{
+		at(cmd);
+		StringBuilder sb = new StringBuilder("error calling " + node.ident + ":");
+		for (Method m : FuncMap.builtins.get(node.ident)) {
+			String mismatch = mismatch(m, argv);
+			if (mismatch == null)
+				mismatch = (e instanceof NullPointerException ?
+					    "assign null to primitive type" : e.toString());
+			sb.append(String.format("\n(%s): %s", m, mismatch));
+		}
+		errorf("%s", sb);
+	}
+
+	/**
+	 * Returns why the method can't be called with the arguments
+	 * or null if it can
+	 */
+	private static String mismatch(Method m, Object[] argv)
+	{
+		Class<?>[] params = m.getParameterTypes();
+		int fixed = (m.isVarArgs() ? params.length - 1 : params.length);
+		if (argv.length < fixed || (!m.isVarArgs() && argv.length > fixed))
+			return String.format("wrong number of args: want %s%d got %d",
+					     (m.isVarArgs() ? "at least " : ""), fixed, argv.length);
+		/* The array can be passed instead of the variable arguments */
+		if (m.isVarArgs() && argv.length == params.length &&
+		    params[fixed].isInstance(argv[fixed]))
+			fixed = params.length;
+		for (int i = 0; i < argv.length; i++) {
+			Class<?> type = (i < fixed ? params[i] : params[params.length - 1].getComponentType());
+			if (!accepts(type, argv[i]))
+				return String.format("wrong type of arg %d: want %s got %s", i + 1,
+						     type.getName(), argv[i].getClass().getName());
 		}
 
-		return evalCall(dot, func, cmd, name, args, finalVal, null);
+		return null;
+	}
+
+	private static boolean accepts(Class<?> type, Object arg)
+	{
+		if (arg == null)
+			return true;
+		if (!type.isPrimitive())
+			return type.isInstance(arg);
+		if (type == boolean.class)
+			return arg instanceof Boolean;
+		if (type == char.class)
+			return arg instanceof Character;
+
+		return arg instanceof Number;
+	}
+
+	/**
+	 * Evaluates the builtin without reflection. Arithmetic and comparison
+	 * specialize the call site on the types of operands, and and or
+	 * evaluate arguments from left to right up to the first decisive value,
+	 * printf uses the format parsed at parse time.
+	 * Returns notEvaluated if the number of operands doesn't
+	 * match, in this case the builtin is called as usual
+	 */
+	private Object evalIntrinsic(Object dot, Node.Identifier node, Node cmd,
+				     List<Node> args, Object finalVal) throws ExecException
+	{
+		switch (node.intrinsic) {
+			case NOT:
+			case INDEX:
+			case LEN:
+			case RANGE:
+				return evalCollectionIntrinsic(dot, node, cmd, args, finalVal);
+		}
+		if (node.intrinsic == Intrinsic.PRINTF) {
+			if (!(cmd instanceof Node.Command) || ((Node.Command)cmd).format == null)
+				return notEvaluated;
+			Node.Command command = (Node.Command)cmd;
+			Object[] argv = evalArgs(dot, command.args, 2, finalVal);
+			try {
+				return command.format.format(argv);
+			} catch (RuntimeException e) {
+				callError(node, cmd, formatArgs(command, argv), e);
+			}
+		}
+
+		int numArgs = (args != null ? args.size() - 1 : 0) + (finalVal != null ? 1 : 0);
+		if (node.intrinsic == Intrinsic.AND || node.intrinsic == Intrinsic.OR) {
+			if (numArgs == 0)
+				return notEvaluated;
+			/* and stops at the first false value, or at the first true */
+			boolean decisive = (node.intrinsic == Intrinsic.OR);
+			Object val = null;
+			for (int i = 1; args != null && i < args.size(); i++) {
+				val = evalArg(dot, args.get(i));
+				if (Utils.isTrue(val) == decisive)
+					return val;
+			}
+
+			/* The final value is the last argument */
+			return (finalVal != null ? finalVal : val);
+		}
+		if (numArgs != 2 && !(numArgs > 2 && node.intrinsic == Intrinsic.EQ))
+			return notEvaluated;
+
+		Object a = evalArg(dot, args.get(1));
+		if (cmd instanceof Node.Command && ((Node.Command)cmd).constants != null &&
+		    finalVal == null) {
+			if (a == null)
+				callError(node, cmd, new Object[numArgs], new NullPointerException());
+			return ((Node.Command)cmd).constants.contains(a);
+		}
+		Object b = (args.size() > 2 ? evalArg(dot, args.get(2)) : finalVal);
+		try {
+			if (numArgs > 2) {
+				Object[] rest = new Object[numArgs - 1];
+				rest[0] = b;
+				for (int i = 3; i < args.size(); i++)
+					rest[i - 2] = evalArg(dot, args.get(i));
+				if (finalVal != null)
+					rest[rest.length - 1] = finalVal;
+				return BuiltinsFuncs.equal(a, rest);
+			}
+
+			Intrinsic op = node.intrinsic;
+			switch (node.spec) {
+				case INT:
+					if (a instanceof Integer && b instanceof Integer)
+						return op.apply((int)(Integer)a, (int)(Integer)b);
+					break;
+				case LONG:
+					if (a instanceof Long && b instanceof Long)
+						return op.apply((long)(Long)a, (long)(Long)b);
+					break;
+				case DOUBLE:
+					if (a instanceof Double && b instanceof Double)
+						return op.apply((double)(Double)a, (double)(Double)b);
+					break;
+				case STRING:
+					if (a instanceof String && b instanceof String)
+						return op.apply((String)a, (String)b);
+					break;
+				case GENERIC:
+					return op.apply(a, b);
+			}
+			/* First execution or the types have changed */
+			node.spec = (node.spec == Intrinsic.Spec.NONE ?
+				     Intrinsic.Spec.of(a, b) : Intrinsic.Spec.GENERIC);
+
+			return op.apply(a, b);
+
+		} catch (IllegalArgumentException | NullPointerException e) {
+			callError(node, cmd, (numArgs > 2 ? new Object[numArgs] : new Object[]{a, b}), e);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Evaluates not, len, index and range. Indexing is done by the type
+	 * of the collection, range with int bounds creates the array directly.
+	 * Other types of arguments are passed to the builtin by reflection
+	 */
+	private Object evalCollectionIntrinsic(Object dot, Node.Identifier node, Node cmd,
+					       List<Node> args, Object finalVal) throws ExecException
+	{
+		Object[] argv = evalArgs(dot, args, 1, finalVal);
+		try {
+			switch (node.intrinsic) {
+				case NOT:
+					if (argv.length == 1)
+						return !Utils.isTrue(argv[0]);
+					break;
+				case LEN:
+					if (argv.length == 1)
+						return BuiltinsFuncs.len(argv[0]);
+					break;
+				case INDEX:
+					if (argv.length == 0 || argv[0] == null)
+						break;
+					Object val = argv[0];
+					for (int i = 1; i < argv.length; i++)
+						val = BuiltinsFuncs.index(val, argv[i]);
+					return val;
+				case RANGE:
+					for (Object arg : argv)
+						if (!(arg instanceof Integer))
+							return callMethods(FuncMap.builtins.get(node.ident), cmd,
+									   node.ident, Arrays.asList(argv));
+					switch (argv.length) {
+						case 1:
+							return BuiltinsFuncs.range((Integer)argv[0]);
+						case 2:
+							return BuiltinsFuncs.range((Integer)argv[0], (Integer)argv[1]);
+						case 3:
+							return BuiltinsFuncs.range((Integer)argv[0], (Integer)argv[1],
+										   (Integer)argv[2]);
+					}
+					break;
+			}
+		} catch (RuntimeException e) {
+			callError(node, cmd, argv, e);
+		}
+
+		/* Reports the wrong number of arguments */
+		return callMethods(FuncMap.builtins.get(node.ident), cmd, node.ident, Arrays.asList(argv));
 	}
 
 	/**
@@ -567,6 +1564,15 @@ class Exec
 		if (finalVal != null)
 			argv.add(finalVal);
 
+		return callMethods(func, node, name, argv);
+	}
+
+	/**
+	 * Calls the methods with the evaluated arguments
+	 */
+	private Object callMethods(List<Method> func, Node node, String name,
+				   List<Object> argv) throws ExecException
+	{
 		Object result = null;
 		ArrayList<String> err = new ArrayList<>();
 		String errFmt = "\n(%s): %s";
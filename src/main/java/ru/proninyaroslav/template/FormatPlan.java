@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Formattable;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The format string of printf, parsed once into a sequence of literal
+ * text and conversions. The common conversions (%s, %d, %f with width,
+ * precision and '-' or '0' flag) are written directly, the others are
+ * formatted one by one with {@link String#format(String, Object...)}.
+ * The result is the same as of {@link String#format(String, Object...)}
+ */
+
+class FormatPlan
+{
+	/* The same syntax as in java.util.Formatter */
+	private static final Pattern specPattern =
+		Pattern.compile("%(\\d+\\$)?([-#+ 0,(<]*)?(\\d+)?(\\.\\d+)?([tT])?([a-zA-Z%])");
+	private static final String conversions = "bBhHsScCdoxXeEfgGaA%n";
+
+	private String format;
+	private Segment[] segments;
+	/* Number of arguments used by the format */
+	private int numArgs;
+
+	/* Format symbols of the default locale, updated when the locale changes */
+	private static volatile Symbols symbols;
+
+	private FormatPlan(String format, Segment[] segments, int numArgs)
+	{
+		this.format = format;
+		this.segments = segments;
+		this.numArgs = numArgs;
+	}
+
+	/**
+	 * Parses the format. Returns null if the format uses explicit
+	 * argument indexes or isn't valid; such formats are left
+	 * to {@link String#format(String, Object...)}
+	 */
+	static FormatPlan compile(String format)
+	{
+		ArrayList<Segment> segments = new ArrayList<>();
+		int numArgs = 0;
+		Matcher m = specPattern.matcher(format);
+		int i = 0;
+		while (i < format.length()) {
+			int percent = format.indexOf('%', i);
+			if (percent < 0) {
+				segments.add(new Literal(format.substring(i)));
+				break;
+			}
+			if (percent > i)
+				segments.add(new Literal(format.substring(i, percent)));
+			if (!m.find(percent) || m.start() != percent)
+				return null;
+			String index = m.group(1);
+			String flags = (m.group(2) != null ? m.group(2) : "");
+			char conversion = m.group(6).charAt(0);
+			if (index != null || flags.indexOf('<') >= 0 ||
+			    (m.group(5) == null && conversions.indexOf(conversion) < 0))
+				return null;
+
+			Segment segment = newSpec(m.group(), flags, m.group(3), m.group(4),
+						  m.group(5) != null, conversion);
+			if (segment.usesArg())
+				numArgs++;
+			segments.add(segment);
+			i = m.end();
+		}
+
+		return new FormatPlan(format, segments.toArray(new Segment[segments.size()]), numArgs);
+	}
+
+	private static Segment newSpec(String spec, String flags, String width,
+				       String precision, boolean dateTime, char conversion)
+	{
+		boolean plain = flags.isEmpty() && width == null && precision == null;
+		if (!dateTime && conversion == '%' && plain)
+			return new Literal("%");
+		else if (!dateTime && conversion == 'n' && plain)
+			return new Literal(System.lineSeparator());
+
+		boolean left = flags.equals("-");
+		boolean zero = flags.equals("0");
+		int w = (width != null ? Integer.parseInt(width) : -1);
+		int p = (precision != null ? Integer.parseInt(precision.substring(1)) : -1);
+		/* Flags that are valid only with the width */
+		boolean valid = (flags.isEmpty() || ((left || zero) && w >= 0));
+		if (!dateTime && valid) {
+			switch (conversion) {
+				case 's':
+					if (!zero)
+						return new StringSpec(spec, left, w, p);
+					break;
+				case 'd':
+					if (p < 0)
+						return new IntSpec(spec, left, zero, w);
+					break;
+				case 'f':
+					return new FloatSpec(spec, left, zero, w, (p >= 0 ? p : 6));
+			}
+		}
+
+		return new Spec(spec, conversion != '%' && conversion != 'n');
+	}
+
+	/**
+	 * Returns the formatted string
+	 */
+	String format(Object[] args)
+	{
+		StringWriter sw = new StringWriter();
+		try {
+			write(sw, args);
+		} catch (IOException e) {
+			/* Not thrown by StringWriter */
+		}
+
+		return sw.toString();
+	}
+
+	/**
+	 * Writes the formatted string to the writer
+	 */
+	void write(Writer out, Object[] args) throws IOException
+	{
+		Symbols sym = symbols();
+		if (args.length < numArgs || sym.zero != '0') {
+			/* Reports the missing argument or uses localized digits */
+			out.write(String.format(format, args));
+			return;
+		}
+
+		int arg = 0;
+		for (Segment segment : segments) {
+			if (segment.usesArg())
+				segment.write(out, args[arg++], sym);
+			else
+				segment.write(out, null, sym);
+		}
+	}
+
+	private static Symbols symbols()
+	{
+		Locale l = Locale.getDefault(Locale.Category.FORMAT);
+		Symbols sym = symbols;
+		if (sym == null || !sym.locale.equals(l)) {
+			sym = new Symbols(l);
+			symbols = sym;
+		}
+
+		return sym;
+	}
+
+	private static void pad(Writer out, String s, int width, boolean left) throws IOException
+	{
+		if (left)
+			out.write(s);
+		for (int i = s.length(); i < width; i++)
+			out.write(' ');
+		if (!left)
+			out.write(s);
+	}
+
+	/**
+	 * Writes the sign, zeros up to the width and the magnitude
+	 */
+	private static void padZero(Writer out, boolean neg, String magnitude, int width) throws IOException
+	{
+		if (neg)
+			out.write('-');
+		for (int i = magnitude.length() + (neg ? 1 : 0); i < width; i++)
+			out.write('0');
+		out.write(magnitude);
+	}
+
+	private static class Symbols
+	{
+		Locale locale;
+		char zero;
+		char decimalSeparator;
+
+		Symbols(Locale locale)
+		{
+			this.locale = locale;
+			DecimalFormatSymbols dfs = DecimalFormatSymbols.getInstance(locale);
+			zero = dfs.getZeroDigit();
+			decimalSeparator = dfs.getDecimalSeparator();
+		}
+	}
+
+	private static abstract class Segment
+	{
+		boolean usesArg()
+		{
+			return true;
+		}
+
+		abstract void write(Writer out, Object arg, Symbols sym) throws IOException;
+	}
+
+	private static class Literal extends Segment
+	{
+		String text;
+
+		Literal(String text)
+		{
+			this.text = text;
+		}
+
+		@Override
+		boolean usesArg()
+		{
+			return false;
+		}
+
+		@Override
+		void write(Writer out, Object arg, Symbols sym) throws IOException
+		{
+			out.write(text);
+		}
+	}
+
+	/**
+	 * The conversion formatted by String.format(),
+	 * also used by the other conversions for unsupported arguments
+	 */
+	private static class Spec extends Segment
+	{
+		String spec;
+		boolean usesArg;
+
+		Spec(String spec, boolean usesArg)
+		{
+			this.spec = spec;
+			this.usesArg = usesArg;
+		}
+
+		@Override
+		boolean usesArg()
+		{
+			return usesArg;
+		}
+
+		@Override
+		void write(Writer out, Object arg, Symbols sym) throws IOException
+		{
+			out.write(usesArg ? String.format(spec, arg) : String.format(spec));
+		}
+	}
+
+	private static class StringSpec extends Spec
+	{
+		boolean left;
+		int width;
+		int precision;
+
+		StringSpec(String spec, boolean left, int width, int precision)
+		{
+			super(spec, true);
+			this.left = left;
+			this.width = width;
+			this.precision = precision;
+		}
+
+		@Override
+		void write(Writer out, Object arg, Symbols sym) throws IOException
+		{
+			if (arg instanceof Formattable) {
+				super.write(out, arg, sym);
+				return;
+			}
+
+			String s = String.valueOf(arg);
+			if (precision >= 0 && precision < s.length())
+				s = s.substring(0, precision);
+			pad(out, s, width, left);
+		}
+	}
+
+	private static class IntSpec extends Spec
+	{
+		boolean left;
+		boolean zero;
+		int width;
+
+		IntSpec(String spec, boolean left, boolean zero, int width)
+		{
+			super(spec, true);
+			this.left = left;
+			this.zero = zero;
+			this.width = width;
+		}
+
+		@Override
+		void write(Writer out, Object arg, Symbols sym) throws IOException
+		{
+			long val;
+			if (arg instanceof Integer || arg instanceof Long ||
+			    arg instanceof Short || arg instanceof Byte) {
+				val = ((Number)arg).longValue();
+			} else {
+				super.write(out, arg, sym);
+				return;
+			}
+
+			if (zero) {
+				String s = Long.toString(val);
+				padZero(out, val < 0, (val < 0 ? s.substring(1) : s), width);
+			} else {
+				pad(out, Long.toString(val), width, left);
+			}
+		}
+	}
+
+	private static class FloatSpec extends Spec
+	{
+		boolean left;
+		boolean zero;
+		int width;
+		int precision;
+
+		FloatSpec(String spec, boolean left, boolean zero, int width, int precision)
+		{
+			super(spec, true);
+			this.left = left;
+			this.zero = zero;
+			this.width = width;
+			this.precision = precision;
+		}
+
+		@Override
+		void write(Writer out, Object arg, Symbols sym) throws IOException
+		{
+			double val;
+			if (arg instanceof Double || arg instanceof Float)
+				val = ((Number)arg).doubleValue();
+			else
+				val = Double.NaN;
+			if (Double.isNaN(val) || Double.isInfinite(val)) {
+				super.write(out, arg, sym);
+				return;
+			}
+
+			/*
+			 * Like Formatter, rounds half up the shortest decimal
+			 * representation of the value. The sign of zero is kept
+			 */
+			boolean neg = Double.compare(val, 0.0) < 0;
+			String magnitude = new BigDecimal(Double.toString(Math.abs(val)))
+				.setScale(precision, RoundingMode.HALF_UP)
+				.toPlainString();
+			if (sym.decimalSeparator != '.')
+				magnitude = magnitude.replace('.', sym.decimalSeparator);
+
+			if (zero)
+				padZero(out, neg, magnitude, width);
+			else
+				pad(out, (neg ? "-" + magnitude : magnitude), width, left);
+		}
+	}
+}
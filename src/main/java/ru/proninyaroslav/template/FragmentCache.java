@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded in-memory cache of the output of {{cache key}} actions,
+ * see {@link Template#setFragmentCache(FragmentCache)}. The size is
+ * the total size of the stored keys and output; when it exceeds the limit,
+ * the least recently used fragments are evicted. The output is stored
+ * encoded and is valid until the template set is modified. The cache is
+ * thread-safe and can be shared between template sets. The fragments are
+ * stored by the ids of the set and the {{cache}} action and the key, so
+ * the same key of different actions doesn't collide and the fragments
+ * don't keep the discarded sets from being collected
+ */
+
+public class FragmentCache
+{
+	private final long maxSize;
+	private final long ttl;     /* nanoseconds, 0 if the fragments don't expire */
+	/* In the access order, the eldest is the least recently used */
+	private LinkedHashMap<Key, Fragment> fragments = new LinkedHashMap<>(16, 0.75f, true);
+	private long size;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Identifies the fragment: the ids of the template set
+	 * and the {{cache}} node and the key
+	 */
+	static final class Key
+	{
+		final int set;
+		final int node;
+		final String key;
+		final int hash;
+
+		Key(int set, int node, String key)
+		{
+			this.set = set;
+			this.node = node;
+			this.key = key;
+			hash = 31 * (31 * set + node) + key.hashCode();
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key)o;
+
+			return set == k.set && node == k.node && key.equals(k.key);
+		}
+	}
+
+	private static class Fragment
+	{
+		int version;    /* version of the template set */
+		byte[] output;
+		long expires;
+
+		Fragment(int version, byte[] output, long expires)
+		{
+			this.version = version;
+			this.output = output;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * @param maxSize max total size of the keys (in chars) and output (in bytes)
+	 */
+	public FragmentCache(long maxSize)
+	{
+		this(maxSize, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @param maxSize max total size of the keys (in chars) and output (in bytes)
+	 * @param ttl time after which the stored fragment is executed again, 0 if never
+	 * @param unit unit of ttl
+	 */
+	public FragmentCache(long maxSize, long ttl, TimeUnit unit)
+	{
+		if (maxSize < 0 || ttl < 0)
+			throw new IllegalArgumentException("negative size or ttl");
+
+		this.maxSize = maxSize;
+		this.ttl = unit.toNanos(ttl);
+	}
+
+	/**
+	 * Returns the output rendered by the given version of the template set
+	 * or null, counts the hit or the miss
+	 */
+	synchronized byte[] get(Key key, int version)
+	{
+		Fragment f = fragments.get(key);
+		if (f != null && (f.version != version ||
+				  (ttl > 0 && System.nanoTime() - f.expires >= 0))) {
+			remove(key);
+			f = null;
+		}
+		if (f == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+
+		return f.output;
+	}
+
+	synchronized void put(Key key, int version, byte[] output)
+	{
+		long len = size(key, output);
+		if (len > maxSize)
+			return;
+
+		remove(key);
+		fragments.put(key, new Fragment(version, output, System.nanoTime() + ttl));
+		size += len;
+		Iterator<Map.Entry<Key, Fragment>> i = fragments.entrySet().iterator();
+		while (size > maxSize && i.hasNext()) {
+			Map.Entry<Key, Fragment> e = i.next();
+			size -= size(e.getKey(), e.getValue().output);
+			i.remove();
+			evictions++;
+		}
+	}
+
+	private void remove(Key key)
+	{
+		Fragment f = fragments.remove(key);
+		if (f != null)
+			size -= size(key, f.output);
+	}
+
+	private static long size(Key key, byte[] output)
+	{
+		return key.key.length() + output.length;
+	}
+
+	/**
+	 * Removes the fragments whose key starts with the prefix
+	 *
+	 * @param prefix key prefix, empty string removes all fragments
+	 * @return number of removed fragments
+	 */
+	public synchronized int invalidate(String prefix)
+	{
+		int removed = 0;
+		Iterator<Map.Entry<Key, Fragment>> i = fragments.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<Key, Fragment> e = i.next();
+			if (e.getKey().key.startsWith(prefix)) {
+				size -= size(e.getKey(), e.getValue().output);
+				i.remove();
+				removed++;
+			}
+		}
+
+		return removed;
+	}
+
+	/**
+	 * @return number of the fragments written from the cache
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * @return number of the fragments executed because they weren't stored or expired
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * @return number of the fragments removed to free space
+	 */
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	/**
+	 * @return total size of the stored keys and output
+	 */
+	public synchronized long getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * @return number of the stored fragments
+	 */
+	public synchronized int getCount()
+	{
+		return fragments.size();
+	}
+}
@@ -29,6 +29,10 @@ import java.util.*;
 public class FuncMap
 {
 	private HashMap<String, List<Method>> funcs = new HashMap<>();
+	/* Functions called without reflection */
+	private HashMap<String, Object> objects = new HashMap<>();
+	/* Functions without side effects, which result depends only on arguments */
+	private HashSet<String> pure = new HashSet<>();
 	static FuncMap builtins = BuiltinsFuncs.create();
 
 	/**
@@ -52,9 +56,88 @@ public class FuncMap
 			findAndPut(i.getKey(), i.getValue(), methods);
 	}
 
+	/**
+	 * Puts the function that writes its result directly
+	 * to the output of the template
+	 *
+	 * @param alias alias of function
+	 * @param func function
+	 */
+	public void putSink(String alias, SinkFunction func)
+	{
+		putObject(alias, func);
+	}
+
+	/*
+	 * Functional objects are called directly, without reflection.
+	 * The arguments are passed as is, the number
+	 * of arguments must match the function.
+	 * The overloads differ in the arity, so lambdas can be put
+	 */
+
+	public void put(String alias, Function0<?> func)
+	{
+		putObject(alias, func);
+	}
+
+	public void put(String alias, Function1<?, ?> func)
+	{
+		putObject(alias, func);
+	}
+
+	public void put(String alias, Function2<?, ?, ?> func)
+	{
+		putObject(alias, func);
+	}
+
+	public void put(String alias, Function3<?, ?, ?, ?> func)
+	{
+		putObject(alias, func);
+	}
+
+	public void put(String alias, Function4<?, ?, ?, ?, ?> func)
+	{
+		putObject(alias, func);
+	}
+
+	/**
+	 * Puts the function of any number of arguments
+	 *
+	 * @param alias alias of function
+	 * @param func function
+	 */
+	public void putVarargs(String alias, FunctionN<?> func)
+	{
+		putObject(alias, func);
+	}
+
+	/**
+	 * Find public instance method (or methods, if it overridden)
+	 * of the object and put it in the map. The method is called
+	 * on this object, the method handle is created once
+	 *
+	 * @param alias alias of method
+	 * @param service object which method is called
+	 * @param methodName method name
+	 */
+	public void bind(String alias, Object service, String methodName)
+	{
+		putObject(alias, new BoundMethod(service, methodName));
+	}
+
 	public void put(FuncMap funcMap)
 	{
+		for (String alias : funcMap.funcs.keySet()) {
+			pure.remove(alias);
+			objects.remove(alias);
+		}
+		for (String alias : funcMap.objects.keySet()) {
+			pure.remove(alias);
+			funcs.remove(alias);
+		}
 		funcs.putAll(funcMap.funcs);
+		objects.putAll(funcMap.objects);
+		pure.addAll(funcMap.pure);
 	}
 
 	/**
@@ -71,14 +154,68 @@ public class FuncMap
 
 	public boolean contains(String alias)
 	{
-		return get(alias) != null;
+		return get(alias) != null || objects.containsKey(alias);
 	}
 
+	/**
+	 * Returns the methods, put by name
+	 *
+	 * @return map of aliases to methods
+	 */
 	public Map<String, List<Method>> getAll()
 	{
 		return funcs;
 	}
 
+	/**
+	 * Returns the function object or the methods
+	 */
+	Object find(String alias)
+	{
+		Object func = objects.get(alias);
+
+		return (func != null ? func : funcs.get(alias));
+	}
+
+	/**
+	 * Declares the functions as pure, i.e. they have no side effects
+	 * and their result depends only on the arguments.
+	 * Calls of pure functions with the same arguments may be evaluated
+	 * once, e.g. inside for loops or by {@link Template#optimize()}.
+	 * Putting a function with the same alias again clears the declaration
+	 *
+	 * @param aliases aliases of functions that already put in the map
+	 */
+	public void markPure(String... aliases)
+	{
+		for (String alias : aliases)
+			if (!contains(alias))
+				throw new IllegalArgumentException(String.format("function '%s' not found", alias));
+		pure.addAll(Arrays.asList(aliases));
+	}
+
+	/**
+	 * Reports whether the function is declared as pure
+	 *
+	 * @param alias alias of function
+	 * @return true if pure
+	 */
+	public boolean isPure(String alias)
+	{
+		return pure.contains(alias);
+	}
+
+	/**
+	 * Puts the sink function, which is called by the template, along
+	 * with the static methods returning the same output as a string,
+	 * which are returned by {@link #get(String)} and {@link #getAll()}
+	 */
+	void putSink(String alias, SinkFunction func, String methodName, Class<?> c)
+	{
+		findAndPut(alias, methodName, c.getMethods());
+		objects.put(alias, func);
+	}
+
 	private void findAndPut(String alias, String methodName, Method[] methods)
 	{
 		ArrayList<Method> found = new ArrayList<>();
@@ -89,6 +226,17 @@ public class FuncMap
 		if (found.isEmpty())
 			throw new IllegalArgumentException(String.format("method '%s' not found, not static or non-public", methodName));
 		funcs.put(alias, found);
+		objects.remove(alias);
+		pure.remove(alias);
+	}
+
+	private void putObject(String alias, Object func)
+	{
+		if (func == null)
+			throw new NullPointerException();
+		objects.put(alias, func);
+		funcs.remove(alias);
+		pure.remove(alias);
 	}
 }
 
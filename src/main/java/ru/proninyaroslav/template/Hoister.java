@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Finds pipelines inside for loops, that don't depend on dot
+ * and variables changing in the loop and call only pure functions.
+ * Such pipelines are marked to be evaluated once per loop entry
+ * (on first use, so the loop without iterations doesn't evaluate them).
+ * Whether a field of a chain is a method is known only at execution,
+ * so the value is reused only if no method was invoked, see Exec.
+ * Also collects the field chains of the loop elements, see BatchPaths.
+ * The nodes aren't modified: the result is the new table, which
+ * replaces the table of the set, while the executions that have
+ * already started use the previous one
+ */
+
+class Hoister
+{
+	private Template tmpl;
+	private Table table = new Table();
+	/* Number of invariants of the loops being visited */
+	private IdentityHashMap<Node.For, Integer> counts = new IdentityHashMap<>();
+	/* Enclosing loops from the outermost */
+	private ArrayList<Node.For> loops = new ArrayList<>();
+	/* Variables declared or assigned in the body of the corresponding loop */
+	private ArrayList<HashSet<String>> loopVars = new ArrayList<>();
+
+	/**
+	 * Result of the analysis: the loop and the index of each invariant
+	 * pipeline and the information about each loop.
+	 * Isn't modified after it's returned by table()
+	 */
+	static final class Table
+	{
+		static final Table empty = new Table();
+
+		final IdentityHashMap<Node.Pipe, Slot> slots = new IdentityHashMap<>();
+		final IdentityHashMap<Node.For, Loop> loops = new IdentityHashMap<>();
+	}
+
+	static final class Slot
+	{
+		final Node.For loop; /* the loop in which the commands are invariant */
+		final int index;     /* index of the commands value among the loop invariants */
+
+		Slot(Node.For loop, int index)
+		{
+			this.loop = loop;
+			this.index = index;
+		}
+	}
+
+	static final class Loop
+	{
+		final int invariants; /* number of pipelines that are evaluated once per loop entry */
+		/* Field chains of the element read ahead to load deferred values */
+		final List<List<String>> batchPaths;
+
+		Loop(int invariants, List<List<String>> batchPaths)
+		{
+			this.invariants = invariants;
+			this.batchPaths = batchPaths;
+		}
+	}
+
+	Hoister(Template tmpl)
+	{
+		this.tmpl = tmpl;
+	}
+
+	void hoist(Tree tree)
+	{
+		if (tree != null && tree.root != null)
+			visit(tree.root);
+	}
+
+	/**
+	 * Returns the table of the hoisted trees
+	 */
+	Table table()
+	{
+		return table;
+	}
+
+	private void visit(Node node)
+	{
+		if (node == null)
+			return;
+
+		if (node instanceof Node.List) {
+			for (Node n : ((Node.List)node).nodes)
+				visit(n);
+		} else if (node instanceof Node.Action) {
+			visitPipe(((Node.Action)node).pipe, false);
+		} else if (node instanceof Node.For) {
+			Node.For f = (Node.For)node;
+			visitPipe(f.pipe, false);
+			counts.put(f, 0);
+			HashSet<String> vars = new HashSet<>();
+			for (Node.Assign var : f.pipe.vars)
+				vars.add(var.ident.get(0));
+			collectVars(f.list, vars);
+			loops.add(f);
+			loopVars.add(vars);
+			visit(f.list);
+			loops.remove(loops.size() - 1);
+			loopVars.remove(loopVars.size() - 1);
+			table.loops.put(f, new Loop(counts.remove(f), BatchPaths.collect(f)));
+			/* The else list is executed at most once */
+			visit(f.elseList);
+		} else if (node instanceof Node.Branch) {
+			Node.Branch branch = (Node.Branch)node;
+			visitPipe(branch.pipe, false);
+			visit(branch.list);
+			visit(branch.elseList);
+		} else if (node instanceof Node.Switch) {
+			Node.Switch sw = (Node.Switch)node;
+			visitPipe(sw.pipe, false);
+			for (Node.Case c : sw.cases)
+				visit(c.list);
+			visit(sw.defaultList);
+		} else if (node instanceof Node.Template) {
+			visitPipe(((Node.Template)node).pipe, false);
+		} else if (node instanceof Node.Inline) {
+			Node.Inline inline = (Node.Inline)node;
+			visitPipe(inline.call.pipe, false);
+			/* The body has its own variables and $ */
+			ArrayList<Node.For> outerLoops = loops;
+			ArrayList<HashSet<String>> outerLoopVars = loopVars;
+			loops = new ArrayList<>();
+			loopVars = new ArrayList<>();
+			visit(inline.list);
+			loops = outerLoops;
+			loopVars = outerLoopVars;
+		}
+	}
+
+	/**
+	 * Marks the pipeline to the outermost loop in which it is invariant,
+	 * otherwise looks for invariant pipelines in its arguments
+	 */
+	private void visitPipe(Node.Pipe pipe, boolean nested)
+	{
+		if (pipe == null)
+			return;
+
+		if (!loops.isEmpty() && !(nested && !pipe.vars.isEmpty()) && needsEval(pipe)) {
+			for (int i = 0; i < loops.size(); i++) {
+				if (isInvariant(pipe, loopVars.get(i))) {
+					Node.For f = loops.get(i);
+					int index = counts.get(f);
+					counts.put(f, index + 1);
+					table.slots.put(pipe, new Slot(f, index));
+					return;
+				}
+			}
+		}
+
+		for (Node.Command cmd : pipe.cmds) {
+			for (Node arg : cmd.args) {
+				if (arg instanceof Node.Pipe)
+					visitPipe((Node.Pipe)arg, true);
+				else if (arg instanceof Node.Chain &&
+					 ((Node.Chain)arg).node instanceof Node.Pipe)
+					visitPipe((Node.Pipe)((Node.Chain)arg).node, true);
+			}
+		}
+	}
+
+	/**
+	 * Collects names of variables that are declared or assigned in the list
+	 */
+	private static void collectVars(Node node, HashSet<String> vars)
+	{
+		if (node == null)
+			return;
+
+		if (node instanceof Node.List) {
+			for (Node n : ((Node.List)node).nodes)
+				collectVars(n, vars);
+		} else if (node instanceof Node.Action) {
+			collectVars(((Node.Action)node).pipe, vars);
+		} else if (node instanceof Node.Branch) {
+			Node.Branch branch = (Node.Branch)node;
+			collectVars(branch.pipe, vars);
+			collectVars(branch.list, vars);
+			collectVars(branch.elseList, vars);
+		} else if (node instanceof Node.Switch) {
+			Node.Switch sw = (Node.Switch)node;
+			collectVars(sw.pipe, vars);
+			for (Node.Case c : sw.cases)
+				collectVars(c.list, vars);
+			collectVars(sw.defaultList, vars);
+		} else if (node instanceof Node.Template) {
+			collectVars(((Node.Template)node).pipe, vars);
+		} else if (node instanceof Node.Inline) {
+			collectVars(((Node.Inline)node).call.pipe, vars);
+		} else if (node instanceof Node.Pipe) {
+			Node.Pipe pipe = (Node.Pipe)node;
+			for (Node.Assign var : pipe.vars)
+				vars.add(var.ident.get(0));
+			for (Node.Command cmd : pipe.cmds)
+				for (Node arg : cmd.args)
+					collectVars(arg, vars);
+		} else if (node instanceof Node.Chain) {
+			collectVars(((Node.Chain)node).node, vars);
+		}
+	}
+
+	/**
+	 * Reports whether evaluating of the pipeline costs more than
+	 * reading a cached value, i.e. it calls a function or a method
+	 */
+	private static boolean needsEval(Node.Pipe pipe)
+	{
+		for (Node.Command cmd : pipe.cmds) {
+			for (Node arg : cmd.args) {
+				switch (arg.type) {
+					case IDENTIFIER:
+					case CHAIN:
+					case FIELD:
+						return true;
+					case VARIABLE:
+						if (((Node.Assign)arg).ident.size() > 1)
+							return true;
+						break;
+					case PIPE:
+						if (needsEval((Node.Pipe)arg))
+							return true;
+						break;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	private boolean isInvariant(Node.Pipe pipe, HashSet<String> vars)
+	{
+		for (Node.Command cmd : pipe.cmds)
+			for (Node arg : cmd.args)
+				if (!isInvariant(arg, vars))
+					return false;
+
+		return true;
+	}
+
+	private boolean isInvariant(Node arg, HashSet<String> vars)
+	{
+		switch (arg.type) {
+			case BOOL:
+			case NULL:
+			case NUMBER:
+			case STRING:
+			case VALUE:
+				return true;
+			case IDENTIFIER:
+				return tmpl.isPureFunc(((Node.Identifier)arg).ident);
+			case VARIABLE:
+				return !vars.contains(((Node.Assign)arg).ident.get(0));
+			case CHAIN:
+				return isInvariant(((Node.Chain)arg).node, vars);
+			case PIPE:
+				Node.Pipe pipe = (Node.Pipe)arg;
+				return pipe.vars.isEmpty() && isInvariant(pipe, vars);
+			default:
+				/* Dot and fields of dot */
+				return false;
+		}
+	}
+}
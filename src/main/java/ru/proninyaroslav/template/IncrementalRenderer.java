@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+import ru.proninyaroslav.template.exceptions.ExecException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders the template repeatedly, re-executing only the parts
+ * of the template whose inputs have changed since the previous render.
+ * The regions are the top-level nodes of the template (text, actions,
+ * if, with, for, template invocations). The inputs of the region are
+ * the data paths it reads (see {@link Template#accessedPaths()}), compared
+ * with equals(). A region is always re-executed if it reads the data
+ * by calling methods, uses impure functions or variables declared
+ * outside of it. The data must not be modified in place between renders:
+ * a changed value should be a new object or have a different equals().
+ * The renderer must be created after the template has been parsed
+ * and the functions have been added
+ */
+
+public class IncrementalRenderer
+{
+	private Template tmpl;
+	private Slot[] slots;
+	/* Marks the region that has never been rendered or whose inputs can't be read */
+	private static final Object[] unknown = new Object[0];
+
+	/**
+	 * Output of the region
+	 */
+	public static class Region
+	{
+		private int index;
+		private int offset;
+		private byte[] output;
+
+		Region(int index, int offset, byte[] output)
+		{
+			this.index = index;
+			this.offset = offset;
+			this.output = output;
+		}
+
+		/**
+		 * @return number of the region in the template
+		 */
+		public int getIndex()
+		{
+			return index;
+		}
+
+		/**
+		 * @return offset of the region in the full output
+		 */
+		public int getOffset()
+		{
+			return offset;
+		}
+
+		public byte[] getOutput()
+		{
+			return output;
+		}
+	}
+
+	/**
+	 * Full output of the render and the regions that were changed
+	 */
+	public static class Result
+	{
+		private byte[] output;
+		private List<Region> changed;
+
+		Result(byte[] output, List<Region> changed)
+		{
+			this.output = output;
+			this.changed = Collections.unmodifiableList(changed);
+		}
+
+		public byte[] getOutput()
+		{
+			return output;
+		}
+
+		/**
+		 * @return regions whose output was re-executed, in the template order
+		 */
+		public List<Region> getChanged()
+		{
+			return changed;
+		}
+
+		public void writeTo(OutputStream os) throws IOException
+		{
+			os.write(output);
+		}
+	}
+
+	/* Region state kept between renders */
+	private static class Slot
+	{
+		Node node;
+		DataPaths[] paths;
+		PathAnalyzer.Use[] uses;
+		boolean opaque;
+		Object[] inputs = unknown;
+		byte[] output;
+	}
+
+	public IncrementalRenderer(Template tmpl)
+	{
+		if (tmpl == null)
+			throw new NullPointerException();
+
+		this.tmpl = tmpl;
+		List<PathAnalyzer.Reads> regions;
+		if (tmpl.common == null) {
+			regions = new ArrayList<>();
+		} else {
+			tmpl.common.funcsLock.lock();
+			try {
+				regions = new PathAnalyzer(tmpl).analyzeRegions();
+			} finally {
+				tmpl.common.funcsLock.unlock();
+			}
+		}
+		slots = new Slot[regions.size()];
+		for (int i = 0; i < slots.length; i++) {
+			PathAnalyzer.Reads reads = regions.get(i);
+			Slot slot = new Slot();
+			slot.node = tmpl.tree.root.nodes.get(i);
+			slot.opaque = reads.opaque;
+			slot.paths = reads.uses.keySet().toArray(new DataPaths[reads.uses.size()]);
+			slot.uses = reads.uses.values().toArray(new PathAnalyzer.Use[reads.uses.size()]);
+			slots[i] = slot;
+		}
+	}
+
+	/**
+	 * Applies the template to the data. The output of the regions whose
+	 * inputs are equal to the inputs of the previous render is reused.
+	 * If an error occurs, the regions that haven't been executed
+	 * keep the output of the previous render
+	 *
+	 * @param data data
+	 * @return full output and the changed regions
+	 * @throws ExecException in case of an execute error
+	 */
+	public synchronized Result render(Object data) throws ExecException
+	{
+		ArrayList<Template.Variable> vars = new ArrayList<>();
+		vars.add(new Template.Variable("$", data));
+		Exec state = new Exec(tmpl, null, vars);
+		if (tmpl.tree == null || tmpl.tree.root == null)
+			state.errorf("%s is an incomplete or empty template", tmpl.name);
+		data = state.force(data);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ArrayList<Region> changed = new ArrayList<>();
+		/* Values of the paths shared by the regions */
+		IdentityHashMap<DataPaths, List<Object>> values = new IdentityHashMap<>();
+		for (int i = 0; i < slots.length; i++) {
+			Slot slot = slots[i];
+			Object[] inputs = (slot.opaque ? unknown : readInputs(state, data, slot, values));
+			if (slot.output == null || inputs == unknown || !Arrays.equals(inputs, slot.inputs)) {
+				ByteArrayOutputStream buf = new ByteArrayOutputStream();
+				state.pw = new PrintWriter(buf);
+				state.walk(data, slot.node);
+				state.pw.flush();
+				byte[] output = buf.toByteArray();
+				if (slot.output == null || !Arrays.equals(output, slot.output))
+					changed.add(new Region(i, out.size(), output));
+				slot.output = output;
+				slot.inputs = inputs;
+			}
+			out.write(slot.output, 0, slot.output.length);
+		}
+
+		return new Result(out.toByteArray(), changed);
+	}
+
+	/**
+	 * Forgets the output of the previous render
+	 */
+	public synchronized void reset()
+	{
+		for (Slot slot : slots) {
+			slot.output = null;
+			slot.inputs = unknown;
+		}
+	}
+
+	private Object[] readInputs(Exec state, Object data, Slot slot,
+				    IdentityHashMap<DataPaths, List<Object>> values) throws ExecException
+	{
+		Object[] inputs = new Object[slot.paths.length];
+		for (int i = 0; i < inputs.length; i++) {
+			List<Object> v = values(state, data, slot.paths[i], values);
+			if (v == null)
+				return unknown;
+			inputs[i] = summary(v, slot.uses[i]);
+		}
+
+		return inputs;
+	}
+
+	/**
+	 * Returns the values at the path for every element of the
+	 * iterated values on the way, or null if they can't be read
+	 */
+	private static List<Object> values(Exec state, Object data, DataPaths path,
+					   IdentityHashMap<DataPaths, List<Object>> values) throws ExecException
+	{
+		if (path.parent == null)
+			return Collections.singletonList(data);
+		if (values.containsKey(path))
+			return values.get(path);
+
+		List<Object> parent = values(state, data, path.parent, values);
+		ArrayList<Object> result = null;
+		if (parent != null) {
+			result = new ArrayList<>();
+			for (Object val : parent) {
+				if (!(path.name.equals(DataPaths.ELEMENTS) ?
+				      elements(state, val, result) :
+				      property(state, val, path.name, result))) {
+					result = null;
+					break;
+				}
+			}
+		}
+		values.put(path, result);
+
+		return result;
+	}
+
+	private static boolean property(Exec state, Object receiver, String name,
+					List<Object> result) throws ExecException
+	{
+		/* Reading the field of null is an error, reported by execution */
+		Object val = (receiver != null ? state.readInput(receiver, name) : null);
+		if (val == Exec.notEvaluated)
+			return false;
+		result.add(val);
+
+		return true;
+	}
+
+	/**
+	 * Adds the elements in the iteration order of for.
+	 * Other sources (e.g. iterators) can't be read twice
+	 */
+	private static boolean elements(Exec state, Object val, List<Object> result) throws ExecException
+	{
+		Iterable<?> elements;
+		if (val == null)
+			return true;
+		else if (val instanceof Collection)
+			elements = (Collection<?>)val;
+		else if (val instanceof Map)
+			elements = ((Map<?, ?>)val).values();
+		else if (val.getClass().isArray())
+			elements = new Slice(val, 0, -1);
+		else
+			return false;
+
+		for (Object elem : elements)
+			result.add(state.force(elem));
+
+		return true;
+	}
+
+	private static Object summary(List<Object> values, PathAnalyzer.Use use)
+	{
+		if (use == PathAnalyzer.Use.VALUE)
+			return values;
+
+		ArrayList<Object> summary = new ArrayList<>(values.size());
+		for (Object val : values) {
+			if (use == PathAnalyzer.Use.TRUTH)
+				summary.add(Utils.isTrue(val));
+			else if (val instanceof Collection)
+				summary.add(((Collection<?>)val).size());
+			else if (val instanceof Map)
+				summary.add(new ArrayList<>(((Map<?, ?>)val).keySet()));
+			else if (val != null && val.getClass().isArray())
+				summary.add(Array.getLength(val));
+			else
+				summary.add(Utils.isTrue(val));
+		}
+
+		return summary;
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+import java.util.HashMap;
+
+/**
+ * Arithmetic, comparison, logical and collection builtins, that are
+ * evaluated directly by the executor instead of the reflective call.
+ * Each call site of arithmetic and comparison specializes on the operand
+ * types it observes (see {@link Spec}), and and or evaluate their
+ * arguments lazily, printf uses the format parsed at parse time
+ * (see {@link FormatPlan}), eq with constant operands looks up the value
+ * in the set built at parse time. The results are the same as of the
+ * corresponding functions of {@link BuiltinsFuncs} and String.format()
+ */
+
+enum Intrinsic
+{
+	ADD("add", "+"),
+	SUB("sub", "-"),
+	MUL("mul", "*"),
+	DIV("div", "/"),
+	MOD("mod", "%"),
+	EQ("eq", "=="),
+	NE("ne", "!="),
+	LT("lt", "<"),
+	LE("le", "<="),
+	GT("gt", ">"),
+	GE("ge", ">="),
+	AND("and", "and"),
+	OR("or", "or"),
+	NOT("not", "not"),
+	INDEX("index", "index"),
+	LEN("len", "len"),
+	RANGE("range", "range"),
+	PRINTF("printf", "printf");
+
+	private static final HashMap<String, Intrinsic> byName = new HashMap<>();
+	static {
+		for (Intrinsic i : values())
+			byName.put(i.name, i);
+	}
+
+	/* Name of the builtin function */
+	final String name;
+	final String symbol;
+
+	Intrinsic(String name, String symbol)
+	{
+		this.name = name;
+		this.symbol = symbol;
+	}
+
+	/**
+	 * Returns the intrinsic for the builtin function name or null
+	 */
+	static Intrinsic of(String name)
+	{
+		return byName.get(name);
+	}
+
+	/**
+	 * Operand types observed by the call site
+	 */
+	enum Spec
+	{
+		NONE,		/* not executed yet */
+		INT,
+		LONG,
+		DOUBLE,
+		STRING,
+		GENERIC;	/* mixed or other types */
+
+		static Spec of(Object a, Object b)
+		{
+			if (a instanceof Integer && b instanceof Integer)
+				return INT;
+			else if (a instanceof Long && b instanceof Long)
+				return LONG;
+			else if (a instanceof Double && b instanceof Double)
+				return DOUBLE;
+			else if (a instanceof String && b instanceof String)
+				return STRING;
+
+			return GENERIC;
+		}
+	}
+
+	Object apply(int a, int b)
+	{
+		switch (this) {
+			case ADD:
+				return a + b;
+			case SUB:
+				return a - b;
+			case MUL:
+				return a * b;
+			case DIV:
+			case MOD:
+				return BuiltinsFuncs.intArithmetic(a, b, symbol.charAt(0));
+			case EQ:
+				return a == b;
+			case NE:
+				return a != b;
+			case LT:
+				return a < b;
+			case LE:
+				return a <= b;
+			case GT:
+				return a > b;
+			case GE:
+				return a >= b;
+			default:
+				throw new IllegalArgumentException("no such an operation " + symbol);
+		}
+	}
+
+	Object apply(long a, long b)
+	{
+		switch (this) {
+			case EQ:
+				return a == b;
+			case NE:
+				return a != b;
+			case LT:
+			case LE:
+			case GT:
+			case GE:
+				/* Compared as double, like the other numbers */
+				return BuiltinsFuncs.compare((double)a, (double)b, this);
+			default:
+				return BuiltinsFuncs.longArithmetic(a, b, symbol.charAt(0));
+		}
+	}
+
+	Object apply(double a, double b)
+	{
+		switch (this) {
+			case EQ:
+				/* As Double.equals() */
+				return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+			case NE:
+				return Double.doubleToLongBits(a) != Double.doubleToLongBits(b);
+			case LT:
+			case LE:
+			case GT:
+			case GE:
+				return BuiltinsFuncs.compare(a, b, this);
+			default:
+				return BuiltinsFuncs.doubleArithmetic(a, b, symbol.charAt(0));
+		}
+	}
+
+	Object apply(String a, String b)
+	{
+		switch (this) {
+			case ADD:
+				return a.concat(b);
+			case EQ:
+				return a.equals(b);
+			case NE:
+				return !a.equals(b);
+			default:
+				return apply((Object)a, b);
+		}
+	}
+
+	Object apply(Object a, Object b)
+	{
+		switch (this) {
+			case EQ:
+				return BuiltinsFuncs.equal(a, b);
+			case NE:
+				return BuiltinsFuncs.notEqual(a, b);
+			case LT:
+			case LE:
+			case GT:
+			case GE:
+				return BuiltinsFuncs.compare(a, b, this);
+			default:
+				return BuiltinsFuncs.doArithmetic(a, b, symbol.charAt(0));
+		}
+	}
+}
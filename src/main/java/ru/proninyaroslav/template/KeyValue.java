@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+/**
+ * Data object which fields are looked up by name, without reflection.
+ * The field chain .a.b of such object calls get("a"), then get("b")
+ * of the result. A null result means that the object has no such key;
+ * in this case the public field or method with this name is used,
+ * if any, otherwise the field evaluates to null
+ */
+
+public interface KeyValue
+{
+	/**
+	 * Returns the value for the key
+	 *
+	 * @param key name of the field
+	 * @return value or null if there is no such key
+	 */
+	Object get(String key);
+}
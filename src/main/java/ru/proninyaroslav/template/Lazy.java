@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.proninyaroslav.template;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Value of the data that is computed when the template uses it for
+ * the first time. Lazy values are returned by fields, methods, keys,
+ * variables and functions; the executor computes the value once
+ * during the execution and uses the result for the rest of it.
+ * Unused values aren't computed
+ */
+
+public abstract class Lazy<T>
+{
+	/**
+	 * Computes the value
+	 *
+	 * @return value, can be another lazy value
+	 * @throws Exception in case of an error, the execution stops
+	 */
+	protected abstract T compute() throws Exception;
+
+	/**
+	 * Returns the lazy value computed by the callable
+	 *
+	 * @param callable computes the value
+	 * @param <T> type of value
+	 * @return lazy value
+	 */
+	public static <T> Lazy<T> of(final Callable<T> callable)
+	{
+		if (callable == null)
+			throw new NullPointerException();
+
+		return new Lazy<T>()
+		{
+			@Override
+			protected T compute() throws Exception
+			{
+				return callable.call();
+			}
+		};
+	}
+}
@@ -39,6 +39,10 @@ class Lexer implements Runnable
 		map.put("with", Token.Type.WITH);
 		map.put("null", Token.Type.NULL);
 		map.put("template", Token.Type.TEMPLATE);
+		map.put("switch", Token.Type.SWITCH);
+		map.put("case", Token.Type.CASE);
+		map.put("default", Token.Type.DEFAULT);
+		map.put("cache", Token.Type.CACHE);
 
 		return map;
 	}
@@ -493,6 +497,7 @@ class Lexer implements Runnable
 			case '(':
 			case ')':
 			case '=':
+			case ',':
 				return true;
 		}
 		/*
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+import java.util.HashSet;
+
+/**
+ * Resolves template invocations of the template set. Invocations of small
+ * non-recursive templates are replaced with the copy of the template body
+ * (see {@link Node.Inline}), others are resolved on first execution.
+ * Must be called every time the template set has been modified
+ */
+
+class Linker
+{
+	/* Max size of the inlined template body, in nodes */
+	static final int maxInlineNodes = 32;
+	/* Max nesting of inlined templates */
+	private static final int maxInlineDepth = 8;
+
+	private Template.Common common;
+
+	Linker(Template.Common common)
+	{
+		this.common = common;
+	}
+
+	void link()
+	{
+		for (Template t : common.tmpl.values())
+			if (t.tree != null && t.tree.root != null)
+				linkList(t.tree.root, 0);
+	}
+
+	private void linkList(Node.List list, int depth)
+	{
+		for (int i = 0; i < list.nodes.size(); i++) {
+			Node node = list.nodes.get(i);
+			if (node instanceof Node.Template) {
+				list.nodes.set(i, inline((Node.Template)node, depth));
+			} else if (node instanceof Node.Inline) {
+				list.nodes.set(i, inline(((Node.Inline)node).call, depth));
+			} else if (node instanceof Node.Branch) {
+				Node.Branch branch = (Node.Branch)node;
+				linkList(branch.list, depth);
+				if (branch.elseList != null)
+					linkList(branch.elseList, depth);
+			} else if (node instanceof Node.Switch) {
+				Node.Switch sw = (Node.Switch)node;
+				for (Node.Case c : sw.cases)
+					linkList(c.list, depth);
+				if (sw.defaultList != null)
+					linkList(sw.defaultList, depth);
+			}
+		}
+	}
+
+	/**
+	 * Returns the inlined template body or the invocation,
+	 * if the template can't be inlined
+	 */
+	private Node inline(Node.Template call, int depth)
+	{
+		call.link = null;
+		Template target = common.tmpl.get(call.name);
+		if (target == null || target.tree == null || target.tree.root == null ||
+		    depth == maxInlineDepth ||
+		    Optimizer.count(target.tree.root) > maxInlineNodes ||
+		    calls(target.tree.root, target.name, new HashSet<String>()))
+			return call;
+
+		Node.List body = target.tree.root.copyList();
+		linkList(body, depth + 1);
+
+		return new Node.Inline(call.tree, call.pos, call, target, common.version, body);
+	}
+
+	/**
+	 * Reports whether the template with the given name
+	 * can be invoked while executing the node
+	 */
+	private boolean calls(Node node, String name, HashSet<String> visited)
+	{
+		if (node instanceof Node.List) {
+			for (Node n : ((Node.List)node).nodes)
+				if (calls(n, name, visited))
+					return true;
+		} else if (node instanceof Node.Branch) {
+			Node.Branch branch = (Node.Branch)node;
+			return calls(branch.list, name, visited) ||
+				(branch.elseList != null && calls(branch.elseList, name, visited));
+		} else if (node instanceof Node.Switch) {
+			Node.Switch sw = (Node.Switch)node;
+			for (Node.Case c : sw.cases)
+				if (calls(c.list, name, visited))
+					return true;
+			return sw.defaultList != null && calls(sw.defaultList, name, visited);
+		} else if (node instanceof Node.Template || node instanceof Node.Inline) {
+			Node.Template call = (node instanceof Node.Inline ?
+					      ((Node.Inline)node).call : (Node.Template)node);
+			if (call.name.equals(name))
+				return true;
+			if (!visited.add(call.name))
+				return false;
+			Template t = common.tmpl.get(call.name);
+			return t != null && t.tree != null && t.tree.root != null &&
+				calls(t.tree.root, name, visited);
+		}
+
+		return false;
+	}
+}
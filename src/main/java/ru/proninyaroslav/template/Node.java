@@ -19,6 +19,9 @@ package ru.proninyaroslav.template;
 import ru.proninyaroslav.template.exceptions.ParseException;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Element in the parse tree
@@ -29,6 +32,8 @@ abstract class Node
 	public Type type;
 	public int pos;
 	protected Tree tree;
+	/* Getters resolved by property accessors for the fields of the chain */
+	Accessors.Site[] sites;
 
 	public Node(Tree tree, Type type, int pos)
 	{
@@ -64,7 +69,13 @@ abstract class Node
 		CONTINUE,
 		STRING,
 		TEMPLATE,       /* a template invocation action */
-		VARIABLE
+		VARIABLE,
+		VALUE,          /* a value precomputed before execution */
+		INLINE,         /* a template invocation replaced with the template body */
+		SWITCH,
+		CASE,           /* a case action. Not added to tree */
+		DEFAULT,        /* a default action. Not added to tree */
+		CACHE           /* a fragment whose output is cached */
 	}
 
 	/**
@@ -164,7 +175,7 @@ abstract class Node
 			for (Assign d : vars)
 				copyDecl.add((Assign) d.copy());
 			Pipe pipe = new Pipe(tree, pos, copyDecl);
-			pipe.vars = new ArrayList<>(vars);
+			pipe.decl = decl;
 			for (Command cmd : cmds)
 				pipe.append((Command)cmd.copy());
 
@@ -182,10 +193,13 @@ abstract class Node
 		{
 			StringBuilder sb = new StringBuilder("");
 
-			if (vars.size() == 1) {
-				sb.append(vars.get(0));
-				sb.append(" := ");
+			for (int i = 0; i < vars.size(); i++) {
+				if (i > 0)
+					sb.append(", ");
+				sb.append(vars.get(i));
 			}
+			if (!vars.isEmpty())
+				sb.append(" := ");
 
 			for (int i = 0; i < cmds.size(); i++) {
 				if (i > 0)
@@ -237,6 +251,8 @@ abstract class Node
 	public static class Command extends Node
 	{
 		public ArrayList<Node> args; /* arguments in lexical order: identifier, field, or constant */
+		FormatPlan format; /* the parsed constant format, if the command is printf */
+		HashSet<Object> constants; /* constant operands of eq, compared by hash lookup */
 
 		public Command(Tree tree, int pos)
 		{
@@ -255,6 +271,8 @@ abstract class Node
 			Command command = new Command(tree, pos);
 			for (Node arg : args)
 				command.append(arg.copy());
+			command.format = format;
+			command.constants = constants;
 
 			return command;
 		}
@@ -309,11 +327,16 @@ abstract class Node
 	public static class Identifier extends Node
 	{
 		public String ident; /* the identifier's name */
+		/* The builtin evaluated by the executor, if not overridden */
+		final Intrinsic intrinsic;
+		/* Operand types observed by the intrinsic */
+		Intrinsic.Spec spec = Intrinsic.Spec.NONE;
 
 		public Identifier(Tree tree, int pos, String ident)
 		{
 			super(tree, Type.IDENTIFIER, pos);
 			this.ident = ident;
+			intrinsic = Intrinsic.of(ident);
 		}
 
 		@Override
@@ -444,7 +467,7 @@ abstract class Node
 		@Override
 		public Node copy()
 		{
-			return new Chain(tree, pos, node, new ArrayList<>(field));
+			return new Chain(tree, pos, node.copy(), new ArrayList<>(field));
 		}
 
 		@Override
@@ -499,6 +522,7 @@ abstract class Node
 		public int intVal;
 		public double floatVal;
 		public String text; /* the original textual representation from the input */
+		private Object value; /* boxed value, computed on first use */
 
 		public Number(Tree tree, int pos, String text)
 		{
@@ -516,6 +540,26 @@ abstract class Node
 			this.floatVal = node.floatVal;
 		}
 
+		/**
+		 * Returns the value of a number in a context where we don't know the type
+		 * (If it was a method argument, we'd know what we need.)
+		 * The syntax guides us to some extent.
+		 * The value is boxed once and reused by subsequent calls
+		 */
+		public Object value()
+		{
+			if (value != null)
+				return value;
+
+			if (isFloat && !Utils.isHexConstant(text) &&
+			    Utils.containsAny(text, ".eE"))
+				value = floatVal;
+			else if (isInt)
+				value = intVal;
+
+			return value;
+		}
+
 		@Override
 		public Node copy()
 		{
@@ -557,6 +601,36 @@ abstract class Node
 		}
 	}
 
+	/**
+	 * Holds a value computed before execution, e.g. a folded constant pipeline.
+	 * It does not appear in the tree produced by the parser
+	 */
+	public static class Value extends Node
+	{
+		public Object value;
+
+		public Value(Tree tree, int pos, Object value)
+		{
+			super(tree, Type.VALUE, pos);
+			this.value = value;
+		}
+
+		@Override
+		public Node copy()
+		{
+			return new Value(tree, pos, value);
+		}
+
+		@Override
+		public String toString()
+		{
+			if (value instanceof String)
+				return Utils.quote((String)value);
+
+			return String.valueOf(value);
+		}
+	}
+
 	/**
 	 * Represents an {end} action.
 	 * It does not appear in the final runParser tree
@@ -636,6 +710,8 @@ abstract class Node
 				case WITH:
 					return new With(tree, pos, pipe,
 						        list, elseList);
+				case CACHE:
+					return new Cache(tree, pos, pipe, list);
 				default:
 					return null;
 			}
@@ -655,6 +731,9 @@ abstract class Node
 				case WITH:
 					name = "with";
 					break;
+				case CACHE:
+					name = "cache";
+					break;
 				default:
 					return "unknown branch type";
 			}
@@ -713,6 +792,28 @@ abstract class Node
 		}
 	}
 
+	/**
+	 * The fragment whose output is stored in {@link FragmentCache}
+	 * under the value of the pipeline. Has no else list
+	 */
+	public static class Cache extends Branch
+	{
+		private static final AtomicInteger ids = new AtomicInteger();
+		/* Identifies the action in the fragment cache */
+		final int id = ids.incrementAndGet();
+
+		public Cache(Tree tree, int pos, Pipe pipe, List list)
+		{
+			super(tree, Type.CACHE, pos, pipe, list, null);
+		}
+
+		@Override
+		public Node copy()
+		{
+			return new Cache(tree, pos, pipe.copyPipe(), list.copyList());
+		}
+	}
+
 	public static class Break extends Node
 	{
 		public Break(Tree tree, int pos)
@@ -753,6 +854,155 @@ abstract class Node
 		}
 	}
 
+	/**
+	 * Represents a {switch} action. The lists of cases are found
+	 * by the value of the pipeline in the table of constant labels
+	 */
+	public static class Switch extends Node
+	{
+		Pipe pipe;                      /* the pipeline to be evaluated */
+		ArrayList<Case> cases = new ArrayList<>();
+		List defaultList;               /* what to execute if no case matches (null if absent) */
+		/* Values of labels to the lists */
+		private HashMap<Object, List> table = new HashMap<>();
+
+		public Switch(Tree tree, int pos, Pipe pipe)
+		{
+			super(tree, Type.SWITCH, pos);
+			this.pipe = pipe;
+		}
+
+		/**
+		 * Adds the case to the table. Returns the label
+		 * that is already in the table or null
+		 */
+		Node addCase(Case c)
+		{
+			cases.add(c);
+			for (Node label : c.labels)
+				if (table.put(Case.value(label), c.list) != null)
+					return label;
+
+			return null;
+		}
+
+		/**
+		 * Returns the list to execute for the value.
+		 * The value is compared with the labels as with eq
+		 */
+		List select(Object val)
+		{
+			List list = (val != null ? table.get(val) : null);
+
+			return (list != null ? list : defaultList);
+		}
+
+		@Override
+		public Node copy()
+		{
+			Switch s = new Switch(tree, pos, pipe.copyPipe());
+			for (Case c : cases) {
+				Case copy = (Case)c.copy();
+				copy.list = c.list.copyList();
+				s.addCase(copy);
+			}
+			if (defaultList != null)
+				s.defaultList = defaultList.copyList();
+
+			return s;
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder("{{switch ");
+			sb.append(pipe).append("}}");
+			for (Case c : cases)
+				sb.append(c).append(c.list);
+			if (defaultList != null)
+				sb.append("{{default}}").append(defaultList);
+
+			return sb.append("{{end}}").toString();
+		}
+	}
+
+	/**
+	 * Represents a {case} action with constant labels: strings,
+	 * numbers, characters or booleans.
+	 * It appears in the tree only as a part of switch
+	 */
+	public static class Case extends Node
+	{
+		java.util.List<Node> labels;
+		List list;      /* what to execute if the value matches a label */
+
+		public Case(Tree tree, int pos, java.util.List<Node> labels)
+		{
+			super(tree, Type.CASE, pos);
+			this.labels = labels;
+		}
+
+		static boolean isConstant(Node label)
+		{
+			return label instanceof StringConst || label instanceof Number ||
+				label instanceof Bool;
+		}
+
+		static Object value(Node label)
+		{
+			if (label instanceof StringConst)
+				return ((StringConst)label).text;
+			else if (label instanceof Number)
+				return ((Number)label).value();
+
+			return ((Bool)label).boolVal;
+		}
+
+		@Override
+		public Node copy()
+		{
+			ArrayList<Node> copy = new ArrayList<>();
+			for (Node label : labels)
+				copy.add(label.copy());
+
+			return new Case(tree, pos, copy);
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder("{{case");
+			for (Node label : labels)
+				sb.append(' ').append(label);
+
+			return sb.append("}}").toString();
+		}
+	}
+
+	/**
+	 * Represents a {default} action.
+	 * It does not appear in the final runParser tree
+	 */
+	public static class Default extends Node
+	{
+		public Default(Tree tree, int pos)
+		{
+			super(tree, Type.DEFAULT, pos);
+		}
+
+		@Override
+		public Node copy()
+		{
+			return new Default(tree, pos);
+		}
+
+		@Override
+		public String toString()
+		{
+			return "{{default}}";
+		}
+	}
+
 	/**
 	 * Represents a {template} action
 	 */
@@ -760,6 +1010,25 @@ abstract class Node
 	{
 		public String name;     /* the name of the template (unquoted) */
 		public Pipe pipe;       /* the command to evaluate as dot for the template */
+		volatile Link link;     /* the invoked template, resolved on first execution */
+
+		/**
+		 * Holds the template resolved by name in the template set
+		 */
+		static class Link
+		{
+			final ru.proninyaroslav.template.Template.Common common;
+			final int version;  /* version of the set at the moment of resolving */
+			final ru.proninyaroslav.template.Template target;
+
+			Link(ru.proninyaroslav.template.Template.Common common, int version,
+			     ru.proninyaroslav.template.Template target)
+			{
+				this.common = common;
+				this.version = version;
+				this.target = target;
+			}
+		}
 
 		public Template(Tree tree, int pos, String name, Pipe pipe)
 		{
@@ -783,4 +1052,42 @@ abstract class Node
 			return String.format("{{template \"%s\" %s}}", name, pipe);
 		}
 	}
+
+	/**
+	 * Holds a copy of the body of the invoked template.
+	 * It's executed like the invocation (with its own variables),
+	 * but without resolving the template. If the template set has been
+	 * modified since inlining, the invocation is executed instead
+	 */
+	public static class Inline extends Node
+	{
+		Template call;  /* the original invocation */
+		ru.proninyaroslav.template.Template target;
+		int version;    /* version of the template set at the moment of inlining */
+		List list;      /* the copy of the template body */
+
+		public Inline(Tree tree, int pos, Template call,
+			      ru.proninyaroslav.template.Template target,
+			      int version, List list)
+		{
+			super(tree, Type.INLINE, pos);
+			this.call = call;
+			this.target = target;
+			this.version = version;
+			this.list = list;
+		}
+
+		@Override
+		public Node copy()
+		{
+			return new Inline(tree, pos, (Template)call.copy(),
+					  target, version, list.copyList());
+		}
+
+		@Override
+		public String toString()
+		{
+			return call.toString();
+		}
+	}
 }
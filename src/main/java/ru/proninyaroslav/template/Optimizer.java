@@ -0,0 +1,488 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+import ru.proninyaroslav.template.exceptions.ExecException;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Rewrites a parse tree before execution: folds constant pipelines of
+ * pure functions into values, replaces subtrees whose output depends
+ * only on constants with a precomputed text and merges adjacent text
+ */
+
+class Optimizer
+{
+	/* Don't precompute subtrees with larger output, e.g. long loops */
+	private static final int maxTextLength = 1 << 16;
+
+	private Template tmpl;
+
+	/**
+	 * Collects the precomputed text and aborts the execution
+	 * as soon as the text is longer than maxTextLength
+	 */
+	private static class BoundedWriter extends Writer
+	{
+		StringBuilder text = new StringBuilder();
+
+		@Override
+		public void write(char[] cbuf, int off, int len)
+		{
+			if (text.length() + len > maxTextLength)
+				throw new TooLongException();
+			text.append(cbuf, off, len);
+		}
+
+		@Override
+		public void flush()
+		{
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+
+	private static class TooLongException extends RuntimeException
+	{
+		TooLongException()
+		{
+			/* Thrown to abort, the stack trace isn't needed */
+			super(null, null, false, false);
+		}
+	}
+
+	Optimizer(Template tmpl)
+	{
+		this.tmpl = tmpl;
+	}
+
+	/**
+	 * Optimizes the tree in place.
+	 * Returns the number of removed nodes
+	 */
+	int optimize(Tree tree)
+	{
+		if (tree == null || tree.root == null)
+			return 0;
+
+		int count = count(tree.root);
+		optimizeList(tree.root);
+
+		return count - count(tree.root);
+	}
+
+	/**
+	 * Returns the number of nodes in the subtree
+	 */
+	static int count(Node node)
+	{
+		if (node == null)
+			return 0;
+
+		int n = 1;
+		if (node instanceof Node.List) {
+			for (Node child : ((Node.List)node).nodes)
+				n += count(child);
+		} else if (node instanceof Node.Action) {
+			n += count(((Node.Action)node).pipe);
+		} else if (node instanceof Node.Pipe) {
+			Node.Pipe pipe = (Node.Pipe)node;
+			n += pipe.vars.size();
+			for (Node.Command cmd : pipe.cmds)
+				n += count(cmd);
+		} else if (node instanceof Node.Command) {
+			for (Node arg : ((Node.Command)node).args)
+				n += count(arg);
+		} else if (node instanceof Node.Chain) {
+			n += count(((Node.Chain)node).node);
+		} else if (node instanceof Node.Branch) {
+			Node.Branch branch = (Node.Branch)node;
+			n += count(branch.pipe) + count(branch.list) + count(branch.elseList);
+		} else if (node instanceof Node.Switch) {
+			Node.Switch sw = (Node.Switch)node;
+			n += count(sw.pipe) + count(sw.defaultList);
+			for (Node.Case c : sw.cases)
+				n += c.labels.size() + count(c.list);
+		} else if (node instanceof Node.Template) {
+			n += count(((Node.Template)node).pipe);
+		} else if (node instanceof Node.Inline) {
+			Node.Inline inline = (Node.Inline)node;
+			n += count(inline.call.pipe) + count(inline.list);
+		}
+
+		return n;
+	}
+
+	private void optimizeList(Node.List list)
+	{
+		ArrayList<Node> nodes = new ArrayList<>();
+		for (Node node : list.nodes) {
+			Node n = optimizeNode(node);
+			if (n instanceof Node.List)
+				nodes.addAll(((Node.List)n).nodes);
+			else if (n != null)
+				nodes.add(n);
+		}
+
+		/* Merge adjacent text */
+		list.nodes = new ArrayList<>();
+		Node.Text last = null;
+		for (Node n : nodes) {
+			if (n instanceof Node.Text) {
+				Node.Text text = (Node.Text)n;
+				if (text.text.isEmpty())
+					continue;
+				if (last != null) {
+					last.text += text.text;
+					continue;
+				}
+				last = text;
+			} else {
+				last = null;
+			}
+			list.append(n);
+		}
+	}
+
+	/**
+	 * Returns the replacement of the node: the node itself,
+	 * a list which nodes are inserted in its place or null
+	 * if the node can be removed
+	 */
+	private Node optimizeNode(Node node)
+	{
+		if (node instanceof Node.Action) {
+			Node.Action action = (Node.Action)node;
+			foldPipe(action.pipe);
+			if (action.pipe.vars.isEmpty())
+				return precompute(action);
+
+		} else if (node instanceof Node.If || node instanceof Node.With) {
+			Node.Branch branch = (Node.Branch)node;
+			foldPipe(branch.pipe);
+			optimizeList(branch.list);
+			if (branch.elseList != null)
+				optimizeList(branch.elseList);
+
+			Object[] val = foldedValue(branch.pipe);
+			if (val != null && branch.pipe.vars.isEmpty()) {
+				boolean truth = Utils.isTrue(val[0]);
+				/* With sets dot, so the branch can't be inlined */
+				if (truth && node instanceof Node.If)
+					return inline(node, branch.list);
+				else if (!truth)
+					return inline(node, branch.elseList);
+			}
+
+			return precompute(node);
+
+		} else if (node instanceof Node.For) {
+			Node.For f = (Node.For)node;
+			foldPipe(f.pipe);
+			optimizeList(f.list);
+			if (f.elseList != null)
+				optimizeList(f.elseList);
+
+			return precompute(node);
+
+		} else if (node instanceof Node.Switch) {
+			Node.Switch sw = (Node.Switch)node;
+			foldPipe(sw.pipe);
+			for (Node.Case c : sw.cases)
+				optimizeList(c.list);
+			if (sw.defaultList != null)
+				optimizeList(sw.defaultList);
+
+			Object[] val = foldedValue(sw.pipe);
+			if (val != null && sw.pipe.vars.isEmpty())
+				return inline(node, sw.select(val[0]));
+
+		} else if (node instanceof Node.Cache) {
+			Node.Cache cache = (Node.Cache)node;
+			foldPipe(cache.pipe);
+			optimizeList(cache.list);
+
+			return precompute(node);
+
+		} else if (node instanceof Node.Template) {
+			Node.Template template = (Node.Template)node;
+			if (template.pipe != null)
+				foldPipe(template.pipe);
+
+		} else if (node instanceof Node.Inline) {
+			Node.Inline inline = (Node.Inline)node;
+			if (inline.call.pipe != null)
+				foldPipe(inline.call.pipe);
+			optimizeList(inline.list);
+		}
+
+		return node;
+	}
+
+	/**
+	 * Returns the list that replaces a branch node with
+	 * the constant condition, if possible
+	 */
+	private Node inline(Node node, Node.List list)
+	{
+		if (list == null)
+			return null;
+		/* Variables declared in the branch are scoped to it */
+		for (Node n : list.nodes)
+			if (n instanceof Node.Action && !((Node.Action)n).pipe.vars.isEmpty())
+				return node;
+
+		return list;
+	}
+
+	/**
+	 * Replaces the node with a text if its output depends only on constants
+	 */
+	private Node precompute(Node node)
+	{
+		if (!isStatic(node, false, new HashSet<String>(), 0))
+			return node;
+
+		BoundedWriter w = new BoundedWriter();
+		Exec state = newExec(w);
+		try {
+			state.walk(null, node);
+		} catch (ExecException | TooLongException e) {
+			/* Leave it as is, the error will be reported during execution */
+			return node;
+		}
+
+		return node.tree.newText(node.pos, w.text.toString());
+	}
+
+	/**
+	 * Replaces constant commands of the pipeline
+	 * (and parenthesized pipelines in its arguments) with the value
+	 */
+	private void foldPipe(Node.Pipe pipe)
+	{
+		for (Node.Command cmd : pipe.cmds) {
+			for (int i = 0; i < cmd.args.size(); i++) {
+				Node arg = cmd.args.get(i);
+				if (arg instanceof Node.Chain) {
+					Node.Chain chain = (Node.Chain)arg;
+					if (chain.node instanceof Node.Pipe)
+						chain.node = foldArg((Node.Pipe)chain.node);
+				} else if (arg instanceof Node.Pipe) {
+					cmd.args.set(i, foldArg((Node.Pipe)arg));
+				}
+			}
+		}
+
+		if (pipe.cmds.size() == 1 && isLiteral(pipe.cmds.get(0)))
+			return;
+		HashSet<String> locals = new HashSet<>();
+		for (Node.Command cmd : pipe.cmds)
+			if (!isStatic(cmd, false, locals))
+				return;
+		Node.Pipe cmds = pipe.tree.newPipeline(pipe.pos, new ArrayList<Node.Assign>());
+		cmds.cmds = pipe.cmds;
+		Object[] val = eval(cmds);
+		if (val == null)
+			return;
+
+		Node.Command cmd = pipe.tree.newCommand(pipe.pos);
+		cmd.append(pipe.tree.newValue(pipe.pos, val[0]));
+		pipe.cmds = new ArrayList<>();
+		pipe.append(cmd);
+	}
+
+	private Node foldArg(Node.Pipe pipe)
+	{
+		foldPipe(pipe);
+
+		Object[] val = foldedValue(pipe);
+		if (val == null || !pipe.vars.isEmpty())
+			return pipe;
+
+		return pipe.tree.newValue(pipe.pos, val[0]);
+	}
+
+	/**
+	 * Returns the value of pipeline folded by foldPipe
+	 * (wrapped in the array, since it can be null)
+	 * or null if the pipeline isn't constant
+	 */
+	static Object[] foldedValue(Node.Pipe pipe)
+	{
+		if (pipe.cmds.size() != 1)
+			return null;
+		Node.Command cmd = pipe.cmds.get(0);
+		if (cmd.args.size() != 1)
+			return null;
+		Node arg = cmd.args.get(0);
+		if (arg instanceof Node.Value)
+			return new Object[]{((Node.Value)arg).value};
+		else if (arg instanceof Node.Bool)
+			return new Object[]{((Node.Bool)arg).boolVal};
+		else if (arg instanceof Node.Number)
+			return new Object[]{((Node.Number)arg).value()};
+		else if (arg instanceof Node.StringConst)
+			return new Object[]{((Node.StringConst)arg).text};
+
+		return null;
+	}
+
+	private static boolean isLiteral(Node.Command cmd)
+	{
+		if (cmd.args.size() != 1)
+			return false;
+		switch (cmd.args.get(0).type) {
+			case BOOL:
+			case NULL:
+			case NUMBER:
+			case STRING:
+			case VALUE:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private Object[] eval(Node.Pipe pipe)
+	{
+		Exec state = newExec(new StringWriter());
+		Object val;
+		try {
+			val = state.evalPipeline(null, pipe);
+		} catch (ExecException e) {
+			return null;
+		}
+		/* The value is shared between executions, so it must be immutable */
+		if (val == null || val instanceof String || val instanceof Boolean ||
+		    val instanceof Character || val instanceof Integer || val instanceof Long ||
+		    val instanceof Double || val instanceof Float ||
+		    val instanceof Short || val instanceof Byte)
+			return new Object[]{val};
+
+		return null;
+	}
+
+	private Exec newExec(Writer w)
+	{
+		ArrayList<Template.Variable> vars = new ArrayList<>();
+		vars.add(new Template.Variable("$", null));
+
+		return new Exec(tmpl, new PrintWriter(w), vars);
+	}
+
+	/**
+	 * Reports whether the output of the node depends only on constants.
+	 * dotKnown means that dot is set by the enclosing node to a constant.
+	 * locals contains the variables declared inside the subtree
+	 */
+	private boolean isStatic(Node node, boolean dotKnown,
+				 HashSet<String> locals, int forDepth)
+	{
+		if (node instanceof Node.Text) {
+			return true;
+		} else if (node instanceof Node.Action) {
+			return isStatic(((Node.Action)node).pipe, dotKnown, locals);
+		} else if (node instanceof Node.List) {
+			for (Node n : ((Node.List)node).nodes)
+				if (!isStatic(n, dotKnown, locals, forDepth))
+					return false;
+			return true;
+		} else if (node instanceof Node.Break || node instanceof Node.Continue) {
+			return forDepth > 0;
+		} else if (node instanceof Node.Branch) {
+			Node.Branch branch = (Node.Branch)node;
+			HashSet<String> scope = new HashSet<>(locals);
+			if (!isStatic(branch.pipe, dotKnown, scope))
+				return false;
+			boolean setsDot = node instanceof Node.With || node instanceof Node.For;
+			int depth = (node instanceof Node.For ? forDepth + 1 : forDepth);
+			if (!isStatic(branch.list, dotKnown || setsDot,
+				      new HashSet<>(scope), depth))
+				return false;
+
+			return branch.elseList == null ||
+				isStatic(branch.elseList, dotKnown, new HashSet<>(scope), forDepth);
+		}
+
+		return false;
+	}
+
+	private boolean isStatic(Node.Pipe pipe, boolean dotKnown, HashSet<String> locals)
+	{
+		for (Node.Command cmd : pipe.cmds)
+			if (!isStatic(cmd, dotKnown, locals))
+				return false;
+		for (Node.Assign var : pipe.vars) {
+			String name = var.ident.get(0);
+			if (pipe.decl)
+				locals.add(name);
+			else if (!locals.contains(name))
+				return false;
+		}
+
+		return true;
+	}
+
+	private boolean isStatic(Node.Command cmd, boolean dotKnown, HashSet<String> locals)
+	{
+		Node first = cmd.args.get(0);
+		if (first instanceof Node.Identifier) {
+			if (!tmpl.isPureFunc(((Node.Identifier)first).ident))
+				return false;
+		} else if (!isStaticArg(first, dotKnown, locals)) {
+			return false;
+		}
+		for (int i = 1; i < cmd.args.size(); i++)
+			if (!isStaticArg(cmd.args.get(i), dotKnown, locals))
+				return false;
+
+		return true;
+	}
+
+	private boolean isStaticArg(Node arg, boolean dotKnown, HashSet<String> locals)
+	{
+		switch (arg.type) {
+			case BOOL:
+			case NULL:
+			case NUMBER:
+			case STRING:
+			case VALUE:
+				return true;
+			case DOT:
+				return dotKnown;
+			case IDENTIFIER:
+				return tmpl.isPureFunc(((Node.Identifier)arg).ident);
+			case VARIABLE:
+				Node.Assign var = (Node.Assign)arg;
+				return var.ident.size() == 1 && locals.contains(var.ident.get(0));
+			case PIPE:
+				Node.Pipe pipe = (Node.Pipe)arg;
+				return pipe.vars.isEmpty() && isStatic(pipe, dotKnown, locals);
+			default:
+				return false;
+		}
+	}
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.proninyaroslav.template;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Finds the data paths that the template reads. Dot and variables
+ * are tracked as nodes of the tree of paths (or null if they don't
+ * refer to the data, e.g. the result of a function): with and for rebind
+ * dot, {{template}} invocations are followed with the passed value,
+ * except the recursive ones.
+ * Also records how every top-level node of the template uses the data,
+ * see {@link IncrementalRenderer}
+ */
+
+class PathAnalyzer
+{
+	private Template tmpl;
+	private DataPaths root = new DataPaths();
+	/* Stack of variables and the paths they refer to */
+	private ArrayList<String> varNames = new ArrayList<>();
+	private ArrayList<DataPaths> varPaths = new ArrayList<>();
+	/* Invoked templates with the paths of dot that were analyzed */
+	private IdentityHashMap<DataPaths, HashSet<String>> visited = new IdentityHashMap<>();
+	/* Templates being analyzed; recursive invocations aren't followed */
+	private HashSet<String> stack = new HashSet<>();
+	/* Reads of the analyzed region, null if not recorded */
+	private Reads reads;
+	/* Start of the variables declared in the region */
+	private int regionMark;
+
+	/* How the value is used; the stronger use includes the weaker ones */
+	enum Use
+	{
+		TRUTH,	/* only the truth of the value (if, with) */
+		SHAPE,	/* number of elements or keys of the map (for) */
+		VALUE	/* the value itself */
+	}
+
+	/**
+	 * The paths read by the region and their uses. The region is opaque if
+	 * its output can depend on something else: impure functions, variables
+	 * declared outside of the region or recursive templates
+	 */
+	static class Reads
+	{
+		LinkedHashMap<DataPaths, Use> uses = new LinkedHashMap<>();
+		boolean opaque;
+	}
+
+	PathAnalyzer(Template tmpl)
+	{
+		this.tmpl = tmpl;
+	}
+
+	DataPaths analyze()
+	{
+		if (tmpl.tree != null && tmpl.tree.root != null) {
+			push("$", root);
+			visit(tmpl.tree.root, root);
+		}
+
+		return root;
+	}
+
+	/**
+	 * Returns the reads of each top-level node of the template
+	 */
+	List<Reads> analyzeRegions()
+	{
+		ArrayList<Reads> regions = new ArrayList<>();
+		if (tmpl.tree == null || tmpl.tree.root == null)
+			return regions;
+
+		push("$", root);
+		for (Node n : tmpl.tree.root.nodes) {
+			reads = new Reads();
+			regionMark = varNames.size();
+			visited.clear();
+			visit(n, root);
+			/* The variables must be declared by every execution */
+			if (varNames.size() > regionMark)
+				reads.opaque = true;
+			regions.add(reads);
+		}
+		reads = null;
+
+		return regions;
+	}
+
+	private void record(DataPaths paths, Use use)
+	{
+		if (reads == null || paths == null)
+			return;
+		Use prev = reads.uses.get(paths);
+		if (prev == null || prev.compareTo(use) < 0)
+			reads.uses.put(paths, use);
+	}
+
+	private void opaque()
+	{
+		if (reads != null)
+			reads.opaque = true;
+	}
+
+	private void push(String name, DataPaths paths)
+	{
+		varNames.add(name);
+		varPaths.add(paths);
+	}
+
+	private void pop(int mark)
+	{
+		varNames.subList(mark, varNames.size()).clear();
+		varPaths.subList(mark, varPaths.size()).clear();
+	}
+
+	private DataPaths var(String name)
+	{
+		for (int i = varNames.size() - 1; i >= 0; i--) {
+			if (varNames.get(i).equals(name)) {
+				if (i < regionMark && i > 0)
+					opaque();
+				return varPaths.get(i);
+			}
+		}
+		opaque();
+
+		return null;
+	}
+
+	private void setVar(String name, DataPaths paths)
+	{
+		for (int i = varNames.size() - 1; i >= 0; i--) {
+			if (varNames.get(i).equals(name)) {
+				if (i < regionMark)
+					opaque();
+				varPaths.set(i, paths);
+				return;
+			}
+		}
+		opaque();
+	}
+
+	private void visit(Node node, DataPaths dot)
+	{
+		if (node == null)
+			return;
+
+		if (node instanceof Node.List) {
+			for (Node n : ((Node.List)node).nodes)
+				visit(n, dot);
+		} else if (node instanceof Node.Action) {
+			/* Variables declared by actions live up to the end of the enclosing list */
+			Node.Pipe pipe = ((Node.Action)node).pipe;
+			DataPaths val = visitPipe(pipe, dot);
+			if (pipe.vars.isEmpty())
+				record(val, Use.VALUE);
+		} else if (node instanceof Node.For) {
+			Node.For f = (Node.For)node;
+			int mark = varNames.size();
+			DataPaths val = visitPipe(f.pipe, dot);
+			record(val, Use.SHAPE);
+			DataPaths elem = (val != null ? val.child(DataPaths.ELEMENTS) : null);
+			int n = f.pipe.vars.size();
+			if (n > 0 && f.pipe.decl) {
+				/* The variables hold the value and then the elements */
+				pop(varNames.size() - n);
+				if (n == 2)
+					push(f.pipe.vars.get(0).ident.get(0), null);
+				push(f.pipe.vars.get(n - 1).ident.get(0), elem);
+			}
+			visit(f.list, elem);
+			pop(mark);
+			visit(f.elseList, dot);
+		} else if (node instanceof Node.With) {
+			Node.With with = (Node.With)node;
+			int mark = varNames.size();
+			DataPaths val = visitPipe(with.pipe, dot);
+			record(val, Use.TRUTH);
+			visit(with.list, val);
+			visit(with.elseList, dot);
+			pop(mark);
+		} else if (node instanceof Node.Branch) {
+			Node.Branch branch = (Node.Branch)node;
+			int mark = varNames.size();
+			record(visitPipe(branch.pipe, dot), Use.TRUTH);
+			visit(branch.list, dot);
+			visit(branch.elseList, dot);
+			pop(mark);
+		} else if (node instanceof Node.Switch) {
+			Node.Switch sw = (Node.Switch)node;
+			int mark = varNames.size();
+			record(visitPipe(sw.pipe, dot), Use.VALUE);
+			for (Node.Case c : sw.cases)
+				visit(c.list, dot);
+			visit(sw.defaultList, dot);
+			pop(mark);
+		} else if (node instanceof Node.Template) {
+			visitTemplate((Node.Template)node, dot);
+		} else if (node instanceof Node.Inline) {
+			visitTemplate(((Node.Inline)node).call, dot);
+		}
+	}
+
+	private void visitTemplate(Node.Template call, DataPaths dot)
+	{
+		int mark = varNames.size();
+		DataPaths val = visitPipe(call.pipe, dot);
+		pop(mark);
+		Template target = (tmpl.common != null ? tmpl.common.tmpl.get(call.name) : null);
+		if (target == null || target.tree == null || stack.contains(call.name)) {
+			opaque();
+			return;
+		}
+		if (val == null)
+			return;
+
+		/* The same template with the same dot gives the same paths */
+		HashSet<String> names = visited.get(val);
+		if (names == null) {
+			names = new HashSet<>();
+			visited.put(val, names);
+		}
+		if (!names.add(call.name))
+			return;
+
+		/* Template invocations inherit no variables */
+		ArrayList<String> outerNames = varNames;
+		ArrayList<DataPaths> outerPaths = varPaths;
+		int outerMark = regionMark;
+		varNames = new ArrayList<>();
+		varPaths = new ArrayList<>();
+		regionMark = 0;
+		push("$", val);
+		stack.add(call.name);
+		visit(target.tree.root, val);
+		stack.remove(call.name);
+		varNames = outerNames;
+		varPaths = outerPaths;
+		regionMark = outerMark;
+	}
+
+	/**
+	 * Returns the paths of the value of the pipeline,
+	 * declares or assigns its variables
+	 */
+	private DataPaths visitPipe(Node.Pipe pipe, DataPaths dot)
+	{
+		if (pipe == null)
+			return null;
+
+		DataPaths val = null;
+		for (Node.Command cmd : pipe.cmds)
+			val = visitCommand(cmd, dot, val);
+		for (Node.Assign var : pipe.vars) {
+			if (pipe.decl)
+				push(var.ident.get(0), val);
+			else
+				setVar(var.ident.get(0), val);
+		}
+
+		return val;
+	}
+
+	private DataPaths visitCommand(Node.Command cmd, DataPaths dot, DataPaths finalVal)
+	{
+		Node first = cmd.args.get(0);
+		DataPaths[] args = new DataPaths[cmd.args.size()];
+		for (int i = 0; i < args.length; i++)
+			args[i] = visitArg(cmd.args.get(i), dot);
+
+		if (first instanceof Node.Identifier) {
+			/* The slices refer to the elements of the source */
+			String name = ((Node.Identifier)first).ident;
+			if (!tmpl.isPureFunc(name))
+				opaque();
+			boolean builtin = !tmpl.common.funcs.contains(name);
+			if (builtin && (name.equals("first") || name.equals("skip") || name.equals("slice"))) {
+				int n = (finalVal != null ? args.length : args.length - 1);
+				for (int i = 1; i < n; i++)
+					record(args[i], Use.VALUE);
+
+				return (finalVal != null ? finalVal : args[args.length - 1]);
+			}
+		}
+		/* The arguments of functions and methods */
+		if (args.length > 1 || first instanceof Node.Identifier) {
+			for (int i = 1; i < args.length; i++)
+				record(args[i], Use.VALUE);
+			record(finalVal, Use.VALUE);
+		}
+		if (first instanceof Node.Identifier)
+			return null;
+
+		return args[0];
+	}
+
+	private DataPaths visitArg(Node arg, DataPaths dot)
+	{
+		if (arg instanceof Node.Dot) {
+			return dot;
+		} else if (arg instanceof Node.Field) {
+			return path(dot, ((Node.Field)arg).ident, 0);
+		} else if (arg instanceof Node.Assign) {
+			List<String> ident = ((Node.Assign)arg).ident;
+			return path(var(ident.get(0)), ident, 1);
+		} else if (arg instanceof Node.Chain) {
+			Node.Chain chain = (Node.Chain)arg;
+			return path(visitArg(chain.node, dot), chain.field, 0);
+		} else if (arg instanceof Node.Pipe) {
+			int mark = varNames.size();
+			DataPaths val = visitPipe((Node.Pipe)arg, dot);
+			pop(mark);
+
+			return val;
+		}
+
+		return null;
+	}
+
+	private static DataPaths path(DataPaths paths, List<String> ident, int from)
+	{
+		for (int i = from; paths != null && i < ident.size(); i++)
+			paths = paths.child(ident.get(i));
+
+		return paths;
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.proninyaroslav.template;
+
+/**
+ * Resolves fields of the data that aren't public fields or methods
+ * with the same name, e.g. JavaBeans getters or fields of generated
+ * message classes. Accessors are added with
+ * {@link Template#addAccessor(PropertyAccessor)} and are asked in the order
+ * of adding; the first resolved getter is used. The result of resolving
+ * is cached for the class and the name, so the accessor is asked once
+ */
+
+public interface PropertyAccessor
+{
+	/**
+	 * Returns the getter of the property of the class
+	 *
+	 * @param type class of the data
+	 * @param name name of the field in the template
+	 * @return getter or null if the accessor doesn't handle the property
+	 */
+	Getter resolve(Class<?> type, String name);
+
+	/**
+	 * Returns the value of the resolved property
+	 */
+	interface Getter
+	{
+		Object get(Object receiver) throws Exception;
+	}
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+import ru.proninyaroslav.template.exceptions.ExecException;
+import ru.proninyaroslav.template.exceptions.InternalException;
+import ru.proninyaroslav.template.exceptions.ParseException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Template set parsed from files that is reparsed when the files change.
+ * The changed files are reparsed off the request path (by the watching
+ * thread or by {@link #reload()}), the unchanged ones reuse their parse trees;
+ * then the new template set replaces the current one at once. Executions
+ * use the set that was current when they started. If a changed file
+ * can't be read or parsed, the current set is kept and the error
+ * is available via {@link #getLastError()}.
+ * Changes are detected by {@link WatchService} and by polling
+ * the modification time and the size of the files, and are applied
+ * when the files haven't changed for the debounce time, counted from
+ * the modification time or the watch event.
+ * The name of the first file is the name of the executed template
+ */
+
+public class ReloadingTemplate implements Closeable
+{
+	private final FuncMap funcs;
+	/* Parse trees of the files, added to every new set as copies */
+	private final LinkedHashMap<File, HashMap<String, Tree>> files = new LinkedHashMap<>();
+	/* Modification time and size of the files when they were read */
+	private final HashMap<File, long[]> stamps = new HashMap<>();
+	private final String name;
+	private volatile Template current;
+	private volatile Exception lastError;
+
+	/* Files changed after they were read, and the time of the last change, in ms */
+	private final HashSet<File> changed = new HashSet<>();
+	private long changedAt;
+	/* Watched files by the absolute path */
+	private final HashMap<Path, File> paths = new HashMap<>();
+	private volatile long debounce = TimeUnit.MILLISECONDS.toNanos(200);
+	private volatile long pollInterval = TimeUnit.SECONDS.toNanos(1);
+	private WatchService watcher;
+	private Thread thread;
+	private volatile boolean closed;
+
+	/**
+	 * Parses the files
+	 *
+	 * @param funcs functions, can be null
+	 * @param files template files
+	 * @throws ParseException in case of a parse error
+	 * @throws IOException in case of an I/O error
+	 */
+	public ReloadingTemplate(FuncMap funcs, File... files) throws ParseException, IOException
+	{
+		if (files.length == 0)
+			throw new ParseException("no files");
+
+		this.funcs = funcs;
+		name = files[0].getName();
+		for (File file : files) {
+			stamps.put(file, stamp(file));
+			this.files.put(file, parse(file));
+		}
+		current = build();
+	}
+
+	/**
+	 * Configures the new template set before it becomes current,
+	 * e.g. sets the caches or adds the accessors. Called for each
+	 * parsed set, can be overridden
+	 *
+	 * @param set template set
+	 */
+	protected void configure(Template set)
+	{
+	}
+
+	/**
+	 * @return current template set
+	 */
+	public Template getTemplate()
+	{
+		return current;
+	}
+
+	/**
+	 * @return the error of the last reload, or null if it succeeded
+	 */
+	public Exception getLastError()
+	{
+		return lastError;
+	}
+
+	/**
+	 * Executes the current template, see {@link Template#execute(OutputStream, Object)}
+	 *
+	 * @param os {@link OutputStream} object
+	 * @param data data
+	 * @throws ExecException in case of an execute error
+	 */
+	public void execute(OutputStream os, Object data) throws ExecException
+	{
+		current.execute(os, data);
+	}
+
+	/**
+	 * Executes the current template using the render cache,
+	 * see {@link Template#execute(OutputStream, Object, Object)}
+	 *
+	 * @param os {@link OutputStream} object
+	 * @param data data
+	 * @param cacheKey key of the output
+	 * @throws ExecException in case of an execute error
+	 */
+	public void execute(OutputStream os, Object data, Object cacheKey) throws ExecException
+	{
+		current.execute(os, data, cacheKey);
+	}
+
+	/**
+	 * Sets the time during which the files must not change
+	 * before they are reparsed
+	 *
+	 * @param debounce debounce time
+	 * @param unit unit of debounce
+	 */
+	public void setDebounce(long debounce, TimeUnit unit)
+	{
+		if (debounce < 0)
+			throw new IllegalArgumentException("negative debounce");
+
+		this.debounce = unit.toNanos(debounce);
+	}
+
+	/**
+	 * Sets the interval of polling the modification time of the files
+	 *
+	 * @param interval poll interval
+	 * @param unit unit of interval
+	 */
+	public void setPollInterval(long interval, TimeUnit unit)
+	{
+		if (interval <= 0)
+			throw new IllegalArgumentException("non-positive interval");
+
+		pollInterval = unit.toNanos(interval);
+	}
+
+	/**
+	 * Starts the daemon thread that watches the files and reloads them
+	 *
+	 * @throws IOException in case of an I/O error
+	 */
+	public synchronized void startWatching() throws IOException
+	{
+		if (closed)
+			throw new IllegalStateException("closed");
+		if (thread != null)
+			return;
+
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			HashSet<Path> dirs = new HashSet<>();
+			for (File file : files.keySet()) {
+				dirs.add(file.getAbsoluteFile().getParentFile().toPath());
+				paths.put(file.getAbsoluteFile().toPath(), file);
+			}
+			for (Path dir : dirs)
+				dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					     StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException | UnsupportedOperationException e) {
+			/* Polling only */
+			if (watcher != null)
+				watcher.close();
+			watcher = null;
+		}
+
+		thread = new Thread("template-reload-" + name)
+		{
+			@Override
+			public void run()
+			{
+				watch();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Checks the files when the watch service reports the events, the
+	 * changes wait for the debounce time or the poll interval has passed
+	 * (the fallback for the changes that the watch service misses).
+	 * The files named by the events are changed even if their modification
+	 * time and size are the same, e.g. an edit in the same time tick.
+	 * The errors are reported by {@link #getLastError()}, watching goes on
+	 */
+	private void watch()
+	{
+		long polled = System.nanoTime();
+		while (!closed) {
+			try {
+				boolean pending = isPending();
+				long wait = (pending ? Math.max(debounce, 1) : pollInterval);
+				boolean events = false;
+				if (watcher != null) {
+					WatchKey key = watcher.poll(wait, TimeUnit.NANOSECONDS);
+					if (key != null) {
+						events = changed(key);
+						key.reset();
+					}
+				} else {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				long now = System.nanoTime();
+				if (events || pending || now - polled >= pollInterval) {
+					polled = now;
+					reload();
+				}
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			} catch (RuntimeException e) {
+				lastError = e;
+			}
+		}
+	}
+
+	/**
+	 * Marks the files named by the events as changed.
+	 * Returns true if the files must be checked
+	 */
+	private synchronized boolean changed(WatchKey key)
+	{
+		boolean check = false;
+		Path dir = (Path)key.watchable();
+		for (WatchEvent<?> e : key.pollEvents()) {
+			if (e.kind() == StandardWatchEventKinds.OVERFLOW) {
+				/* The events are lost, the stamps are checked */
+				check = true;
+			} else if (e.context() instanceof Path) {
+				File file = paths.get(dir.resolve((Path)e.context()));
+				if (file != null) {
+					change(file, System.currentTimeMillis());
+					check = true;
+				}
+			}
+		}
+
+		return check;
+	}
+
+	/**
+	 * Marks the file changed at the given time
+	 */
+	private void change(File file, long time)
+	{
+		time = Math.min(time, System.currentTimeMillis());
+		if (changed.isEmpty() || time > changedAt)
+			changedAt = time;
+		changed.add(file);
+	}
+
+	/**
+	 * Reports whether there are changed files waiting for the debounce time
+	 */
+	private synchronized boolean isPending()
+	{
+		return !changed.isEmpty();
+	}
+
+	/**
+	 * Checks the files and reparses the changed ones if they haven't
+	 * changed for the debounce time, counted from the latest modification
+	 * time of the changed files (or the watch event). Called by the watching
+	 * thread, can be called directly without watching: then the edit
+	 * is applied by the first call after the debounce time has passed
+	 *
+	 * @return true if the new template set became current
+	 */
+	public synchronized boolean reload()
+	{
+		for (File file : files.keySet()) {
+			long[] stamp = stamp(file);
+			long[] last = stamps.get(file);
+			if (stamp[0] != last[0] || stamp[1] != last[1]) {
+				stamps.put(file, stamp);
+				change(file, stamp[0]);
+			}
+		}
+		long quiet = System.currentTimeMillis() - changedAt;
+		if (changed.isEmpty() || TimeUnit.MILLISECONDS.toNanos(quiet) < debounce)
+			return false;
+
+		HashMap<File, HashMap<String, Tree>> parsed = new HashMap<>();
+		try {
+			for (File file : changed) {
+				/* The file is read after the stamp, so the later change isn't missed */
+				stamps.put(file, stamp(file));
+				parsed.put(file, parse(file));
+			}
+		} catch (IOException | ParseException e) {
+			/* Retried when the file changes again */
+			lastError = e;
+			changed.clear();
+			return false;
+		}
+
+		LinkedHashMap<File, HashMap<String, Tree>> previous = new LinkedHashMap<>(files);
+		files.putAll(parsed);
+		Template set;
+		try {
+			set = build();
+		} catch (ParseException | RuntimeException e) {
+			/* E.g. the templates conflict or configure() failed */
+			files.clear();
+			files.putAll(previous);
+			lastError = e;
+			changed.clear();
+			return false;
+		}
+		changed.clear();
+		lastError = null;
+		current = set;
+		/* The output of the old templates is never served, drop it */
+		RenderCache cache = set.common.renderCache;
+		if (cache != null)
+			cache.clear();
+
+		return true;
+	}
+
+	private HashMap<String, Tree> parse(File file) throws IOException, ParseException
+	{
+		String text = new String(FileUtils.bytes(file));
+		try {
+			return Tree.parse(file.getName(), text, null, null,
+					  (funcs != null ? funcs : new FuncMap()), FuncMap.builtins);
+		} catch (InternalException e) {
+			throw new ParseException(e);
+		}
+	}
+
+	private Template build() throws ParseException
+	{
+		Template set = new Template(name);
+		if (funcs != null)
+			set.addFuncs(funcs);
+		try {
+			/* Links the set once, after all trees are added */
+			for (Map.Entry<File, HashMap<String, Tree>> e : files.entrySet()) {
+				ArrayList<String> names = new ArrayList<>(e.getValue().keySet());
+				for (String n : names)
+					set.addTree(n, e.getValue().get(n).copy());
+			}
+			set.link();
+		} catch (InternalException e) {
+			throw new ParseException(e);
+		}
+		configure(set);
+
+		return set;
+	}
+
+	private static long[] stamp(File file)
+	{
+		return new long[]{file.lastModified(), file.length()};
+	}
+
+	/**
+	 * Stops watching the files
+	 *
+	 * @throws IOException in case of an I/O error
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		closed = true;
+		if (thread != null)
+			thread.interrupt();
+		if (watcher != null)
+			watcher.close();
+	}
+}
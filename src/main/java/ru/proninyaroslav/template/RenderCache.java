@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+import ru.proninyaroslav.template.exceptions.ExecException;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Bounded in-memory cache of the whole output of templates, see
+ * {@link Template#execute(java.io.OutputStream, Object, Object)}.
+ * The output is stored under the template name and the key given by
+ * the caller (e.g. the version or ETag of the data) and is valid until
+ * the template set is modified. When the total size of the output
+ * exceeds the limit, the least recently used output is evicted.
+ * With coalescing, concurrent renders of the same template and key
+ * wait for one of them instead of executing the template again.
+ * The cache is thread-safe
+ */
+
+public class RenderCache
+{
+	private final long maxSize;
+	/* In the access order, the eldest is the least recently used */
+	private LinkedHashMap<Key, Render> renders = new LinkedHashMap<>(16, 0.75f, true);
+	private long size;
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long coalesced;
+	/* Renders being executed, joined by the concurrent renders with coalescing */
+	private ConcurrentHashMap<Key, Flight> flights = new ConcurrentHashMap<>();
+	private volatile boolean coalescing;
+	private volatile long timeout;  /* nanoseconds, 0 if not limited */
+
+	private static final class Key
+	{
+		final String name;
+		final Object key;
+
+		Key(String name, Object key)
+		{
+			this.name = name;
+			this.key = key;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * name.hashCode() + key.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key)o;
+
+			return name.equals(k.name) && key.equals(k.key);
+		}
+	}
+
+	private static class Render
+	{
+		int version;    /* version of the template set */
+		byte[] output;
+
+		Render(int version, byte[] output)
+		{
+			this.version = version;
+			this.output = output;
+		}
+	}
+
+	private static class Flight
+	{
+		final int version;
+		final FutureTask<byte[]> task;
+
+		Flight(int version, FutureTask<byte[]> task)
+		{
+			this.version = version;
+			this.task = task;
+		}
+	}
+
+	/**
+	 * @param maxSize max total size of the output, in bytes
+	 */
+	public RenderCache(long maxSize)
+	{
+		if (maxSize < 0)
+			throw new IllegalArgumentException("negative size");
+
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Returns the output rendered by the given version
+	 * of the template set or null, counts the hit or the miss
+	 */
+	synchronized byte[] get(String name, int version, Object key)
+	{
+		Key k = new Key(name, key);
+		Render r = renders.get(k);
+		if (r != null && r.version != version) {
+			remove(k);
+			r = null;
+		}
+		if (r == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+
+		return r.output;
+	}
+
+	synchronized void put(String name, int version, Object key, byte[] output)
+	{
+		if (output.length > maxSize)
+			return;
+
+		Key k = new Key(name, key);
+		remove(k);
+		renders.put(k, new Render(version, output));
+		size += output.length;
+		Iterator<Map.Entry<Key, Render>> i = renders.entrySet().iterator();
+		while (size > maxSize && i.hasNext()) {
+			size -= i.next().getValue().output.length;
+			i.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Executes the render and stores the output. With coalescing,
+	 * if the same render is already being executed, waits for its output
+	 * or error
+	 */
+	byte[] render(String name, int version, Object key, Callable<byte[]> render) throws ExecException
+	{
+		if (!coalescing) {
+			byte[] output = call(render);
+			put(name, version, key, output);
+
+			return output;
+		}
+
+		Key k = new Key(name, key);
+		Flight flight = new Flight(version, new FutureTask<>(render));
+		Flight running = flights.putIfAbsent(k, flight);
+		if (running != null && running.version == version)
+			return await(name, running.task, true);
+		if (running != null) {
+			/* Rendered by the older templates */
+			byte[] output = call(render);
+			put(name, version, key, output);
+
+			return output;
+		}
+
+		try {
+			flight.task.run();
+			byte[] output = await(name, flight.task, false);
+			/* Stored before the later renders stop joining */
+			put(name, version, key, output);
+
+			return output;
+		} finally {
+			flights.remove(k, flight);
+		}
+	}
+
+	private static byte[] call(Callable<byte[]> render) throws ExecException
+	{
+		try {
+			return render.call();
+		} catch (ExecException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ExecException(e);
+		}
+	}
+
+	/**
+	 * Returns the output of the render, joined is true
+	 * if the render is executed by another thread
+	 */
+	private byte[] await(String name, FutureTask<byte[]> task, boolean joined) throws ExecException
+	{
+		long t = timeout;
+		try {
+			byte[] output = (joined && t > 0 ? task.get(t, TimeUnit.NANOSECONDS) : task.get());
+			if (joined) {
+				synchronized (this) {
+					coalesced++;
+				}
+			}
+
+			return output;
+		} catch (TimeoutException e) {
+			throw new ExecException(String.format("template: %s: timeout waiting for the concurrent render", name));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ExecException(e);
+		} catch (ExecutionException e) {
+			/* The error of the concurrent render */
+			Throwable cause = e.getCause();
+			if (cause instanceof ExecException && !joined)
+				throw (ExecException)cause;
+			else if (cause instanceof ExecException)
+				throw new ExecException(cause.getMessage());
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			else if (cause instanceof Error)
+				throw (Error)cause;
+			throw new ExecException((Exception)cause);
+		}
+	}
+
+	private void remove(Key key)
+	{
+		Render r = renders.remove(key);
+		if (r != null)
+			size -= r.output.length;
+	}
+
+	/**
+	 * Removes the stored output of all templates
+	 */
+	public synchronized void clear()
+	{
+		renders.clear();
+		size = 0;
+	}
+
+	/**
+	 * Enables waiting for the output of the concurrent render
+	 * of the same template and key
+	 *
+	 * @param coalescing true to coalesce renders
+	 */
+	public void setCoalescing(boolean coalescing)
+	{
+		this.coalescing = coalescing;
+	}
+
+	/**
+	 * Sets the max time to wait for the concurrent render,
+	 * after which the waiting render fails
+	 *
+	 * @param timeout timeout, 0 to wait without limit
+	 * @param unit unit of timeout
+	 */
+	public void setCoalescingTimeout(long timeout, TimeUnit unit)
+	{
+		if (timeout < 0)
+			throw new IllegalArgumentException("negative timeout");
+
+		this.timeout = unit.toNanos(timeout);
+	}
+
+	/**
+	 * @return number of the renders served from the cache
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * @return number of the renders executed because the output wasn't stored or was outdated
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * @return number of the outputs removed to free space
+	 */
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	/**
+	 * @return number of the renders that received the output of the concurrent render
+	 */
+	public synchronized long getCoalesced()
+	{
+		return coalesced;
+	}
+
+	/**
+	 * @return total size of the stored output, in bytes
+	 */
+	public synchronized long getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * @return number of the stored outputs
+	 */
+	public synchronized int getCount()
+	{
+		return renders.size();
+	}
+}
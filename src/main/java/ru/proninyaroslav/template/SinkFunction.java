@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+import java.io.Writer;
+
+/**
+ * Template function that writes its result to the output
+ * instead of returning it. If the result of the function
+ * is not printed (e.g. it's assigned to a variable or passed
+ * to another function), the written text is used as a string value.
+ * See {@link FuncMap#putSink(String, SinkFunction)}
+ */
+
+public interface SinkFunction
+{
+	/**
+	 * Writes the result for the arguments
+	 *
+	 * @param out output of the template
+	 * @param args arguments, including the final value of the pipeline
+	 * @throws Exception in case of an error, the execution stops
+	 */
+	void write(Writer out, Object... args) throws Exception;
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.proninyaroslav.template;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.*;
+import java.util.stream.BaseStream;
+
+/**
+ * View of the elements from..to of the collection, array, iterator,
+ * stream or spliterator, returned by first, skip and slice.
+ * The elements aren't copied: the source is iterated only up to the
+ * last element of the view. Slices of slices refer to the original source
+ */
+
+class Slice implements Iterable<Object>, AutoCloseable
+{
+	private Object source;
+	private int from;
+	/* Exclusive, -1 if there is no limit */
+	private int to;
+	/* Iterators, streams and spliterators can be iterated once */
+	private boolean iterated;
+
+	Slice(Object source, int from, int to)
+	{
+		if (from < 0 || to < -1)
+			throw new IllegalArgumentException("negative slice index");
+		if (to >= 0 && to < from)
+			throw new IllegalArgumentException(String.format("invalid slice index: %d > %d", from, to));
+
+		if (source instanceof Slice) {
+			Slice s = (Slice)source;
+			this.source = s.source;
+			this.from = s.from + from;
+			if (to < 0)
+				this.to = s.to;
+			else if (s.to < 0)
+				this.to = s.from + to;
+			else
+				this.to = Math.min(s.to, s.from + to);
+			if (this.to >= 0 && this.to < this.from)
+				this.to = this.from;
+		} else if (source instanceof Iterable || source instanceof Iterator ||
+			   source instanceof BaseStream || source instanceof Spliterator ||
+			   source.getClass().isArray()) {
+			this.source = source;
+			this.from = from;
+			this.to = to;
+		} else {
+			throw new IllegalArgumentException("can't slice object with type " + source.getClass());
+		}
+	}
+
+	@Override
+	public Iterator<Object> iterator()
+	{
+		if (source instanceof List && source instanceof RandomAccess) {
+			@SuppressWarnings("unchecked")
+			List<Object> list = (List<Object>)source;
+			int end = (to < 0 ? list.size() : Math.min(to, list.size()));
+
+			return list.subList(Math.min(from, end), end).iterator();
+
+		} else if (source.getClass().isArray()) {
+			final Object array = source;
+			final int end = (to < 0 ? Array.getLength(array) : Math.min(to, Array.getLength(array)));
+
+			return new Iterator<Object>()
+			{
+				private int i = from;
+
+				@Override
+				public boolean hasNext()
+				{
+					return i < end;
+				}
+
+				@Override
+				public Object next()
+				{
+					if (i >= end)
+						throw new NoSuchElementException();
+
+					return Array.get(array, i++);
+				}
+
+				@Override
+				public void remove()
+				{
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		final Iterator<?> i;
+		if (source instanceof Iterable) {
+			i = ((Iterable<?>)source).iterator();
+		} else {
+			if (iterated)
+				throw new IllegalStateException("the source of slice can be iterated only once");
+			iterated = true;
+			if (source instanceof BaseStream)
+				i = ((BaseStream<?, ?>)source).iterator();
+			else if (source instanceof Spliterator)
+				i = Spliterators.iterator((Spliterator<?>)source);
+			else
+				i = (Iterator<?>)source;
+		}
+
+		return new Iterator<Object>()
+		{
+			private int pos;
+
+			@Override
+			public boolean hasNext()
+			{
+				/* Skips up to the first element of the view */
+				for (; pos < from; pos++) {
+					if (!i.hasNext())
+						return false;
+					i.next();
+				}
+
+				return (to < 0 || pos < to) && i.hasNext();
+			}
+
+			@Override
+			public Object next()
+			{
+				if (!hasNext())
+					throw new NoSuchElementException();
+				pos++;
+
+				return i.next();
+			}
+
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Reports whether the source can be iterated only once,
+	 * so the slice can't be reused
+	 */
+	boolean isSingleUse()
+	{
+		return !(source instanceof Iterable) && !source.getClass().isArray();
+	}
+
+	/**
+	 * Closes the source, if it's closeable
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (!(source instanceof AutoCloseable))
+			return;
+		try {
+			((AutoCloseable)source).close();
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+import ru.proninyaroslav.template.exceptions.ExecException;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Partially evaluates a parse tree against the data that doesn't
+ * change between executions. References to the static data are replaced
+ * with values, with that dot is static is replaced with if and
+ * template invocations with static or the same data are expanded.
+ * The residual tree is expected to be passed to the {@link Optimizer}
+ */
+
+class Specializer
+{
+	/* Max nesting of expanded templates */
+	private static final int maxExpandDepth = 100;
+
+	/* Dot (or $) is the data passed to execute, only static roots are known */
+	private static final Object root = new Object();
+	/* Dot (or variable) is known only during execution */
+	private static final Object dynamic = new Object();
+
+	private Template tmpl;
+	private Object staticData;
+	private HashSet<String> staticRoots; /* null if the whole data is static */
+	/* Static values of the variables; dynamic if unknown */
+	private ArrayList<Template.Variable> vars = new ArrayList<>();
+	/* Variables declared or assigned more than once can't be static */
+	private HashSet<String> changing = new HashSet<>();
+	private ArrayList<String> expanding = new ArrayList<>();
+
+	/**
+	 * Holds the value of dot during specialization
+	 */
+	private static class Scope
+	{
+		Object dot;          /* root, dynamic or a static value */
+		boolean unresolved;  /* a reference to the static dot couldn't be evaluated */
+		Scope template;      /* the scope of the enclosing template, its dot is $ */
+
+		Scope(Object dot, Scope template)
+		{
+			this.dot = dot;
+			this.template = (template == null ? this : template);
+		}
+	}
+
+	Specializer(Template tmpl, Object staticData, String... staticRoots)
+	{
+		this.tmpl = tmpl;
+		this.staticData = staticData;
+		if (staticRoots.length > 0)
+			this.staticRoots = new HashSet<>(Arrays.asList(staticRoots));
+	}
+
+	void specialize(Tree tree)
+	{
+		if (tree == null || tree.root == null)
+			return;
+
+		Object data = (staticRoots == null ? staticData : root);
+		HashSet<String> names = new HashSet<>();
+		collectChanging(tree.root, names);
+		specializeList(tree.root, new Scope(data, null));
+	}
+
+	private void specializeList(Node.List list, Scope scope)
+	{
+		for (int i = 0; i < list.nodes.size(); i++)
+			list.nodes.set(i, specializeNode(list.nodes.get(i), scope));
+	}
+
+	/**
+	 * Returns the replacement of the node
+	 */
+	private Node specializeNode(Node node, Scope scope)
+	{
+		if (node instanceof Node.Action) {
+			Node.Action action = (Node.Action)node;
+			specializePipe(action.pipe, scope);
+			declare(action.pipe);
+
+		} else if (node instanceof Node.If) {
+			Node.If nodeIf = (Node.If)node;
+			int mark = vars.size();
+			specializePipe(nodeIf.pipe, scope);
+			declare(nodeIf.pipe);
+			specializeList(nodeIf.list, scope);
+			if (nodeIf.elseList != null)
+				specializeList(nodeIf.elseList, scope);
+			pop(mark);
+
+		} else if (node instanceof Node.With) {
+			return specializeWith((Node.With)node, scope);
+
+		} else if (node instanceof Node.Cache) {
+			Node.Cache cache = (Node.Cache)node;
+			int mark = vars.size();
+			specializePipe(cache.pipe, scope);
+			declare(cache.pipe);
+			specializeList(cache.list, scope);
+			pop(mark);
+
+		} else if (node instanceof Node.Switch) {
+			Node.Switch sw = (Node.Switch)node;
+			int mark = vars.size();
+			specializePipe(sw.pipe, scope);
+			declare(sw.pipe);
+			for (Node.Case c : sw.cases)
+				specializeList(c.list, scope);
+			if (sw.defaultList != null)
+				specializeList(sw.defaultList, scope);
+			pop(mark);
+
+		} else if (node instanceof Node.For) {
+			Node.For f = (Node.For)node;
+			int mark = vars.size();
+			specializePipe(f.pipe, scope);
+			for (Node.Assign var : f.pipe.vars)
+				push(var.ident.get(0), dynamic);
+			specializeList(f.list, new Scope(dynamic, scope.template));
+			pop(mark);
+			if (f.elseList != null)
+				specializeList(f.elseList, scope);
+
+		} else if (node instanceof Node.Template) {
+			return expand((Node.Template)node, scope);
+		} else if (node instanceof Node.Inline) {
+			return expand(((Node.Inline)node).call, scope);
+		}
+
+		return node;
+	}
+
+	private Node specializeWith(Node.With with, Scope scope)
+	{
+		int mark = vars.size();
+		specializePipe(with.pipe, scope);
+		declare(with.pipe);
+		Object[] val = Optimizer.foldedValue(with.pipe);
+		Scope withScope = new Scope(dynamic, scope.template);
+		if (val != null) {
+			try {
+				withScope.dot = val[0];
+				if (!Utils.isTrue(val[0]))
+					withScope = null;
+			} catch (IllegalArgumentException e) {
+				/* The error will be reported during execution */
+				withScope.dot = dynamic;
+			}
+		}
+		if (withScope != null)
+			specializeList(with.list, withScope);
+		if (with.elseList != null)
+			specializeList(with.elseList, scope);
+		pop(mark);
+
+		/* The body doesn't need the dot anymore */
+		if (val != null && withScope != null && withScope.dot != dynamic && !withScope.unresolved)
+			return with.tree.newIf(with.pos, with.pipe, with.list, with.elseList);
+
+		return with;
+	}
+
+	/**
+	 * Replaces the template invocation with its body, if the argument
+	 * is static or the same data, that passed to execute
+	 */
+	private Node expand(Node.Template template, Scope scope)
+	{
+		Object dot = null;
+		if (template.pipe != null) {
+			specializePipe(template.pipe, scope);
+			if (!template.pipe.vars.isEmpty())
+				return template;
+			Object[] val = Optimizer.foldedValue(template.pipe);
+			if (val != null)
+				dot = val[0];
+			else if (isRoot(template.pipe, scope))
+				dot = root;
+			else
+				return template;
+		}
+
+		Template callee = tmpl.common.tmpl.get(template.name);
+		if (callee == null || callee.tree == null || callee.tree.root == null ||
+		    expanding.contains(template.name) || expanding.size() == maxExpandDepth)
+			return template;
+
+		Node.List body = callee.tree.root.copyList();
+		ArrayList<Template.Variable> outerVars = vars;
+		HashSet<String> outerChanging = changing;
+		vars = new ArrayList<>();
+		changing = new HashSet<>();
+		collectChanging(body, new HashSet<String>());
+		expanding.add(template.name);
+		Scope calleeScope = new Scope(dot, null);
+		try {
+			specializeList(body, calleeScope);
+		} finally {
+			expanding.remove(expanding.size() - 1);
+			vars = outerVars;
+			changing = outerChanging;
+		}
+		/* $ of the callee would refer to $ of the caller */
+		if (dot != root && calleeScope.unresolved)
+			return template;
+
+		/* Variables of the callee are scoped to its body */
+		Node.Pipe pipe = template.tree.newPipeline(template.pos, new ArrayList<Node.Assign>());
+		Node.Command cmd = template.tree.newCommand(template.pos);
+		cmd.append(template.tree.newBool(template.pos, true));
+		pipe.append(cmd);
+
+		return template.tree.newIf(template.pos, pipe, body, null);
+	}
+
+	/**
+	 * Reports whether the pipeline is dot or $, which
+	 * refer to the data passed to execute
+	 */
+	private static boolean isRoot(Node.Pipe pipe, Scope scope)
+	{
+		if (pipe.cmds.size() != 1 || pipe.cmds.get(0).args.size() != 1)
+			return false;
+		Node arg = pipe.cmds.get(0).args.get(0);
+		if (arg instanceof Node.Dot)
+			return scope.dot == root;
+		if (arg instanceof Node.Assign) {
+			List<String> ident = ((Node.Assign)arg).ident;
+			return ident.size() == 1 && ident.get(0).equals("$") &&
+				scope.template.dot == root;
+		}
+
+		return false;
+	}
+
+	private void specializePipe(Node.Pipe pipe, Scope scope)
+	{
+		if (pipe == null)
+			return;
+
+		for (int i = 0; i < pipe.cmds.size(); i++) {
+			Node.Command cmd = pipe.cmds.get(i);
+			for (int j = 0; j < cmd.args.size(); j++) {
+				/* Fields of the first word get the arguments and the previous value */
+				boolean isValue = j > 0 || (i == 0 && cmd.args.size() == 1);
+				cmd.args.set(j, specializeArg(cmd.args.get(j), isValue, scope));
+			}
+		}
+	}
+
+	/**
+	 * Returns the replacement of the argument.
+	 * isValue means that the argument isn't called with arguments
+	 */
+	private Node specializeArg(Node arg, boolean isValue, Scope scope)
+	{
+		if (arg instanceof Node.Dot) {
+			if (scope.dot == root || scope.dot == dynamic)
+				return arg;
+			if (isValue)
+				return arg.tree.newValue(arg.pos, scope.dot);
+			scope.unresolved = true;
+
+		} else if (arg instanceof Node.Field) {
+			return resolve(arg, scope.dot, ((Node.Field)arg).ident,
+				       isValue, scope);
+
+		} else if (arg instanceof Node.Assign) {
+			List<String> ident = ((Node.Assign)arg).ident;
+			String name = ident.get(0);
+			if (name.equals("$")) {
+				if (ident.size() == 1 && scope.template.dot == root)
+					return arg;
+				return resolve(arg, scope.template.dot,
+					       ident.subList(1, ident.size()), isValue, scope.template);
+			}
+			Object val = varValue(name);
+			if (val != dynamic)
+				return resolve(arg, val, ident.subList(1, ident.size()), isValue, null);
+
+		} else if (arg instanceof Node.Chain) {
+			Node.Chain chain = (Node.Chain)arg;
+			chain.node = specializeArg(chain.node, true, scope);
+			if (chain.node instanceof Node.Value)
+				return resolve(arg, ((Node.Value)chain.node).value,
+					       chain.field, isValue, null);
+
+		} else if (arg instanceof Node.Pipe) {
+			specializePipe((Node.Pipe)arg, scope);
+		}
+
+		return arg;
+	}
+
+	/**
+	 * Evaluates the fields of the static receiver and returns
+	 * the value or the chain with the method that gets arguments.
+	 * Returns the node unchanged, if the receiver isn't static
+	 * or the evaluating failed; in the last case marks the scope
+	 * (if any) as unresolved
+	 */
+	private Node resolve(Node node, Object receiver, List<String> fields,
+			     boolean isValue, Scope scope)
+	{
+		if (receiver == dynamic)
+			return node;
+		if (receiver == root) {
+			if (fields.isEmpty() || !staticRoots.contains(fields.get(0)))
+				return node;
+			receiver = staticData;
+		}
+		if (fields.isEmpty()) {
+			if (isValue)
+				return node.tree.newValue(node.pos, receiver);
+			if (scope != null)
+				scope.unresolved = true;
+			return node;
+		}
+
+		int n = (isValue ? fields.size() : fields.size() - 1);
+		Object[] val = evalFields(node, receiver, fields.subList(0, n));
+		if (val == null) {
+			if (scope != null)
+				scope.unresolved = true;
+			return node;
+		}
+		Node.Value value = node.tree.newValue(node.pos, val[0]);
+		if (isValue)
+			return value;
+
+		return new Node.Chain(node.tree, node.pos, value,
+				      fields.subList(n, fields.size()));
+	}
+
+	/**
+	 * Returns the value of fields of the receiver (wrapped
+	 * in the array, since it can be null) or null in case of an error
+	 */
+	private Object[] evalFields(Node node, Object receiver, List<String> fields)
+	{
+		if (fields.isEmpty())
+			return new Object[]{receiver};
+
+		Node.Pipe pipe = node.tree.newPipeline(node.pos, new ArrayList<Node.Assign>());
+		Node.Command cmd = node.tree.newCommand(node.pos);
+		cmd.append(new Node.Chain(node.tree, node.pos,
+					  node.tree.newValue(node.pos, receiver), fields));
+		pipe.append(cmd);
+
+		ArrayList<Template.Variable> execVars = new ArrayList<>();
+		execVars.add(new Template.Variable("$", null));
+		Exec state = new Exec(tmpl, new PrintWriter(new StringWriter()), execVars);
+		try {
+			return new Object[]{state.evalPipeline(null, pipe)};
+		} catch (ExecException e) {
+			return null;
+		}
+	}
+
+	private void declare(Node.Pipe pipe)
+	{
+		if (!pipe.decl)
+			return;
+
+		Object[] val = Optimizer.foldedValue(pipe);
+		for (Node.Assign var : pipe.vars) {
+			String name = var.ident.get(0);
+			push(name, (val == null || changing.contains(name) ? dynamic : val[0]));
+		}
+	}
+
+	private void push(String name, Object value)
+	{
+		vars.add(new Template.Variable(name, value));
+	}
+
+	private void pop(int mark)
+	{
+		vars.subList(mark, vars.size()).clear();
+	}
+
+	private Object varValue(String name)
+	{
+		for (int i = vars.size() - 1; i >= 0; i--)
+			if (vars.get(i).name.equals(name))
+				return vars.get(i).value;
+
+		return dynamic;
+	}
+
+	/**
+	 * Collects variables that are assigned or declared more than once
+	 */
+	private void collectChanging(Node node, HashSet<String> declared)
+	{
+		if (node instanceof Node.List) {
+			for (Node n : ((Node.List)node).nodes)
+				collectChanging(n, declared);
+		} else if (node instanceof Node.Action) {
+			collectChanging(((Node.Action)node).pipe, declared);
+		} else if (node instanceof Node.Branch) {
+			Node.Branch branch = (Node.Branch)node;
+			collectChanging(branch.pipe, declared);
+			collectChanging(branch.list, declared);
+			if (branch.elseList != null)
+				collectChanging(branch.elseList, declared);
+		} else if (node instanceof Node.Switch) {
+			Node.Switch sw = (Node.Switch)node;
+			collectChanging(sw.pipe, declared);
+			for (Node.Case c : sw.cases)
+				collectChanging(c.list, declared);
+			if (sw.defaultList != null)
+				collectChanging(sw.defaultList, declared);
+		} else if (node instanceof Node.Template) {
+			collectChanging(((Node.Template)node).pipe, declared);
+		} else if (node instanceof Node.Inline) {
+			collectChanging(((Node.Inline)node).call.pipe, declared);
+		} else if (node instanceof Node.Pipe) {
+			Node.Pipe pipe = (Node.Pipe)node;
+			for (Node.Assign var : pipe.vars) {
+				String name = var.ident.get(0);
+				if (!pipe.decl || !declared.add(name))
+					changing.add(name);
+			}
+		}
+	}
+}
@@ -21,8 +21,9 @@ import ru.proninyaroslav.template.exceptions.InternalException;
 import ru.proninyaroslav.template.exceptions.ParseException;
 
 import java.io.*;
-import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -34,18 +35,42 @@ public class Template
 	String name;
 	private String leftDelim;
 	private String rightDelim;
+	/* Memoization of field chains and pure functions during execution */
+	boolean memoization = true;
+	int memoLimit = 1024;
 	Tree tree;
 	Common common;
+	/* Versions are unique across the sets, so outputs cached by version aren't confused */
+	private static final AtomicInteger versions = new AtomicInteger();
 
 	/**
 	 * Holds the information shared by related templates
 	 */
 	class Common
 	{
-		FuncMap funcs;
-		/* Protects funcs */
+		/* Identifies the set in the fragment cache */
+		final int id = versions.incrementAndGet();
+		/* Replaced on modification, so it can be read without locking */
+		volatile FuncMap funcs;
+		/* Serializes modifications of funcs and the trees */
 		final ReentrantLock funcsLock = new ReentrantLock();
 		HashMap<String, Template> tmpl;
+		/* Changed every time the set is modified, invalidates resolved invocations */
+		volatile int version;
+		/*
+		 * Changed every time the set, the functions or the accessors are modified,
+		 * invalidates the cached output. Separate from version, which is
+		 * the stamp of the link and is changed only with relinking
+		 */
+		volatile int generation;
+		/* Replaced when an accessor is added, with the empty cache */
+		volatile Accessors accessors = new Accessors(new PropertyAccessor[0]);
+		/* Output of the cache actions, null if not cached */
+		volatile FragmentCache fragmentCache;
+		/* Output of the templates, see execute(OutputStream, Object, Object) */
+		volatile RenderCache renderCache;
+		/* Loop invariants of all templates, replaced by relinking */
+		volatile Hoister.Table hoisted = Hoister.Table.empty;
 
 		Common()
 		{
@@ -116,7 +141,8 @@ public class Template
 		}
 
 		for (String name : trees.keySet())
-			addParseTree(name, trees.get(name));
+			addTree(name, trees.get(name));
+		link();
 	}
 
 	public void parse(InputStream input) throws InternalException, ParseException, IOException
@@ -235,15 +261,62 @@ public class Template
 		ArrayList<Variable> vars = new ArrayList<>();
 		vars.add(new Variable("$", data));
 		Exec state = new Exec(this, new PrintWriter(os), vars);
+		state.os = os;
 		try {
 			if (tree == null || tree.root == null)
 				state.errorf("%s is an incomplete or empty template", name);
-			state.walk(data, tree.root);
+			state.walk(state.force(data), tree.root);
 		} finally {
 			state.pw.close();
 		}
 	}
 
+	/**
+	 * Applies a parsed template to the specified data object like
+	 * {@link #execute(OutputStream, Object)}, using the render cache
+	 * of the template set (see {@link #setRenderCache(RenderCache)}):
+	 * if the output for the key is stored and the templates
+	 * haven't changed since, it's written without executing the template.
+	 * The key must change when the data changes, e.g. the version or ETag
+	 * of the data. Without the cache or the key the template is executed
+	 *
+	 * @param os {@link OutputStream} object
+	 * @param data data
+	 * @param cacheKey key of the output, compared with equals()
+	 * @throws ExecException in case of an execute error
+	 */
+	public void execute(OutputStream os, Object data, Object cacheKey) throws ExecException
+	{
+		RenderCache cache = common.renderCache;
+		if (cache == null || cacheKey == null) {
+			execute(os, data);
+			return;
+		}
+
+		/* The stream is closed like by execute() */
+		try (OutputStream out = os) {
+			/* The output of the older templates won't be served */
+			int version = common.generation;
+			byte[] output = cache.get(name, version, cacheKey);
+			if (output == null) {
+				output = cache.render(name, version, cacheKey, new Callable<byte[]>()
+				{
+					@Override
+					public byte[] call() throws Exception
+					{
+						ByteArrayOutputStream buf = new ByteArrayOutputStream();
+						execute(buf, data);
+
+						return buf.toByteArray();
+					}
+				});
+			}
+			out.write(output);
+		} catch (IOException e) {
+			throw new ExecException(e);
+		}
+	}
+
 	/**
 	 * Applies the template associated with this template that has the given name
 	 * to the specified data object and writes the output to OutputStream
@@ -270,18 +343,208 @@ public class Template
 
 		common.funcsLock.lock();
 		try {
-			common.funcs.put(funcs);
+			FuncMap newFuncs = new FuncMap();
+			newFuncs.put(common.funcs);
+			newFuncs.put(funcs);
+			common.funcs = newFuncs;
+			/* Functions purity might have changed */
+			hoist();
+			clearRenders();
 		} finally {
 			common.funcsLock.unlock();
 		}
 	}
 
+	/**
+	 * Adds the property accessor to the template set. Accessors resolve
+	 * the fields of the data that aren't public fields or methods
+	 * with the same name, e.g. {@link BeanAccessor}
+	 *
+	 * @param accessor property accessor
+	 */
+	public void addAccessor(PropertyAccessor accessor)
+	{
+		if (accessor == null)
+			throw new NullPointerException();
+
+		common.funcsLock.lock();
+		try {
+			PropertyAccessor[] providers = common.accessors.providers;
+			PropertyAccessor[] newProviders = Arrays.copyOf(providers, providers.length + 1);
+			newProviders[providers.length] = accessor;
+			common.accessors = new Accessors(newProviders);
+			clearRenders();
+		} finally {
+			common.funcsLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the cache for the output of {{cache}} actions of this template
+	 * and all associated templates. Without the cache the fragments
+	 * are executed every time
+	 *
+	 * @param cache fragment cache, null to disable caching
+	 */
+	public void setFragmentCache(FragmentCache cache)
+	{
+		common.fragmentCache = cache;
+	}
+
+	/**
+	 * Sets the cache for the output of this template and all associated
+	 * templates, used by {@link #execute(OutputStream, Object, Object)}.
+	 * The stored output is dropped when the templates are parsed or added,
+	 * the functions or the accessors are added
+	 *
+	 * @param cache render cache, null to disable caching
+	 */
+	public void setRenderCache(RenderCache cache)
+	{
+		common.renderCache = cache;
+	}
+
+	/**
+	 * Drops the stored output. The generation is changed too, so the output
+	 * of the renders that are still running won't be served
+	 */
+	private void clearRenders()
+	{
+		common.generation = versions.incrementAndGet();
+		RenderCache cache = common.renderCache;
+		if (cache != null)
+			cache.clear();
+	}
+
+	/**
+	 * Optimizes the parse trees of this template and all associated templates:
+	 * pipelines of constants and pure predefined functions
+	 * are evaluated once, actions, if, with and for whose output depends
+	 * only on constants are replaced with text.
+	 * Should be called after the templates have been parsed
+	 * and the functions have been added, the output of execution doesn't change.
+	 *
+	 * @return number of removed nodes
+	 */
+	public int optimize()
+	{
+		if (common == null)
+			return 0;
+
+		int removed = 0;
+		common.funcsLock.lock();
+		try {
+			for (Template t : common.tmpl.values())
+				removed += new Optimizer(t).optimize(t.tree);
+		} finally {
+			common.funcsLock.unlock();
+		}
+
+		return removed;
+	}
+
+	/**
+	 * Returns the paths of the data that the template reads, relative to
+	 * the data passed to execute, e.g. Orders[].Customer.Name.
+	 * Follows dot rebinding by with and for, variables and
+	 * the invocations of the associated templates. The analysis is static:
+	 * the paths read from the results of functions aren't included.
+	 * Can be used to fetch or project only the needed data before execution
+	 *
+	 * @return tree of paths
+	 */
+	public DataPaths accessedPaths()
+	{
+		if (common == null)
+			return new DataPaths();
+
+		common.funcsLock.lock();
+		try {
+			return new PathAnalyzer(this).analyze();
+		} finally {
+			common.funcsLock.unlock();
+		}
+	}
+
+	/**
+	 * Partially evaluates the template against the data that doesn't change
+	 * between executions (e.g. configuration, feature flags, locale) and returns
+	 * the residual template. The associated templates are copied to the residual
+	 * template set as is. In the residual template:
+	 * references to the static data are replaced with their values,
+	 * if and with decided by the static data are eliminated,
+	 * template invocations with the static data or the data passed
+	 * to execute are expanded. Then the template is optimized (see {@link #optimize()}).
+	 * The residual template must be executed with the data which static
+	 * fields have the same values as in staticData
+	 *
+	 * @param staticData data
+	 * @param staticRoots names of the top-level fields of the data that are static.
+	 *                    If none, the whole data is static
+	 * @return residual template
+	 */
+	public Template specialize(Object staticData, String... staticRoots)
+	{
+		Template t = new Template(name);
+		t.leftDelim = leftDelim;
+		t.rightDelim = rightDelim;
+		common.funcsLock.lock();
+		try {
+			t.common.funcs.put(common.funcs);
+			for (Template tmpl : common.tmpl.values()) {
+				Template copy = (tmpl.name.equals(name) ? t : new Template(tmpl.name, t));
+				if (tmpl.tree != null)
+					copy.tree = tmpl.tree.copy();
+				t.common.tmpl.put(copy.name, copy);
+			}
+			if (t.tree != null) {
+				new Specializer(t, staticData, staticRoots).specialize(t.tree);
+				new Optimizer(t).optimize(t.tree);
+			}
+		} finally {
+			common.funcsLock.unlock();
+		}
+
+		t.link();
+
+		return t;
+	}
+
 	public void setDelims(String left, String right)
 	{
 		leftDelim = left;
 		rightDelim = right;
 	}
 
+	/**
+	 * Enables or disables memoization during execution (enabled by default).
+	 * Within one execution, the result of a chain of fields and keys,
+	 * such as .user.profile.name, is computed once for the receiver,
+	 * and the result of a function marked as pure with
+	 * {@link FuncMap#markPure(String...)} is computed once for the arguments.
+	 * The results are discarded after the call of a method or an impure
+	 * function, which may change the data. If the data is changed
+	 * otherwise during execution, memoization must be disabled
+	 *
+	 * @param enabled true to enable memoization
+	 */
+	public void setMemoization(boolean enabled)
+	{
+		memoization = enabled;
+	}
+
+	/**
+	 * Sets the maximum number of results memoized by one execution
+	 *
+	 * @param limit maximum number of results
+	 */
+	public void setMemoLimit(int limit)
+	{
+		if (limit < 0)
+			throw new IllegalArgumentException("limit must not be negative");
+		memoLimit = limit;
+	}
+
 	public Template[] getTemplates()
 	{
 		if (common == null)
@@ -309,6 +572,15 @@ public class Template
 	 * @throws ParseException in case of an execute error
 	 */
 	public void addParseTree(String name, Tree tree) throws InternalException, ParseException
+	{
+		addTree(name, tree);
+		link();
+	}
+
+	/**
+	 * Adds the parse tree without linking, see {@link #link()}
+	 */
+	void addTree(String name, Tree tree) throws InternalException, ParseException
 	{
 		/* If the name is the name of this template, overwrite this template */
 		Template newTemplate = this;
@@ -317,6 +589,7 @@ public class Template
 
 		if (associate(newTemplate, tree) || newTemplate.tree == null)
 			newTemplate.tree = tree;
+		clearRenders();
 	}
 
 	/**
@@ -334,21 +607,61 @@ public class Template
 		if (old != null && Tree.isEmptyTree(tree.root) && old.tree != null)
 			return false;
 		common.tmpl.put(newTemplate.name, newTemplate);
+		common.version = versions.incrementAndGet();
 
 		return true;
 	}
 
-	List<Method> findFunc(String name)
+	/**
+	 * Resolves template invocations and finds loop invariants
+	 * in all associated templates. Called after the set has been modified
+	 */
+	void link()
 	{
 		common.funcsLock.lock();
 		try {
-			List<Method> func = common.funcs.get(name);
-			if (func != null)
-				return func;
+			new Linker(common).link();
+			hoist();
 		} finally {
 			common.funcsLock.unlock();
 		}
+	}
+
+	/**
+	 * Finds loop invariants in all associated templates and replaces
+	 * the table of the set at once. Must be called with funcsLock held
+	 */
+	private void hoist()
+	{
+		Hoister hoister = new Hoister(this);
+		for (Template t : common.tmpl.values())
+			hoister.hoist(t.tree);
+		common.hoisted = hoister.table();
+	}
+
+	/**
+	 * Returns the methods or the function object (see {@link FuncMap#find(String)}),
+	 * the template functions override the builtins
+	 */
+	Object findFunc(String name)
+	{
+		Object func = common.funcs.find(name);
+		if (func != null)
+			return func;
+
+		return FuncMap.builtins.find(name);
+	}
+
+	/**
+	 * Reports whether the function is pure, taking into account
+	 * that the template functions override the builtins.
+	 * Must be called with funcsLock held
+	 */
+	boolean isPureFunc(String name)
+	{
+		if (common.funcs.contains(name))
+			return common.funcs.isPure(name);
 
-		return FuncMap.builtins.get(name);
+		return FuncMap.builtins.isPure(name);
 	}
 }
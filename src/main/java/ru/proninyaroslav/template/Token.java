@@ -52,7 +52,11 @@ class Token
 		ELSE,
 		END,
 		DEFINE,
-		TEMPLATE
+		TEMPLATE,
+		SWITCH,
+		CASE,
+		DEFAULT,
+		CACHE
 	}
 
 	public Type type;
@@ -36,6 +36,7 @@ public class Tree
 	private Token[] token = new Token[3];   /* three-token lookahead for parser */
 	private int peekCount;
 	private int forDepth;			/* nesting level of for loops */
+	private int cacheVars = -1;		/* variables defined outside of the innermost cache, -1 if none */
 	private FuncMap[] funcs;
 	private ArrayList<String> vars;         /* variables defined at the moment */
 	private HashMap<String, Tree> treeSet;
@@ -55,6 +56,18 @@ public class Tree
 		this.funcs = funcs;
 	}
 
+	/**
+	 * Returns a deep copy of the tree. Parsing state is not preserved
+	 */
+	public Tree copy()
+	{
+		Tree tree = new Tree(name, parseName, text);
+		if (root != null)
+			tree.root = root.copyList();
+
+		return tree;
+	}
+
 	public static HashMap<String, Tree> parse(String name, String text,
 						  String leftDelim, String rightDelim,
 						  FuncMap... funcs) throws ParseException, InternalException
@@ -160,7 +173,7 @@ public class Tree
 
 		if (node instanceof Node.List) {
 			for (Node n : ((Node.List)node).nodes)
-				if (isEmptyTree(n))
+				if (!isEmptyTree(n))
 					return false;
 			return true;
 		} else if (node instanceof Node.Text) {
@@ -169,7 +182,9 @@ public class Tree
 			!(node instanceof Node.If) &&
 			!(node instanceof Node.For) &&
 			!(node instanceof Node.Template) &&
-			!(node instanceof Node.With)) {
+			!(node instanceof Node.Switch) &&
+			!(node instanceof Node.With) &&
+			!(node instanceof Node.Cache)) {
 			throw new ParseException(String.format("unknown node: %s", node));
 		}
 
@@ -311,6 +326,18 @@ public class Tree
 		return null;
 	}
 
+	/**
+	 * Errors if the assigned variable is defined outside of the enclosing cache:
+	 * the body isn't executed when the output is stored, so the assignment
+	 * would take place only sometimes
+	 */
+	private void checkAssign(String name) throws ParseException
+	{
+		int i = vars.lastIndexOf(name);
+		if (i >= 0 && i < cacheVars)
+			errorf("can't assign variable %s defined outside of cache", name);
+	}
+
 	/**
 	 * Trims the variable list to the specified length
 	 */
@@ -335,8 +362,7 @@ public class Tree
 				backupTwo(delim);
 			}
 			Node n = textOrAction();
-			if (n == null || n.type == Node.Type.END ||
-			    n.type == Node.Type.ELSE)
+			if (n == null || isListEnd(n))
 				errorf("unexpected %s", n);
 			else
 				root.append(n);
@@ -372,23 +398,33 @@ public class Tree
 	/**
 	 * tokenList:
 	 *  textOrAction*
-	 *  Terminates at {end} or {else}, returned separately
+	 *  Terminates at {end}, {else}, {case} or {default}, returned separately
 	 */
 	private void tokenList(Node.List[] outList, Node[] outNode) throws ParseException, InternalException
 	{
 		outList[0] = newList(peekNonSpace().pos);
 		while (peekNonSpace().type != Token.Type.EOF) {
 			outNode[0] = textOrAction();
-			if (outNode[0] != null &&
-				(outNode[0].type == Node.Type.END ||
-					outNode[0].type == Node.Type.ELSE)) {
+			if (outNode[0] != null && isListEnd(outNode[0]))
 				return;
-			}
 			outList[0].append(outNode[0]);
 		}
 		errorf("unexpected EOF");
 	}
 
+	private static boolean isListEnd(Node node)
+	{
+		switch (node.type) {
+			case END:
+			case ELSE:
+			case CASE:
+			case DEFAULT:
+				return true;
+			default:
+				return false;
+		}
+	}
+
 	/**
 	 * textOrAction:
 	 *  text | action
@@ -435,6 +471,14 @@ public class Tree
 				return breakControl();
 			case CONTINUE:
 				return continueControl();
+			case SWITCH:
+				return switchControl();
+			case CACHE:
+				return cacheControl();
+			case CASE:
+				return caseControl();
+			case DEFAULT:
+				return newDefault(expect(Token.Type.RIGHT_DELIM, "default").pos);
 		}
 		backup();
 		token = peek();
@@ -464,9 +508,29 @@ public class Tree
 			Token next = peekNonSpace();
 			if (next.type == Token.Type.ASSIGN || next.type == Token.Type.DECLARE) {
 				nextNonSpace();
+				if (next.type == Token.Type.ASSIGN)
+					checkAssign(v.val);
 				vars.add(newVariable(v.pos, v.val));
 				this.vars.add(v.val);
 				decl = next.type == Token.Type.DECLARE;
+			} else if (next.type == Token.Type.CHAR && next.val.equals(",") &&
+				   context.equals("for")) {
+				/* The index (or key) and the element of the for loop */
+				nextNonSpace();
+				Token v2 = nextNonSpace();
+				Token assign = nextNonSpace();
+				if (v2.type != Token.Type.VARIABLE ||
+				    (assign.type != Token.Type.ASSIGN && assign.type != Token.Type.DECLARE))
+					errorf("for can only initialize variables");
+				if (assign.type == Token.Type.ASSIGN) {
+					checkAssign(v.val);
+					checkAssign(v2.val);
+				}
+				vars.add(newVariable(v.pos, v.val));
+				vars.add(newVariable(v2.pos, v2.val));
+				this.vars.add(v.val);
+				this.vars.add(v2.val);
+				decl = assign.type == Token.Type.DECLARE;
 			} else if (tokenAfterVariable.type == Token.Type.SPACE) {
 				backupThree(v, tokenAfterVariable);
 			} else {
@@ -561,10 +625,34 @@ public class Tree
 		if (cmd.args.size() == 0) {
 			errorf("empty command");
 		}
+		if (cmd.args.size() > 1 && cmd.args.get(0) instanceof Node.Identifier &&
+		    ((Node.Identifier)cmd.args.get(0)).intrinsic == Intrinsic.PRINTF &&
+		    cmd.args.get(1) instanceof Node.StringConst)
+			cmd.format = FormatPlan.compile(((Node.StringConst)cmd.args.get(1)).text);
+		else if (cmd.args.size() > 3 && cmd.args.get(0) instanceof Node.Identifier &&
+			 ((Node.Identifier)cmd.args.get(0)).intrinsic == Intrinsic.EQ)
+			cmd.constants = eqConstants(cmd.args);
 
 		return cmd;
 	}
 
+	/**
+	 * Returns the set of values of eq operands after the first one,
+	 * if all of them are constants, otherwise null
+	 */
+	private static HashSet<Object> eqConstants(List<Node> args)
+	{
+		HashSet<Object> constants = new HashSet<>();
+		for (int i = 2; i < args.size(); i++) {
+			Node arg = args.get(i);
+			if (!Node.Case.isConstant(arg))
+				return null;
+			constants.add(Node.Case.value(arg));
+		}
+
+		return constants;
+	}
+
 	/**
 	 * operand:
 	 *  term .field*
@@ -790,6 +878,92 @@ public class Tree
 		return newWith(outPos[0], outPipe[0], outList[0], outElseList[0]);
 	}
 
+	/**
+	 * cache:
+	 *  {{cache pipeline}} tokenList {{end}}
+	 */
+	private Node cacheControl() throws ParseException, InternalException
+	{
+		int[] outPos = new int[1];
+		Node.Pipe[] outPipe = new Node.Pipe[1];
+		Node.List[] outList = new Node.List[1];
+		Node.List[] outElseList = new Node.List[1];
+		parseControl(false, "cache", outPos, outPipe, outList, outElseList);
+		if (outElseList[0] != null)
+			errorf("unexpected {{else}} in cache");
+
+		return newCache(outPos[0], outPipe[0], outList[0]);
+	}
+
+	/**
+	 * switch:
+	 *  {{switch pipeline}} case* {{end}}
+	 *  {{switch pipeline}} case* {{default}} tokenList {{end}}
+	 * case:
+	 *  {{case constant constant...}} tokenList
+	 * Only spaces are allowed before the first case
+	 */
+	private Node switchControl() throws ParseException, InternalException
+	{
+		final String context = "switch";
+		int varsSize = vars.size();
+		Node.Switch sw;
+		try {
+			Node.Pipe pipe = pipeline(context);
+			sw = newSwitch(pipe.pos, pipe);
+			Node.List[] outList = new Node.List[1];
+			Node[] next = new Node[1];
+			tokenList(outList, next);
+			for (Node n : outList[0].nodes)
+				if (!(n instanceof Node.Text) || !((Node.Text)n).text.trim().isEmpty())
+					errorf("unexpected %s in %s", n, context);
+
+			while (next[0].type != Node.Type.END) {
+				if (next[0].type == Node.Type.CASE) {
+					if (sw.defaultList != null)
+						errorf("unexpected %s after {{default}}", next[0]);
+					Node.Case c = (Node.Case)next[0];
+					tokenList(outList, next);
+					c.list = outList[0];
+					Node duplicate = sw.addCase(c);
+					if (duplicate != null)
+						errorf("duplicate case label %s", duplicate);
+				} else if (next[0].type == Node.Type.DEFAULT) {
+					if (sw.defaultList != null)
+						errorf("multiple {{default}} in %s", context);
+					tokenList(outList, next);
+					sw.defaultList = outList[0];
+				} else {
+					errorf("unexpected %s in %s", next[0], context);
+				}
+			}
+		} finally {
+			popVars(varsSize);
+		}
+
+		return sw;
+	}
+
+	private Node caseControl() throws ParseException, InternalException
+	{
+		final String context = "case";
+		int pos = peekNonSpace().pos;
+		ArrayList<Node> labels = new ArrayList<>();
+		while (peekNonSpace().type != Token.Type.RIGHT_DELIM) {
+			Node label = term();
+			if (label == null)
+				unexpected(nextNonSpace(), context);
+			else if (!Node.Case.isConstant(label))
+				errorf("case label must be a constant; found %s", label);
+			labels.add(label);
+		}
+		expect(Token.Type.RIGHT_DELIM, context);
+		if (labels.isEmpty())
+			errorf("missing value for %s", context);
+
+		return newCase(pos, labels);
+	}
+
 	private void parseControl(boolean allowElseIf, String context,
 				  int[] outPos, Node.Pipe[] outPipe,
 				  Node.List[] outList, Node.List[] outElseList) throws ParseException, InternalException
@@ -798,11 +972,17 @@ public class Tree
 		try {
 			outPipe[0] = pipeline(context);
 			Node[] next = new Node[1];
+			int outerCacheVars = cacheVars;
 			if (context.equals("for"))
 				++forDepth;
+			else if (context.equals("cache"))
+				cacheVars = vars.size();
 			tokenList(outList, next);
 			if (context.equals("for"))
 				--forDepth;
+			cacheVars = outerCacheVars;
+			if (next[0].type == Node.Type.CASE || next[0].type == Node.Type.DEFAULT)
+				errorf("unexpected %s in %s", next[0], context);
 
 			if (next[0].type == Node.Type.ELSE)
 				if (allowElseIf && peek().type == Token.Type.IF) {
@@ -984,6 +1164,11 @@ public class Tree
 		return new Node.StringConst(this, pos, orig, text);
 	}
 
+	Node.Value newValue(int pos, Object value)
+	{
+		return new Node.Value(this, pos, value);
+	}
+
 	Node.End newEnd(int pos)
 	{
 		return new Node.End(this, pos);
@@ -994,6 +1179,21 @@ public class Tree
 		return new Node.Else(this, pos);
 	}
 
+	Node.Switch newSwitch(int pos, Node.Pipe pipe)
+	{
+		return new Node.Switch(this, pos, pipe);
+	}
+
+	Node.Case newCase(int pos, List<Node> labels)
+	{
+		return new Node.Case(this, pos, labels);
+	}
+
+	Node.Default newDefault(int pos)
+	{
+		return new Node.Default(this, pos);
+	}
+
 	Node.If newIf(int pos, Node.Pipe pipe,
 		      Node.List list, Node.List elseList)
 	{
@@ -1022,6 +1222,11 @@ public class Tree
 		return new Node.With(this, pos, pipe, list, elseList);
 	}
 
+	Node.Cache newCache(int pos, Node.Pipe pipe, Node.List list)
+	{
+		return new Node.Cache(this, pos, pipe, list);
+	}
+
 	Node.Template newTemplate(int pos, String name, Node.Pipe pipe)
 	{
 		return new Node.Template(this, pos, name, pipe);
@@ -200,6 +200,45 @@ class Utils
 		return sb.toString();
 	}
 
+	/**
+	 * Returns a double-quoted string literal representing s,
+	 * that can be unquoted back by unquote()
+	 */
+	static String quote(String s)
+	{
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"':
+					sb.append("\\\"");
+					break;
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\b':
+					sb.append("\\b");
+					break;
+				case '\f':
+					sb.append("\\f");
+					break;
+				default:
+					sb.append(c);
+			}
+		}
+
+		return sb.append('"').toString();
+	}
+
 	/**
 	 * returns the string with % replaced by %%, if necessary,
 	 * so it can be used safely inside a String.format().
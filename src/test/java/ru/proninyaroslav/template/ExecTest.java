@@ -17,14 +17,29 @@
 package ru.proninyaroslav.template;
 
 import org.junit.Test;
+import ru.proninyaroslav.template.exceptions.ExecException;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class ExecTest
@@ -66,6 +81,16 @@ public class ExecTest
 		/* Maps */
 		public Map<String, Integer> siMap = newSiMap();
 		public Map<String, Integer> siMapNull;
+		public Map<String, Object> nested = newNested();
+		/* Key-value object */
+		public KeyValue kv = new KeyValue()
+		{
+			@Override
+			public Object get(String key)
+			{
+				return (key.equals("name") ? "kv" : null);
+			}
+		};
 		/* Template to test evaluation of templates */
 		public Template tmpl = newTmpl();
 		public ByteArrayOutputStream stream = new ByteArrayOutputStream();
@@ -89,6 +114,15 @@ public class ExecTest
 			return map;
 		}
 
+		private Map<String, Object> newNested()
+		{
+			Map<String, Object> map = new HashMap<>();
+			map.put("inner", newSiMap());
+			map.put("null", null);
+
+			return map;
+		}
+
 		private Template newTmpl()
 		{
 			Template tmpl = new Template("x");
@@ -180,6 +214,12 @@ public class ExecTest
 		tests.add(new TestExec(".u.v", "{{.u.v}}", "v", t, false));
 		tests.add(new TestExec("map <one>", "{{.siMap.get `one`}}",
 				       "1", t, false));
+		tests.add(new TestExec("map .one", "{{.siMap.one}}", "1", t, false));
+		tests.add(new TestExec("map .inner.two", "{{.nested.inner.two}}", "2", t, false));
+		tests.add(new TestExec("map null value", "{{.nested.null}}", "null", t, false));
+		tests.add(new TestExec("map missing key", "{{.siMap.four}}", "null", t, false));
+		tests.add(new TestExec("map key with args", "{{.siMap.one 1}}", "", t, true));
+		tests.add(new TestExec("key-value", "{{.kv.name}} {{.kv.x}}", "kv null", t, false));
 		tests.add(new TestExec("dot int", "{{.}}", "123", 123, false));
 		tests.add(new TestExec("dot float", "{{.}}", "1.2", 1.2, false));
 		tests.add(new TestExec("dot boolean", "{{.}}", "true", true, false));
@@ -342,6 +382,32 @@ public class ExecTest
 		tests.add(new TestExec("declare in for",
 				       "{{for $x := .iArr}}<{{$foo := $x}}{{$x}}>{{end}}",
 				       "<1><2><3>", t, false));
+		tests.add(new TestExec("for first of list",
+				       "{{for first 2 .iList}}{{.}}{{end}}{{for skip 1 .iArr}}{{.}}{{end}}",
+				       "1223", t, false));
+		tests.add(new TestExec("for slice of array",
+				       "{{for slice 1 5 .bArr}}{{.}}{{end}}{{for first 1 .iArrNull}}{{else}}NULL{{end}}",
+				       "falseNULL", t, false));
+		tests.add(new TestExec("for $i, $x iArr",
+				       "{{for $i, $x := .iArr}}<{{$i}}:{{$x}}>{{end}}",
+				       "<0:1><1:2><2:3>", t, false));
+		tests.add(new TestExec("for $i, $x iList",
+				       "{{for $i, $x := .iList}}{{if $i}},{{end}}{{$x}}{{end}}",
+				       "1,2,3", t, false));
+		tests.add(new TestExec("for $k, $v map",
+				       "{{for $k, $v := .siMap}}{{if eq $k `two`}}{{$v}}{{end}}{{end}}",
+				       "2", t, false));
+		HashMap<String, String> nullKey = new HashMap<>();
+		nullKey.put(null, "x");
+		tests.add(new TestExec("for $k, $v map with null key",
+				       "{{for $k, $v := .}}{{$k}}={{$v}}{{end}}",
+				       "null=x", nullKey, false));
+		tests.add(new TestExec("for map values",
+				       "{{for .siMap}}{{if eq . 3}}three{{end}}{{end}}",
+				       "three", t, false));
+		tests.add(new TestExec("for assign $i, $x",
+				       "{{$i := 0}}{{$x := 0}}{{for $i, $x = .iArr}}{{end}}{{$i}}{{$x}}",
+				       "23", t, false));
 		tests.add(new TestExec("for quick break",
 				       "{{for .iArr}}{{break}}{{.}}{{end}}",
 				       "", t, false));
@@ -492,4 +558,1134 @@ public class ExecTest
 		if (!got.contains(want))
 			fail(String.format("got error %s; want %s", got, want));
 	}
+
+	public static class Invariants
+	{
+		static int calls;
+
+		public List<Integer> items = Arrays.asList(1, 2, 3);
+		public List<Integer> empty = new ArrayList<>();
+		public String str = "x";
+		private int id;
+
+		public int nextId()
+		{
+			return ++id;
+		}
+
+		public static String count(String s)
+		{
+			calls++;
+
+			return s;
+		}
+
+		public static String fail() throws Exception
+		{
+			throw new Exception("fail");
+		}
+	}
+
+	@Test
+	public void testLoopInvariants()
+	{
+		class TestInvariant
+		{
+			String input;
+			String output;
+			int calls;
+			boolean hasError;
+
+			TestInvariant(String input, String output, int calls, boolean hasError)
+			{
+				this.input = input;
+				this.output = output;
+				this.calls = calls;
+				this.hasError = hasError;
+			}
+		}
+		ArrayList<TestInvariant> tests = new ArrayList<>();
+		tests.add(new TestInvariant("{{for $i := .items}}{{count $.str}}{{end}}", "xxx", 1, false));
+		tests.add(new TestInvariant("{{for .items}}{{for $.items}}{{count \"a\"}}{{end}}-{{end}}",
+					    "aaa-aaa-aaa-", 1, false));
+		tests.add(new TestInvariant("{{for $i := .items}}{{for $.items}}{{count (print $i)}}{{end}}{{end}}",
+					    "111222333", 3, false));
+		tests.add(new TestInvariant("{{for .items}}{{printf \"%s%s\" (count $.str) (print .)}}{{end}}",
+					    "x1x2x3", 1, false));
+		tests.add(new TestInvariant("{{for .items}}{{count (print .)}}{{end}}", "123", 3, false));
+		tests.add(new TestInvariant("{{$s := `a`}}{{for .items}}{{count $s}}{{$s = `b`}}{{end}}",
+					    "abb", 3, false));
+		tests.add(new TestInvariant("{{for .items}}{{$c := count $.str}}{{$c}}{{end}}", "xxx", 1, false));
+		tests.add(new TestInvariant("{{for .empty}}{{fail}}{{else}}empty{{end}}", "empty", 0, false));
+		tests.add(new TestInvariant("{{for .items}}{{fail}}{{end}}", "", 0, true));
+		/* Methods run on each iteration */
+		tests.add(new TestInvariant("{{for .items}}{{$.nextId}}{{end}}", "123", 0, false));
+		tests.add(new TestInvariant("{{for .items}}{{count (print $.nextId)}}{{end}}", "123", 3, false));
+
+		FuncMap funcs = new FuncMap();
+		funcs.put("count", "count", Invariants.class);
+		funcs.put("fail", "fail", Invariants.class);
+		funcs.markPure("count", "fail");
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (TestInvariant test : tests) {
+			Template tmpl = new Template("invariants");
+			tmpl.addFuncs(funcs);
+			/* Counts the calls of hoisted pipelines only */
+			tmpl.setMemoization(false);
+			try {
+				tmpl.parse(test.input);
+			} catch (Exception e) {
+				fail(String.format("%s: %s", test.input, e));
+			}
+			Invariants.calls = 0;
+			stream.reset();
+			try {
+				tmpl.execute(stream, new Invariants());
+			} catch (Exception e) {
+				if (!test.hasError)
+					fail(String.format("%s: unexpected error: %s", test.input, e.getMessage()));
+				continue;
+			}
+			if (test.hasError)
+				fail(String.format("%s: expected error; got none", test.input));
+			assertEquals(test.input, test.output, new String(stream.toByteArray()));
+			assertEquals(test.input, test.calls, Invariants.calls);
+		}
+
+		/* Not declared as pure */
+		FuncMap impure = new FuncMap();
+		impure.put("count", "count", Invariants.class);
+		Template tmpl = new Template("impure");
+		tmpl.addFuncs(impure);
+		try {
+			tmpl.parse("{{for .items}}{{count $.str}}{{end}}");
+		} catch (Exception e) {
+			fail(e.toString());
+		}
+		Invariants.calls = 0;
+		stream.reset();
+		try {
+			tmpl.execute(stream, new Invariants());
+		} catch (Exception e) {
+			fail(e.toString());
+		}
+		assertEquals(3, Invariants.calls);
+
+		/* Relinking doesn't disturb the running executions */
+		final Template running = new Template("running");
+		running.addFuncs(funcs);
+		try {
+			running.parse("{{for .items}}{{for $.items}}{{count $.str}}{{count (print $.str)}}{{end}}{{end}}");
+		} catch (Exception e) {
+			fail(e.toString());
+		}
+		final AtomicInteger errors = new AtomicInteger();
+		Thread executor = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				for (int i = 0; i < 2000; i++) {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					try {
+						running.execute(out, new Invariants());
+						if (!out.toString().equals("xxxxxxxxxxxxxxxxxx"))
+							errors.incrementAndGet();
+					} catch (Exception e) {
+						errors.incrementAndGet();
+					}
+				}
+			}
+		};
+		executor.start();
+		while (executor.isAlive())
+			running.addFuncs(funcs);
+		assertEquals(0, errors.get());
+	}
+
+	public static class Mixed
+	{
+		public List<Object> values = Arrays.<Object>asList(3, 3, 2L, 1.5, 'a', "s");
+		public int[] ints = {1, 2, 3};
+		public Map<String, Object> map = new HashMap<>();
+
+		public Mixed()
+		{
+			map.put("k", values);
+		}
+
+		public static String add(Object a, Object b)
+		{
+			return "user";
+		}
+
+		public Object fail() throws Exception
+		{
+			throw new Exception("must not be evaluated");
+		}
+	}
+
+	@Test
+	public void testIntrinsics()
+	{
+		ArrayList<TestExec> tests = new ArrayList<>();
+		/* The call site sees operands of different types */
+		tests.add(new TestExec("add", "{{for .values}}{{add . .}} {{end}}",
+				       "6 6 4 3.0 194 ss ", new Mixed(), false));
+		tests.add(new TestExec("mul pipe", "{{for .values}}{{if ne . `s`}}{{. | mul 2}} {{end}}{{end}}",
+				       "6 6 4 3.0 194 ", new Mixed(), false));
+		tests.add(new TestExec("eq", "{{for .values}}{{eq . 3}}{{ne . 3}} {{end}}",
+				       "truefalse truefalse falsetrue falsetrue falsetrue falsetrue ", new Mixed(), false));
+		tests.add(new TestExec("eq varargs", "{{eq 3 1 2 3}} {{3 | eq 1 2}}", "true false", null, false));
+		tests.add(new TestExec("zero", "{{sub 0.0 0.0}} {{sub 1.0 1.0}}", "0 0.0", null, false));
+		tests.add(new TestExec("compare", "{{lt 1 2}} {{ge 2.5 2}} {{le 'a' 97}}", "true true true", null, false));
+		tests.add(new TestExec("divide by zero", "{{div 1 0}}", "", null, true));
+		tests.add(new TestExec("add string", "{{add `a` 1}}", "", null, true));
+		tests.add(new TestExec("compare strings", "{{lt `a` `b`}}", "", null, true));
+		tests.add(new TestExec("null", "{{eq null 1}}", "", null, true));
+		tests.add(new TestExec("one arg", "{{add 1}}", "", null, true));
+		/* Short-circuit evaluation */
+		tests.add(new TestExec("or", "{{or 0 `` `x` .fail}}", "x", new Mixed(), false));
+		tests.add(new TestExec("and", "{{and 1 0 .fail}}", "0", new Mixed(), false));
+		tests.add(new TestExec("and last", "{{and 1 `x`}}", "x", null, false));
+		tests.add(new TestExec("or pipe", "{{`y` | or 0}}", "y", null, false));
+		tests.add(new TestExec("or error", "{{or 0 .fail}}", "", new Mixed(), true));
+		tests.add(new TestExec("and no args", "{{and}}", "", null, true));
+		/* Parsed printf format */
+		tests.add(new TestExec("printf", "{{for .values}}{{printf `[%4s]` .}}{{end}}",
+				       "[   3][   3][   2][ 1.5][   a][   s]", new Mixed(), false));
+		tests.add(new TestExec("printf pipe", "{{1.005 | printf `%.2f`}} {{printf `%03d` 7 | print}}",
+				       "1.01 007", null, false));
+		tests.add(new TestExec("printf var", "{{$s := printf `%s-%d` `a` 1}}{{$s}}", "a-1", null, false));
+		tests.add(new TestExec("printf not constant", "{{printf .}}", "%", "%%", false));
+		tests.add(new TestExec("printf error", "{{printf `%d` `x`}}", "", null, true));
+		tests.add(new TestExec("printf missing arg", "{{printf `%s`}}", "", null, true));
+		/* Collections */
+		tests.add(new TestExec("index", "{{index .values 5}} {{index .ints 1}} {{index .map `k` 0}} {{index .map `x`}}",
+				       "s 2 3 null", new Mixed(), false));
+		tests.add(new TestExec("index error", "{{index .ints 3}}", "", new Mixed(), true));
+		tests.add(new TestExec("index null", "{{index null 1}}", "", null, true));
+		tests.add(new TestExec("len", "{{len .values}} {{len .ints}} {{len .map}} {{len `abc`}}",
+				       "6 3 1 3", new Mixed(), false));
+		tests.add(new TestExec("len error", "{{len 1}}", "", null, true));
+		tests.add(new TestExec("range", "{{for range 3}}{{.}}{{end}} {{for range 5 1 -2}}{{.}}{{end}}",
+				       "012 53", null, false));
+		tests.add(new TestExec("range args", "{{range 1 2 3 4}}", "", null, true));
+		tests.add(new TestExec("not", "{{not 0}} {{not `x`}} {{. | not}}", "true false true", "", false));
+		tests.add(new TestExec("not args", "{{not 1 2}}", "", null, true));
+		tests.add(new TestExec("eq constants", "{{for .values}}{{eq . 1 2 3 `s`}} {{end}}",
+				       "true true false false false true ", new Mixed(), false));
+		tests.add(new TestExec("eq constants null", "{{eq null 1 2}}", "", null, true));
+		for (TestExec test : tests)
+			runTest(test, null);
+
+		/* Template functions override the builtins */
+		FuncMap funcs = new FuncMap();
+		funcs.put("add", "add", Mixed.class);
+		runTest(new TestExec("override", "{{add 1 2}}", "user", null, false), funcs);
+	}
+
+	@Test
+	public void testSwitch()
+	{
+		ArrayList<TestExec> tests = new ArrayList<>();
+		String input = "{{switch .}}{{case `a` `b`}}ab{{case 1}}one{{case true}}yes{{default}}other{{end}}";
+		tests.add(new TestExec("switch string", input, "ab", "b", false));
+		tests.add(new TestExec("switch int", input, "one", 1, false));
+		tests.add(new TestExec("switch bool", input, "yes", true, false));
+		tests.add(new TestExec("switch default", input, "other", 1.5, false));
+		tests.add(new TestExec("switch null", input, "other", null, false));
+		tests.add(new TestExec("switch without default", "{{switch .}}{{case 1}}one{{end}}", "", 2, false));
+		tests.add(new TestExec("switch decl",
+				       "{{$x := 0}}{{switch $x := .}}{{case 2}}{{$x}}{{end}}{{$x}}", "20", 2, false));
+		tests.add(new TestExec("switch in for",
+				       "{{for .}}{{switch .}}{{case 2}}{{continue}}{{case 3}}{{break}}{{end}}{{.}}{{end}}",
+				       "1", new int[]{1, 2, 3, 4}, false));
+		tests.add(new TestExec("switch error", "{{switch .x}}{{end}}", "", 1, true));
+		for (TestExec test : tests)
+			runTest(test, null);
+	}
+
+	@Test
+	public void testSinkFunctions()
+	{
+		FuncMap funcs = new FuncMap();
+		funcs.putSink("repeat", new SinkFunction()
+		{
+			@Override
+			public void write(Writer out, Object... args) throws Exception
+			{
+				if (args.length != 2)
+					throw new IllegalArgumentException("want 2 arguments");
+				for (int i = 0; i < (Integer)args[1]; i++)
+					out.write(String.valueOf(args[0]));
+			}
+		});
+
+		ArrayList<TestExec> tests = new ArrayList<>();
+		tests.add(new TestExec("print", "{{repeat `ab` 3}}", "ababab", null, false));
+		tests.add(new TestExec("pipe", "{{2 | repeat .}}", "xx", "x", false));
+		tests.add(new TestExec("value", "{{$s := repeat `a` 2}}{{$s}}|{{printf `%s!` (repeat `b` 2)}}",
+				       "aa|bb!", null, false));
+		tests.add(new TestExec("builtins", "{{print 1 2 `a` 3}}|{{println 1 `a`}}|{{print}}",
+				       "1 2 a3|1 a \n|", null, false));
+		tests.add(new TestExec("error", "{{repeat `a`}}", "", null, true));
+		for (TestExec test : tests)
+			runTest(test, funcs);
+
+		/* The builtin sinks are still visible as methods */
+		assertNotNull(FuncMap.builtins.get("print"));
+		assertTrue(FuncMap.builtins.getAll().containsKey("println"));
+	}
+
+	public static class Service
+	{
+		private String prefix;
+
+		public Service(String prefix)
+		{
+			this.prefix = prefix;
+		}
+
+		public String greet(String name)
+		{
+			return prefix + name;
+		}
+
+		public String greet(String name, int times)
+		{
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < times; i++)
+				sb.append(greet(name));
+
+			return sb.toString();
+		}
+
+		public int sum(int... values)
+		{
+			int sum = 0;
+			for (int v : values)
+				sum += v;
+
+			return sum;
+		}
+	}
+
+	@Test
+	public void testFunctionObjects()
+	{
+		FuncMap funcs = new FuncMap();
+		funcs.put("pi", new Function0<Double>()
+		{
+			@Override
+			public Double apply()
+			{
+				return 3.14;
+			}
+		});
+		funcs.put("upper", new Function1<String, String>()
+		{
+			@Override
+			public String apply(String s)
+			{
+				return s.toUpperCase();
+			}
+		});
+		funcs.put("join", new Function2<String, Object, String>()
+		{
+			@Override
+			public String apply(String sep, Object o)
+			{
+				return sep + o + sep;
+			}
+		});
+		funcs.putVarargs("count", new FunctionN<Integer>()
+		{
+			@Override
+			public Integer apply(Object... args)
+			{
+				return args.length;
+			}
+		});
+		funcs.bind("greet", new Service("hi "), "greet");
+		funcs.bind("sum", new Service(""), "sum");
+		/* Lambdas */
+		funcs.put("up", s -> s.toString().toUpperCase());
+		funcs.put("concat", (a, b) -> "" + a + b);
+		funcs.putVarargs("last", args -> args[args.length - 1]);
+		funcs.putSink("twice", (out, args) -> {
+			out.write(String.valueOf(args[0]));
+			out.write(String.valueOf(args[0]));
+		});
+
+		ArrayList<TestExec> tests = new ArrayList<>();
+		tests.add(new TestExec("func0", "{{pi}}", "3.14", null, false));
+		tests.add(new TestExec("func1", "{{upper `abc`}}", "ABC", null, false));
+		tests.add(new TestExec("func1 pipe", "{{. | upper}}", "X", "x", false));
+		tests.add(new TestExec("func2", "{{1 | join `-`}}", "-1-", null, false));
+		tests.add(new TestExec("funcN", "{{count}} {{count 1 2 3}}", "0 3", null, false));
+		tests.add(new TestExec("bound", "{{greet `a`}} {{greet `b` 2}}", "hi a hi bhi b", null, false));
+		tests.add(new TestExec("bound varargs", "{{sum 1 2 3}}", "6", null, false));
+		tests.add(new TestExec("lambdas", "{{up `a`}} {{concat 1 `b`}} {{last 1 2 3}} {{twice `c`}}",
+				       "A 1b 3 cc", null, false));
+		tests.add(new TestExec("wrong type", "{{upper 1}}", "", null, true));
+		tests.add(new TestExec("wrong arity", "{{upper `a` `b`}}", "", null, true));
+		tests.add(new TestExec("bound wrong arity", "{{greet}}", "", null, true));
+		for (TestExec test : tests)
+			runTest(test, funcs);
+
+		try {
+			funcs.bind("none", new Service(""), "missing");
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			/* Expected */
+		}
+	}
+
+	public static class Bean
+	{
+		private String title;
+		public String name = "field";
+
+		public Bean(String title)
+		{
+			this.title = title;
+		}
+
+		public String getTitle()
+		{
+			return title;
+		}
+
+		public boolean isActive()
+		{
+			return true;
+		}
+
+		public String getName()
+		{
+			return "getter";
+		}
+	}
+
+	@Test
+	public void testPropertyAccessors() throws Exception
+	{
+		final int[] resolved = new int[1];
+		Template tmpl = new Template("accessors");
+		tmpl.addAccessor(new PropertyAccessor()
+		{
+			@Override
+			public Getter resolve(Class<?> type, String name)
+			{
+				resolved[0]++;
+				if (!name.equals("upper"))
+					return null;
+
+				return new Getter()
+				{
+					@Override
+					public Object get(Object receiver)
+					{
+						return ((Bean)receiver).title.toUpperCase();
+					}
+				};
+			}
+		});
+		tmpl.addAccessor(new BeanAccessor());
+		tmpl.parse("{{for .}}{{.title}}-{{.upper}}-{{.active}}-{{.name}} {{end}}");
+
+		List<Bean> data = Arrays.asList(new Bean("a"), new Bean("b"), new Bean("c"));
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		tmpl.execute(stream, data);
+		assertEquals("a-A-true-field b-B-true-field c-C-true-field ", stream.toString());
+		/* Once for title, upper and active; name is a declared field */
+		assertEquals(3, resolved[0]);
+
+		stream.reset();
+		tmpl.execute(stream, data);
+		assertEquals(3, resolved[0]);
+
+		Template missing = new Template("missing");
+		missing.addAccessor(new BeanAccessor());
+		missing.parse("{{.missing}}");
+		try {
+			missing.execute(new ByteArrayOutputStream(), new Bean("a"));
+			fail("expected error");
+		} catch (ExecException e) {
+			/* Expected */
+		}
+	}
+
+	public static class LazyModel
+	{
+		public int computed;
+		public Lazy<String> name = Lazy.of(new Callable<String>()
+		{
+			@Override
+			public String call()
+			{
+				computed++;
+				return "name";
+			}
+		});
+		public Lazy<Bean> bean = Lazy.of(new Callable<Bean>()
+		{
+			@Override
+			public Bean call()
+			{
+				computed++;
+				return new Bean("title");
+			}
+		});
+		public Lazy<Object> unused = Lazy.of(new Callable<Object>()
+		{
+			@Override
+			public Object call() throws Exception
+			{
+				throw new Exception("must not be computed");
+			}
+		});
+		public List<Lazy<String>> list = Arrays.asList(name, name);
+
+		public Lazy<String> getName()
+		{
+			return name;
+		}
+	}
+
+	@Test
+	public void testLazy() throws Exception
+	{
+		Template tmpl = new Template("lazy");
+		tmpl.parse("{{.name}} {{.bean.name}} {{$n := .name}}{{$n}} {{.getName}} " +
+			   "{{for .list}}{{.}}{{end}} {{if eq .name `name`}}eq{{end}}");
+		LazyModel data = new LazyModel();
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		tmpl.execute(stream, data);
+		assertEquals("name field name name namename eq", stream.toString());
+		assertEquals(2, data.computed);
+
+		/* Each execution computes the values again */
+		tmpl.execute(new ByteArrayOutputStream(), data);
+		assertEquals(4, data.computed);
+
+		/* The data itself */
+		tmpl = new Template("lazy data");
+		tmpl.parse("{{.name}} {{$.name}}");
+		stream.reset();
+		tmpl.execute(stream, Lazy.of(new Callable<LazyModel>()
+		{
+			@Override
+			public LazyModel call()
+			{
+				return new LazyModel();
+			}
+		}));
+		assertEquals("name name", stream.toString());
+
+		runTest(new TestExec("error", "{{.unused}}", "", new LazyModel(), true), null);
+	}
+
+	public static class Memo
+	{
+		public static int calls;
+		public int methodCalls;
+		public Map<String, Object> user = new HashMap<>();
+		public Bean bean = new Bean("t");
+		public int n;
+
+		public Memo()
+		{
+			user.put("name", "n");
+		}
+
+		public static String format(Object o)
+		{
+			calls++;
+			return "[" + o + "]";
+		}
+
+		public Map<String, Object> getUser()
+		{
+			methodCalls++;
+			return user;
+		}
+
+		public String inc()
+		{
+			n++;
+			return "";
+		}
+
+		public static String set(Map<String, Object> map, String key, Object value)
+		{
+			map.put(key, value);
+			return "";
+		}
+	}
+
+	@Test
+	public void testMemoization() throws Exception
+	{
+		FuncMap funcs = new FuncMap();
+		funcs.put("format", "format", Memo.class);
+		funcs.put("impure", "format", Memo.class);
+		funcs.markPure("format");
+		String input = "{{format .user.name}}{{format .user.name}}{{format 1}}{{impure 1}}{{impure 1}}" +
+			       "{{.getUser.name}}{{.getUser.name}}{{.bean.title}}{{.bean.title}}";
+
+		Template tmpl = new Template("memo");
+		tmpl.addFuncs(funcs);
+		tmpl.addAccessor(new BeanAccessor());
+		tmpl.parse(input);
+		Memo data = new Memo();
+		Memo.calls = 0;
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		tmpl.execute(stream, data);
+		assertEquals("[n][n][1][1][1]nntt", stream.toString());
+		/* format is called once for each argument, impure twice */
+		assertEquals(4, Memo.calls);
+		/* Methods aren't memoized */
+		assertEquals(2, data.methodCalls);
+
+		/* The memo lives for one execution */
+		data.user.put("name", "m");
+		stream.reset();
+		tmpl.execute(stream, data);
+		assertEquals("[m][m][1][1][1]mmtt", stream.toString());
+
+		/* Methods and impure functions may change the data */
+		funcs.put("set", "set", Memo.class);
+		HashMap<String, Object> map = new HashMap<>();
+		map.put("k", 1);
+		runTest(new TestExec("impure function", "{{.k}} {{set . `k` 2}}{{.k}}", "1 2", map, false), funcs);
+		runTest(new TestExec("method", "{{.n}} {{.inc}}{{.n}}", "0 1", new Memo(), false), null);
+
+		tmpl.setMemoization(false);
+		Memo.calls = 0;
+		tmpl.execute(new ByteArrayOutputStream(), data);
+		assertEquals(5, Memo.calls);
+
+		tmpl.setMemoization(true);
+		tmpl.setMemoLimit(1);
+		Memo.calls = 0;
+		tmpl.execute(new ByteArrayOutputStream(), data);
+		/* Only .user.name is memoized */
+		assertEquals(5, Memo.calls);
+	}
+
+	public static class Streams
+	{
+		public int closed;
+
+		private Runnable onClose = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				closed++;
+			}
+		};
+
+		public Stream<Integer> getStream()
+		{
+			return Stream.of(1, 2, 3).onClose(onClose);
+		}
+
+		public IntStream getInts()
+		{
+			return IntStream.range(0, 3).onClose(onClose);
+		}
+
+		public Stream<Integer> getEmpty()
+		{
+			return Stream.<Integer>empty().onClose(onClose);
+		}
+
+		public Iterator<String> getIterator()
+		{
+			return Arrays.asList("a", "b").iterator();
+		}
+
+		public Spliterator<String> getSpliterator()
+		{
+			return Arrays.asList("c", "d").spliterator();
+		}
+	}
+
+	@Test
+	public void testForStreams()
+	{
+		ArrayList<TestExec> tests = new ArrayList<>();
+		tests.add(new TestExec("stream", "{{for .getStream}}{{.}}{{end}}", "123", null, false));
+		tests.add(new TestExec("int stream", "{{for $i := .getInts}}{{$i}}{{end}}", "012", null, false));
+		tests.add(new TestExec("iterator", "{{for .getIterator}}{{.}}{{end}}", "ab", null, false));
+		tests.add(new TestExec("spliterator", "{{for .getSpliterator}}{{.}}{{end}}", "cd", null, false));
+		tests.add(new TestExec("empty", "{{for .getEmpty}}{{.}}{{else}}empty{{end}}", "empty", null, false));
+		tests.add(new TestExec("break", "{{for .getStream}}{{.}}{{break}}{{end}}", "1", null, false));
+		tests.add(new TestExec("error", "{{for .getStream}}{{.x}}{{end}}", "", null, true));
+		/* Slices */
+		tests.add(new TestExec("first", "{{for .getStream | first 2}}{{.}}{{end}}", "12", null, false));
+		tests.add(new TestExec("skip", "{{for $i, $x := skip 1 .getStream}}{{$i}}{{$x}}{{end}}", "0213", null, false));
+		tests.add(new TestExec("slice", "{{for slice 1 2 .getIterator}}{{.}}{{end}}", "b", null, false));
+		tests.add(new TestExec("slice of slice", "{{for .getInts | skip 1 | first 5}}{{.}}{{end}}", "12", null, false));
+		tests.add(new TestExec("first empty", "{{for .getStream | first 0}}{{.}}{{else}}empty{{end}}", "empty", null, false));
+		tests.add(new TestExec("first error", "{{for .getIterator | first -1}}{{.}}{{end}}", "", null, true));
+		for (TestExec test : tests) {
+			Streams data = new Streams();
+			runTest(new TestExec(test.name, test.input, test.output, data, test.hasError), null);
+			/* Streams are closed, whatever the loop ends */
+			if (test.input.contains("Stream") || test.input.contains("Ints") ||
+			    test.input.contains("Empty"))
+				assertEquals(test.name, 1, data.closed);
+		}
+
+		/* Loop invariants that can be iterated once are evaluated on each iteration */
+		FuncMap funcs = new FuncMap();
+		funcs.put("stream", () -> Stream.of("x", "y"));
+		funcs.put("iterator", () -> Arrays.asList("x", "y").iterator());
+		funcs.put("spliterator", () -> Arrays.asList("x", "y").spliterator());
+		funcs.markPure("stream", "iterator", "spliterator");
+		tests.clear();
+		tests.add(new TestExec("nested stream", "{{for .}}[{{for $l := stream}}{{$l}}{{end}}]{{end}}",
+				       "[xy][xy][xy]", null, false));
+		tests.add(new TestExec("nested iterator", "{{for .}}[{{for iterator}}{{.}}{{end}}]{{end}}",
+				       "[xy][xy][xy]", null, false));
+		tests.add(new TestExec("nested spliterator", "{{for .}}[{{for spliterator}}{{.}}{{end}}]{{end}}",
+				       "[xy][xy][xy]", null, false));
+		tests.add(new TestExec("nested slice", "{{for .}}[{{for first 1 iterator}}{{.}}{{end}}]{{end}}",
+				       "[x][x][x]", null, false));
+		tests.add(new TestExec("nested method", "{{for .getInts}}[{{for $.getIterator}}{{.}}{{end}}]{{end}}",
+				       "[ab][ab][ab]", null, false));
+		for (TestExec test : tests) {
+			Object data = (test.input.contains("get") ? new Streams() : new int[3]);
+			runTest(new TestExec(test.name, test.input, test.output, data, test.hasError), funcs);
+		}
+	}
+
+	public static class Customer
+	{
+		public String name;
+		public Object city;
+
+		public Customer(String name, Object city)
+		{
+			this.name = name;
+			this.city = city;
+		}
+	}
+
+	public static class Order
+	{
+		public int id;
+		public Object customer;
+
+		public Order(int id, Object customer)
+		{
+			this.id = id;
+			this.customer = customer;
+		}
+	}
+
+	/**
+	 * In-memory loader that counts round-trips
+	 */
+	public static class CountingLoader<V> implements BatchLoader<Integer, V>
+	{
+		int calls;
+		Map<Integer, V> values = new HashMap<>();
+
+		@Override
+		public Map<Integer, V> load(List<Integer> keys)
+		{
+			calls++;
+			Map<Integer, V> result = new HashMap<>();
+			for (Integer key : keys)
+				result.put(key, values.get(key));
+
+			return result;
+		}
+	}
+
+	@Test
+	public void testDeferred() throws Exception
+	{
+		CountingLoader<String> cities = new CountingLoader<>();
+		CountingLoader<Customer> customers = new CountingLoader<>();
+		ArrayList<Order> deferred = new ArrayList<>();
+		ArrayList<Order> eager = new ArrayList<>();
+		for (int i = 0; i < 150; i++) {
+			int c = i % 10;
+			cities.values.put(c % 3, "city" + c % 3);
+			customers.values.put(c, new Customer("c" + c, new Deferred<>(cities, c % 3)));
+			deferred.add(new Order(i, new Deferred<>(customers, c)));
+			eager.add(new Order(i, new Customer("c" + c, "city" + c % 3)));
+		}
+
+		String[] inputs = {
+			"{{for .}}{{.id}}:{{.customer.name}}/{{.customer.city}} {{end}}",
+			"{{for $i, $o := .}}{{if $i}},{{end}}{{$o.customer.name}}{{end}}",
+			"{{for $o := .}}{{with $o.customer}}{{.name}}{{end}}{{end}}",
+		};
+		/*
+		 * Round-trips: customers for each window of 64 elements, cities once,
+		 * since the customers loaded in the first window share them
+		 */
+		int[][] calls = {{3, 1}, {3, 0}, {3, 0}};
+		for (int i = 0; i < inputs.length; i++) {
+			Template tmpl = new Template("deferred");
+			tmpl.parse(inputs[i]);
+			/* Collected at link time, not by the executions */
+			assertNotNull(tmpl.common.hoisted.loops.get(tmpl.tree.root.nodes.get(0)).batchPaths);
+			ByteArrayOutputStream want = new ByteArrayOutputStream();
+			tmpl.execute(want, eager);
+			customers.calls = 0;
+			cities.calls = 0;
+			ByteArrayOutputStream got = new ByteArrayOutputStream();
+			tmpl.execute(got, deferred);
+			assertEquals(inputs[i], want.toString(), got.toString());
+			assertEquals(inputs[i], calls[i][0], customers.calls);
+			assertEquals(inputs[i], calls[i][1], cities.calls);
+		}
+
+		/* Without a loop the value is loaded alone */
+		customers.calls = 0;
+		Template tmpl = new Template("single");
+		tmpl.parse("{{.customer.name}}");
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		tmpl.execute(stream, deferred.get(3));
+		assertEquals("c3", stream.toString());
+		assertEquals(1, customers.calls);
+	}
+
+	public static class Counter
+	{
+		static int calls;
+
+		public static int count()
+		{
+			return ++calls;
+		}
+	}
+
+	@Test
+	public void testFragmentCache() throws Exception
+	{
+		FuncMap funcs = new FuncMap();
+		funcs.put("count", "count", Counter.class);
+		Template tmpl = new Template("cache");
+		tmpl.addFuncs(funcs);
+		tmpl.parse("{{cache (print \"menu/\" .)}}[{{.}}{{count}}]{{end}}");
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+		/* Without the cache the fragment is executed every time */
+		Counter.calls = 0;
+		tmpl.execute(stream, "en");
+		tmpl.execute(stream, "en");
+		assertEquals("[en1][en2]", stream.toString());
+
+		FragmentCache cache = new FragmentCache(20);
+		tmpl.setFragmentCache(cache);
+		Counter.calls = 0;
+		stream.reset();
+		for (String locale : new String[]{"en", "en", "ru", "en", "de", "ru"})
+			tmpl.execute(stream, locale);
+		/* Each entry is 12 chars, the second one evicts the least recently used */
+		assertEquals("[en1][en1][ru2][en3][de4][ru5]", stream.toString());
+		assertEquals(1, cache.getHits());
+		assertEquals(5, cache.getMisses());
+		assertEquals(4, cache.getEvictions());
+		assertEquals(1, cache.getCount());
+		assertEquals(12, cache.getSize());
+
+		assertEquals(0, cache.invalidate("menu/en"));
+		assertEquals(1, cache.invalidate("menu/"));
+		assertEquals(0, cache.getSize());
+
+		/* Interrupted loops and the null key aren't cached */
+		tmpl.setFragmentCache(new FragmentCache(1000));
+		cache = new FragmentCache(1000);
+		tmpl.setFragmentCache(cache);
+		tmpl.parse("{{for .}}{{cache (print .)}}{{.}}{{if eq . 1}}{{continue}}{{end}}|{{end}}{{end}}");
+		stream.reset();
+		tmpl.execute(stream, new int[]{1, 2, 3});
+		tmpl.execute(stream, new int[]{1, 2, 3});
+		assertEquals("12|3|12|3|", stream.toString());
+		assertEquals(2, cache.getHits());
+		tmpl.parse("{{cache .}}{{count}}{{end}}");
+		Counter.calls = 0;
+		stream.reset();
+		tmpl.execute(stream, null);
+		tmpl.execute(stream, null);
+		assertEquals("12", stream.toString());
+
+		/* Expired fragments are executed again */
+		cache = new FragmentCache(1000, 1, TimeUnit.NANOSECONDS);
+		tmpl.setFragmentCache(cache);
+		tmpl.parse("{{cache 1}}{{count}}{{end}}");
+		Counter.calls = 0;
+		stream.reset();
+		tmpl.execute(stream, null);
+		Thread.sleep(1);
+		tmpl.execute(stream, null);
+		assertEquals("12", stream.toString());
+		assertEquals(0, cache.getHits());
+
+		/* The same key of different actions doesn't collide */
+		cache = new FragmentCache(1000);
+		tmpl.setFragmentCache(cache);
+		tmpl.parse("{{cache .}}NAV-{{.}}{{end}} {{cache .}}FOOT-{{.}}{{end}}");
+		stream.reset();
+		tmpl.execute(stream, "en");
+		tmpl.execute(stream, "en");
+		assertEquals("NAV-en FOOT-enNAV-en FOOT-en", stream.toString());
+		assertEquals(2, cache.getHits());
+
+		/* The stored bytes are written as is, the nested ones are decoded */
+		tmpl.parse("{{cache .}}мир-{{.}}{{cache 1}}·{{count}}{{end}}{{end}}");
+		Counter.calls = 0;
+		stream.reset();
+		for (String locale : new String[]{"en", "ru", "en"})
+			tmpl.execute(stream, locale);
+		assertEquals("мир-en·1мир-ru·1мир-en·1", stream.toString());
+		assertEquals(4, cache.getHits());
+
+		/* The sets sharing the cache don't evict the fragments of each other */
+		Template other = new Template("other");
+		other.addFuncs(funcs);
+		other.setFragmentCache(cache);
+		other.parse("{{cache .}}{{count}}{{end}}");
+		tmpl.parse("{{cache .}}{{count}}{{end}}");
+		Counter.calls = 0;
+		stream.reset();
+		for (int i = 0; i < 2; i++) {
+			tmpl.execute(stream, "en");
+			other.execute(stream, "en");
+		}
+		assertEquals("1212", stream.toString());
+	}
+
+	@Test
+	public void testRenderCache() throws Exception
+	{
+		FuncMap funcs = new FuncMap();
+		funcs.put("count", "count", Counter.class);
+		Template tmpl = new Template("render");
+		tmpl.addFuncs(funcs);
+		tmpl.parse("{{define \"t\"}}<{{.}}>{{end}}{{.}}{{count}}");
+		RenderCache cache = new RenderCache(6);
+		tmpl.setRenderCache(cache);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+		Counter.calls = 0;
+		tmpl.execute(stream, "a", 1);
+		tmpl.execute(stream, "b", 1);
+		tmpl.execute(stream, "b", 2);
+		tmpl.execute(stream, "a", null);
+		assertEquals("a1a1b2a3", stream.toString());
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+
+		/* Keys of the different templates don't clash */
+		stream.reset();
+		tmpl.getTemplate("t").execute(stream, "x", 1);
+		assertEquals("<x>", stream.toString());
+		/* The least recently used output is evicted */
+		assertEquals(1, cache.getEvictions());
+		assertEquals(2, cache.getCount());
+		assertEquals(5, cache.getSize());
+
+		/* Reparsing drops the stored output */
+		stream.reset();
+		tmpl.execute(stream, "b", 2);
+		tmpl.parse("[{{.}}]");
+		assertEquals(0, cache.getCount());
+		tmpl.execute(stream, "b", 2);
+		assertEquals("b2[b]", stream.toString());
+
+		/* The output rendered before the functions were added isn't served */
+		final Template changing = new Template("changing");
+		FuncMap mutating = new FuncMap();
+		mutating.put("change", () -> {
+			changing.addFuncs(funcs);
+			return "";
+		});
+		changing.addFuncs(mutating);
+		changing.setRenderCache(cache);
+		changing.parse("{{.}}{{change}}");
+		stream.reset();
+		changing.execute(stream, "x", 1);
+		assertNull(cache.get("changing", changing.common.generation, 1));
+
+		/* Both the stored and the rendered output close the stream */
+		final boolean[] closed = new boolean[1];
+		ByteArrayOutputStream closing = new ByteArrayOutputStream()
+		{
+			@Override
+			public void close()
+			{
+				closed[0] = true;
+			}
+		};
+		tmpl.execute(closing, "c", 3);
+		assertTrue(closed[0]);
+		closed[0] = false;
+		tmpl.execute(closing, "c", 3);
+		assertTrue(closed[0]);
+		assertEquals("[c][c]", closing.toString());
+	}
+
+	public static class Gate
+	{
+		static volatile CountDownLatch latch;
+		static volatile boolean fail;
+		static AtomicInteger calls = new AtomicInteger();
+
+		public static String pass() throws Exception
+		{
+			calls.incrementAndGet();
+			latch.await();
+			if (fail)
+				throw new IllegalStateException("gate closed");
+
+			return "ok";
+		}
+	}
+
+	/**
+	 * Executes the template in the threads concurrently, opens the gate
+	 * when all of them are waiting and returns the output or the errors
+	 */
+	private static String[] renderConcurrently(final Template tmpl, int n) throws Exception
+	{
+		Gate.latch = new CountDownLatch(1);
+		Gate.calls.set(0);
+		final String[] results = new String[n];
+		Thread[] threads = new Thread[n];
+		for (int i = 0; i < n; i++) {
+			final int index = i;
+			threads[i] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					ByteArrayOutputStream stream = new ByteArrayOutputStream();
+					try {
+						tmpl.execute(stream, null, "key");
+						results[index] = stream.toString();
+					} catch (ExecException e) {
+						results[index] = "error";
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			while (t.getState() != Thread.State.WAITING && t.getState() != Thread.State.TERMINATED)
+				Thread.sleep(1);
+		Gate.latch.countDown();
+		for (Thread t : threads)
+			t.join();
+
+		return results;
+	}
+
+	@Test
+	public void testCoalescing() throws Exception
+	{
+		FuncMap funcs = new FuncMap();
+		funcs.put("pass", "pass", Gate.class);
+		Template tmpl = new Template("coalescing");
+		tmpl.addFuncs(funcs);
+		tmpl.parse("{{pass}}");
+		RenderCache cache = new RenderCache(0);
+		cache.setCoalescing(true);
+		tmpl.setRenderCache(cache);
+
+		Gate.fail = false;
+		String[] results = renderConcurrently(tmpl, 8);
+		for (String result : results)
+			assertEquals("ok", result);
+		assertEquals(1, Gate.calls.get());
+		assertEquals(7, cache.getCoalesced());
+
+		/* The error is received by all renders */
+		Gate.fail = true;
+		results = renderConcurrently(tmpl, 4);
+		for (String result : results)
+			assertEquals("error", result);
+		assertEquals(1, Gate.calls.get());
+
+		/* The waiting renders give up */
+		Gate.fail = false;
+		cache.setCoalescingTimeout(1, TimeUnit.MILLISECONDS);
+		Gate.latch = new CountDownLatch(1);
+		Gate.calls.set(0);
+		Thread leader = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try {
+					tmpl.execute(new ByteArrayOutputStream(), null, "key");
+				} catch (ExecException e) {
+					/* Not expected */
+				}
+			}
+		};
+		leader.start();
+		while (Gate.calls.get() == 0)
+			Thread.sleep(1);
+		try {
+			tmpl.execute(new ByteArrayOutputStream(), null, "key");
+			fail("expected timeout");
+		} catch (ExecException e) {
+			assertEquals("template: coalescing: timeout waiting for the concurrent render", e.getMessage());
+		} finally {
+			Gate.latch.countDown();
+			leader.join();
+		}
+		assertEquals(1, Gate.calls.get());
+	}
+
+	@Test
+	public void testBuiltinError() throws Exception
+	{
+		Template tmpl = new Template("range");
+		tmpl.parse("{{range 1 2 0}}");
+		try {
+			tmpl.execute(new ByteArrayOutputStream(), null);
+			fail("expected error");
+		} catch (ExecException e) {
+			/* Only the overload that threw reports the exception, the order is unspecified */
+			String prefix = "public static int[] ru.proninyaroslav.template.BuiltinsFuncs.range";
+			HashSet<String> lines = new HashSet<>(Arrays.asList(e.getMessage().split("\n")));
+			assertEquals(new HashSet<>(Arrays.asList(
+				"template: range:0:2: executing range at <range 1 2 0>: error calling range:",
+				"(" + prefix + "(int)): wrong number of args: want 1 got 3",
+				"(" + prefix + "(int,int)): wrong number of args: want 2 got 3",
+				"(" + prefix + "(int,int,int)): java.lang.IllegalArgumentException: step must not be zero")),
+				lines);
+		}
+	}
+
+	private void runTest(TestExec test, FuncMap funcs)
+	{
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		Template tmpl = new Template(test.name);
+		if (funcs != null)
+			tmpl.addFuncs(funcs);
+		try {
+			tmpl.parse(test.input);
+			tmpl.execute(stream, test.data);
+		} catch (Exception e) {
+			if (!test.hasError)
+				fail(String.format("%s: unexpected error: %s", test.name, e.getMessage()));
+			return;
+		}
+		if (test.hasError)
+			fail(String.format("%s: expected error; got none", test.name));
+		assertEquals(test.name, test.output, new String(stream.toByteArray()));
+	}
 }
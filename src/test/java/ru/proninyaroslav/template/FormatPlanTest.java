@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that parsed formats give the same result as String.format()
+ */
+
+public class FormatPlanTest
+{
+	private static void check(String format, Object... args)
+	{
+		FormatPlan plan = FormatPlan.compile(format);
+		assertNotNull(format, plan);
+		String want;
+		try {
+			want = String.format(format, args);
+		} catch (RuntimeException e) {
+			try {
+				plan.format(args);
+			} catch (RuntimeException got) {
+				assertEquals(format, e.getClass(), got.getClass());
+				return;
+			}
+			fail(String.format("%s: expected %s", format, e));
+			return;
+		}
+		assertEquals(format, want, plan.format(args));
+	}
+
+	@Test
+	public void testFormat()
+	{
+		check("text");
+		check("");
+		check("%% %n");
+		check("%s", "str");
+		check("%s-%s", null, 1);
+		check("[%5s][%-5s][%.2s][%5.1s]", "a", "b", "cde", "fg");
+		check("%S", "upper");
+		check("%d %d %d %d", 1, -2L, (short)3, (byte)-4);
+		check("[%5d][%-5d][%05d][%05d]", 12, 12, 12, -12);
+		check("%d", Long.MIN_VALUE);
+		check("%,d %+d %x", 1234567, 5, 255);
+		check("%.2f %f %.0f %.0f", 1.005, 0.1, 0.5, 2.5);
+		check("[%8.2f][%-8.2f][%08.2f][%08.2f]", 3.14159, 3.14159, 3.14159, -3.14159);
+		check("%.2f %.2f %.2f", -0.0, -0.001, 0.125);
+		check("%.2f %f", Double.NaN, Double.POSITIVE_INFINITY);
+		check("%.3f", 1.1f);
+		check("%.20f %.1f", 0.1, 1e300);
+		check("%,.2f %+.1f", 1234.5, 2.0);
+		check("%c %b %e", 'x', true, 12.5);
+		check("%tY", new java.util.Date(0));
+		/* Extra arguments are ignored */
+		check("%s", "a", "b");
+
+		/* Errors */
+		check("%d", "str");
+		check("%f", 1);
+		check("%s %s", "a");
+		check("%-s", "a");
+		check("%05s", "a");
+	}
+
+	@Test
+	public void testRandomFloats()
+	{
+		Random random = new Random(1);
+		for (int i = 0; i < 2000; i++) {
+			double d = random.nextDouble() * Math.pow(10, random.nextInt(12) - 4);
+			if (random.nextBoolean())
+				d = -d;
+			check("%f %.1f %.2f %.3f", d, d, d, d);
+			/* Values that are close to a rounding boundary */
+			double r = Math.round(d * 1000) / 1000.0 + 0.0005;
+			check("%.3f %.2f", r, r);
+		}
+	}
+
+	@Test
+	public void testLocale()
+	{
+		Locale def = Locale.getDefault(Locale.Category.FORMAT);
+		try {
+			Locale.setDefault(Locale.Category.FORMAT, Locale.GERMANY);
+			check("%.2f %d", 1.5, 10);
+			Locale.setDefault(Locale.Category.FORMAT, new Locale("ar", "SA"));
+			check("%.2f %d", 1.5, 10);
+		} finally {
+			Locale.setDefault(Locale.Category.FORMAT, def);
+		}
+	}
+
+	@Test
+	public void testNotCompiled()
+	{
+		assertNull(FormatPlan.compile("%1$s %1$s"));
+		assertNull(FormatPlan.compile("%s %<s"));
+		assertNull(FormatPlan.compile("%q"));
+		assertNull(FormatPlan.compile("100%"));
+	}
+}
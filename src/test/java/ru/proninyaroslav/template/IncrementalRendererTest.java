@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+import org.junit.Test;
+import ru.proninyaroslav.template.exceptions.ExecException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for re-rendering only the regions whose inputs have changed
+ */
+
+public class IncrementalRendererTest
+{
+	public static class Item
+	{
+		public String name;
+		public int count;
+
+		Item(String name, int count)
+		{
+			this.name = name;
+			this.count = count;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	public static class Dashboard
+	{
+		public String title;
+		public List<Item> items = new ArrayList<>();
+		public boolean alert;
+
+		Dashboard(String title, boolean alert, Item... items)
+		{
+			this.title = title;
+			this.alert = alert;
+			this.items.addAll(Arrays.asList(items));
+		}
+
+		public String getTitle()
+		{
+			return title;
+		}
+	}
+
+	public static class Funcs
+	{
+		static int calls;
+
+		public static String upper(String s)
+		{
+			calls++;
+			return s.toUpperCase();
+		}
+
+		public static int tick()
+		{
+			return ++calls;
+		}
+	}
+
+	private static Template parse(String text)
+	{
+		FuncMap funcs = new FuncMap();
+		funcs.put("upper", "upper", Funcs.class);
+		funcs.put("tick", "tick", Funcs.class);
+		funcs.markPure("upper");
+		Template tmpl = new Template("incremental");
+		tmpl.addFuncs(funcs);
+		try {
+			tmpl.parse(text);
+		} catch (Exception e) {
+			fail(e.toString());
+		}
+
+		return tmpl;
+	}
+
+	private static String render(IncrementalRenderer renderer, Object data, int... changed)
+	{
+		IncrementalRenderer.Result result = null;
+		try {
+			result = renderer.render(data);
+		} catch (ExecException e) {
+			fail(e.toString());
+		}
+		int[] indexes = new int[result.getChanged().size()];
+		for (int i = 0; i < indexes.length; i++)
+			indexes[i] = result.getChanged().get(i).getIndex();
+		assertEquals(Arrays.toString(changed), Arrays.toString(indexes));
+
+		return new String(result.getOutput());
+	}
+
+	@Test
+	public void testRender()
+	{
+		Template tmpl = parse("{{upper .title}}|{{for .items}}{{upper .name}}{{end}}|" +
+				      "{{if .alert}}!{{end}}|{{len .items}}");
+		IncrementalRenderer renderer = new IncrementalRenderer(tmpl);
+
+		Funcs.calls = 0;
+		String out = render(renderer, new Dashboard("a", false, new Item("x", 1), new Item("y", 2)),
+				    0, 1, 2, 3, 4, 5, 6);
+		assertEquals("A|XY||2", out);
+		assertEquals(3, Funcs.calls);
+
+		/* New objects with the same inputs */
+		Funcs.calls = 0;
+		out = render(renderer, new Dashboard("a", false, new Item("x", 5), new Item("y", 6)));
+		assertEquals("A|XY||2", out);
+		assertEquals(0, Funcs.calls);
+
+		Funcs.calls = 0;
+		out = render(renderer, new Dashboard("b", true, new Item("x", 5), new Item("y", 6)), 0, 4);
+		assertEquals("B|XY|!|2", out);
+		assertEquals(1, Funcs.calls);
+
+		Funcs.calls = 0;
+		out = render(renderer, new Dashboard("b", true, new Item("x", 5), new Item("z", 6), new Item("w", 1)),
+			     2, 6);
+		assertEquals("B|XZW|!|3", out);
+		assertEquals(3, Funcs.calls);
+
+		/* Offsets of the changed regions in the output */
+		IncrementalRenderer.Result result = null;
+		try {
+			result = renderer.render(new Dashboard("b", true, new Item("q", 5), new Item("z", 6), new Item("w", 1)));
+		} catch (ExecException e) {
+			fail(e.toString());
+		}
+		assertEquals(1, result.getChanged().size());
+		assertEquals(2, result.getChanged().get(0).getOffset());
+		assertEquals("QZW", new String(result.getChanged().get(0).getOutput()));
+
+		renderer.reset();
+		render(renderer, new Dashboard("b", true), 0, 1, 2, 3, 4, 5, 6);
+	}
+
+	@Test
+	public void testOpaqueRegions()
+	{
+		/* Impure functions, variables and methods are executed every time */
+		Template tmpl = parse("{{tick}}|{{$t := .title}}{{$t}}|{{.getTitle}}|{{.title}}");
+		IncrementalRenderer renderer = new IncrementalRenderer(tmpl);
+
+		Funcs.calls = 0;
+		assertEquals("1|a|a|a", render(renderer, new Dashboard("a", false), 0, 1, 2, 3, 4, 5, 6, 7));
+		assertEquals("2|a|a|a", render(renderer, new Dashboard("a", false), 0));
+		assertEquals("3|b|b|b", render(renderer, new Dashboard("b", false), 0, 3, 5, 7));
+	}
+
+	@Test
+	public void testTemplates()
+	{
+		Template tmpl = parse("{{define \"item\"}}{{.name}}={{.count}};{{end}}" +
+				      "{{for .items}}{{template \"item\" .}}{{end}}|{{.title}}");
+		IncrementalRenderer renderer = new IncrementalRenderer(tmpl);
+
+		assertEquals("x=1;|a", render(renderer, new Dashboard("a", false, new Item("x", 1)), 0, 1, 2));
+		assertEquals("x=1;|b", render(renderer, new Dashboard("b", false, new Item("x", 1)), 2));
+		assertEquals("x=2;|b", render(renderer, new Dashboard("b", false, new Item("x", 2)), 0));
+	}
+
+	@Test
+	public void testError()
+	{
+		Template tmpl = parse("{{.title}}|{{index .items 1}}");
+		IncrementalRenderer renderer = new IncrementalRenderer(tmpl);
+
+		render(renderer, new Dashboard("a", false, new Item("x", 1), new Item("y", 1)), 0, 1, 2);
+		try {
+			renderer.render(new Dashboard("a", false, new Item("x", 1)));
+			fail("expected error");
+		} catch (ExecException e) {
+			/* Expected */
+		}
+		String out = render(renderer, new Dashboard("b", false, new Item("x", 1), new Item("y", 1)), 0);
+		assertTrue(out, out.startsWith("b|"));
+	}
+}
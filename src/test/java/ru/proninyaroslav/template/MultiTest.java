@@ -18,9 +18,11 @@ package ru.proninyaroslav.template;
 
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -99,4 +101,93 @@ public class MultiTest
 			}
 		}
 	}
+
+	public static class Item
+	{
+		public String name;
+
+		public Item(String name)
+		{
+			this.name = name;
+		}
+	}
+
+	public static class Items
+	{
+		public Item[] list = new Item[]{new Item("a"), new Item("b")};
+	}
+
+	private static String execute(Template tmpl, Object data)
+	{
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		try {
+			tmpl.execute(stream, data);
+		} catch (Exception e) {
+			fail(String.format("%s: unexpected error: %s", tmpl.name, e.getMessage()));
+		}
+
+		return new String(stream.toByteArray());
+	}
+
+	private static Template parse(String name, String text)
+	{
+		Template tmpl = new Template(name);
+		try {
+			tmpl.parse(text);
+		} catch (Exception e) {
+			fail(String.format("%s: unexpected error: %s", name, e));
+		}
+
+		return tmpl;
+	}
+
+	@Test
+	public void testLink()
+	{
+		Template tmpl = parse("inline", "{{define \"a\"}}A{{end}}{{template \"a\"}}");
+		assertTrue(tmpl.tree.root.nodes.get(0) instanceof Node.Inline);
+		assertEquals("A", execute(tmpl, null));
+		/* Redefinition */
+		try {
+			tmpl.parse("{{define \"a\"}}B{{end}}");
+		} catch (Exception e) {
+			fail(e.toString());
+		}
+		assertEquals("B", execute(tmpl, null));
+		/* The set modified without relinking: executes the invocation */
+		Tree tree = tmpl.common.tmpl.get("a").tree.copy();
+		((Node.Text)tree.root.nodes.get(0)).text = "C";
+		tmpl.common.tmpl.get("a").tree = tree;
+		tmpl.common.version++;
+		assertEquals("C", execute(tmpl, null));
+
+		/* Adding accessors and functions doesn't invalidate the inlined templates */
+		tmpl = parse("inline", "{{define \"a\"}}A{{end}}{{template \"a\"}}");
+		tmpl.addAccessor(new BeanAccessor());
+		tmpl.addFuncs(new FuncMap());
+		assertEquals(tmpl.common.version, ((Node.Inline)tmpl.tree.root.nodes.get(0)).version);
+
+		tmpl = parse("vars", "{{define \"v\"}}{{$x := 2}}{{$x}}{{$}}{{end}}" +
+				     "{{$x := 1}}{{template \"v\" 3}}{{$x}}");
+		assertTrue(tmpl.tree.root.nodes.get(1) instanceof Node.Inline);
+		assertEquals("231", execute(tmpl, null));
+
+		tmpl = parse("loop", "{{define \"item\"}}{{$.name}}{{end}}" +
+				     "{{for .list}}{{template \"item\" .}}{{end}}");
+		assertEquals("ab", execute(tmpl, new Items()));
+
+		tmpl = parse("recursive", "{{define \"r\"}}{{if .}}r{{template \"r\" false}}{{end}}{{end}}" +
+					  "{{template \"r\" true}}");
+		assertTrue(tmpl.tree.root.nodes.get(0) instanceof Node.Template);
+		assertEquals("r", execute(tmpl, null));
+
+		StringBuilder large = new StringBuilder("{{define \"big\"}}");
+		for (int i = 0; i < Linker.maxInlineNodes; i++)
+			large.append("{{.}}");
+		large.append("{{end}}{{template \"big\" 1}}");
+		tmpl = parse("large", large.toString());
+		assertTrue(tmpl.tree.root.nodes.get(0) instanceof Node.Template);
+		assertEquals(String.format("%0" + Linker.maxInlineNodes + "d", 0).replace('0', '1'),
+			     execute(tmpl, null));
+	}
 }
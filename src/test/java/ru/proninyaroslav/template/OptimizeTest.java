@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the parse tree optimization
+ */
+
+public class OptimizeTest
+{
+	public static class Data
+	{
+		public int x = 7;
+		public String s = "str";
+		public String[] list = new String[]{"a", "b"};
+	}
+
+	class TestOptimize
+	{
+		String name;
+		String input;
+		String output;
+		String tree;   /* the tree after optimization */
+		boolean hasError;
+
+		public TestOptimize(String name, String input, String output,
+				    String tree, boolean hasError)
+		{
+			this.name = name;
+			this.input = input;
+			this.output = output;
+			this.tree = tree;
+			this.hasError = hasError;
+		}
+	}
+
+	@Test
+	public void testOptimize()
+	{
+		ArrayList<TestOptimize> tests = new ArrayList<>();
+		tests.add(new TestOptimize("text", "hello", "hello", "hello", false));
+		tests.add(new TestOptimize("number", "{{1}} {{1.5}}", "1 1.5", "1 1.5", false));
+		tests.add(new TestOptimize("func", "{{add 1 2}}", "3", "3", false));
+		tests.add(new TestOptimize("printf", "{{printf \"%d-%s\" 3 \"x\"}}", "3-x", "3-x", false));
+		tests.add(new TestOptimize("nested", "{{.x}} {{add .x (mul 2 3)}}", "7 13",
+					   "{{.x}} {{add .x 6}}", false));
+		tests.add(new TestOptimize("pipeline", "{{.s | printf (print \"%\" \"s!\")}}", "str!",
+					   "{{.s | printf \"%s!\"}}", false));
+		tests.add(new TestOptimize("decl", "{{$x := add 1 2}}{{$x}}", "3",
+					   "{{$x := 3}}{{$x}}", false));
+		tests.add(new TestOptimize("if true", "a{{if eq 1 1}}b{{.x}}{{else}}c{{end}}d", "ab7d",
+					   "ab{{.x}}d", false));
+		tests.add(new TestOptimize("if false", "a{{if lt 2 1}}b{{.x}}{{end}}d", "ad",
+					   "ad", false));
+		tests.add(new TestOptimize("if declares", "{{$x := 1}}{{if true}}{{$x := .x}}{{$x}}{{end}}{{$x}}", "71",
+					   "{{$x := 1}}{{if true}}{{$x := .x}}{{$x}}{{end}}{{$x}}", false));
+		tests.add(new TestOptimize("with", "{{with 0}}{{.}}{{else}}{{.x}}{{end}} {{with \"a\"}}{{.}}{{end}}", "7 a",
+					   "{{.x}} a", false));
+		tests.add(new TestOptimize("for", "{{for $i := range 3}}{{if eq $i 1}}{{continue}}{{end}}{{$i}}{{end}}",
+					   "02", "02", false));
+		tests.add(new TestOptimize("for dot", "{{for .list}}{{.}}{{end}}|{{for range 2}}-{{.}}{{end}}",
+					   "ab|-0-1", "{{for .list}}{{.}}{{end}}|-0-1", false));
+		tests.add(new TestOptimize("outer var", "{{$x := 1}}{{for range 2}}{{$x}}{{end}}", "11",
+					   "{{$x := 1}}{{for range 2}}{{$x}}{{end}}", false));
+		tests.add(new TestOptimize("outer break", "{{for .list}}{{if true}}{{break}}{{end}}{{.}}{{end}}x", "x",
+					   "{{for .list}}{{break}}{{.}}{{end}}x", false));
+		tests.add(new TestOptimize("switch", "{{switch add 1 1}}{{case 1}}a{{case 2}}b{{.x}}{{end}}", "b7",
+					   "b{{.x}}", false));
+		tests.add(new TestOptimize("switch dynamic", "{{switch .x}}{{case 7}}{{mul 2 3}}{{end}}", "6",
+					   "{{switch .x}}{{case 7}}6{{end}}", false));
+		tests.add(new TestOptimize("error", "{{div 1 0}}", null,
+					   "{{div 1 0}}", true));
+		tests.add(new TestOptimize("template", "{{define \"T\"}}T{{end}}{{template \"T\" add 1 2}}", "T",
+					   "{{template \"T\" 3}}", false));
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (TestOptimize test : tests) {
+			Template tmpl = new Template(test.name);
+			try {
+				tmpl.parse(test.input);
+			} catch (Exception e) {
+				fail(String.format("%s: %s", test.name, e));
+			}
+			int count = Optimizer.count(tmpl.tree.root);
+			int removed = tmpl.optimize();
+			assertEquals(test.name, test.tree, tmpl.tree.root.toString());
+			assertEquals(test.name, count - removed, Optimizer.count(tmpl.tree.root));
+			stream.reset();
+			try {
+				tmpl.execute(stream, new Data());
+			} catch (Exception e) {
+				if (!test.hasError)
+					fail(String.format("%s: unexpected error: %s", test.name, e.getMessage()));
+				continue;
+			}
+			if (test.hasError)
+				fail(String.format("%s: expected error; got none", test.name));
+			assertEquals(test.name, test.output, new String(stream.toByteArray()));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testOptimizeLimit()
+	{
+		/* 10^10 chars of output: precomputing stops at the limit */
+		String input = "{{for range 100000}}{{for range 100000}}x{{end}}{{end}}";
+		Template tmpl = new Template("limit");
+		try {
+			tmpl.parse(input);
+		} catch (Exception e) {
+			fail(e.toString());
+		}
+		assertEquals(0, tmpl.optimize());
+		assertEquals(input, tmpl.tree.root.toString());
+	}
+
+	@Test
+	public void testOptimizeUserFuncs()
+	{
+		FuncMap funcs = new FuncMap();
+		funcs.put("add", "toString", Integer.class);
+		Template tmpl = new Template("test");
+		tmpl.addFuncs(funcs);
+		try {
+			tmpl.parse("{{add 1}}{{print 1}}");
+		} catch (Exception e) {
+			fail(e.toString());
+		}
+		assertTrue(tmpl.optimize() > 0);
+		/* A user function isn't pure, even if it overrides the builtin */
+		assertEquals("{{add 1}}1", tmpl.tree.root.toString());
+	}
+}
@@ -155,6 +155,15 @@ public class ParseTest
 		tests.add(new TestParse("for var",
 					"{{for $x := .i}}{{.}}{{end}}",
 					"{{for $x := .i}}{{.}}{{end}}", false));
+		tests.add(new TestParse("for index and element",
+					"{{for $i, $x := .i}}{{$i}}{{$x}}{{end}}",
+					"{{for $i, $x := .i}}{{$i}}{{$x}}{{end}}", false));
+		tests.add(new TestParse("for two vars without declare",
+					"{{for $i, $x .i}}{{end}}", "", true));
+		tests.add(new TestParse("for too many vars",
+					"{{for $i, $x, $y := .i}}{{end}}", "", true));
+		tests.add(new TestParse("two vars outside of for",
+					"{{$i, $x := 1}}", "", true));
 		tests.add(new TestParse("for int[] with break",
 					"{{for .i}}{{break}}{{.}}{{end}}",
 					"{{for .i}}{{break}}{{.}}{{end}}",
@@ -182,12 +191,28 @@ public class ParseTest
 					"{{with .x}}hello{{else}}world{{end}}",
 					"{{with .x}}hello{{else}}world{{end}}",
 					false));
+		tests.add(new TestParse("cache",
+					"{{cache .x}}hello {{.y}}{{end}}",
+					"{{cache .x}}hello {{.y}}{{end}}", false));
+		tests.add(new TestParse("assignment in cache",
+					"{{cache .x}}{{$y := 1}}{{$y = 2}}{{end}}",
+					"{{cache .x}}{{$y := 1}}{{$y := 2}}{{end}}", false));
 		/* Errors */
 		tests.add(new TestParse("empty action", "{{}}", "{{}}", true));
 		tests.add(new TestParse("unclosed action", "hello{{for", "", true));
 		tests.add(new TestParse("unmatched else", "{{else}}", "", true));
 		tests.add(new TestParse("unmatched else after if",
 					"{{if .x}}hello{{end}}{{else}}", "", true));
+		tests.add(new TestParse("cache with else",
+					"{{cache .x}}hello{{else}}world{{end}}", "", true));
+		tests.add(new TestParse("assignment of outer variable in cache",
+					"{{$y := 1}}{{cache .x}}{{$y = 2}}{{end}}", "", true));
+		tests.add(new TestParse("assignment of outer variable in nested cache",
+					"{{cache .x}}{{$y := 1}}{{cache .z}}{{if true}}{{$y = 2}}{{end}}{{end}}{{end}}",
+					"", true));
+		tests.add(new TestParse("for assignment of outer variable in cache",
+					"{{$i := 0}}{{$x := 0}}{{cache .x}}{{for $i, $x = .y}}{{end}}{{end}}",
+					"", true));
 		tests.add(new TestParse("multiple else",
 					"{{if .x}}1{{else}}2{{else}}3{{end}}",
 					"", true));
@@ -248,6 +273,28 @@ public class ParseTest
 		tests.add(new TestParse("additional break data",
 					"{{for .}}{{break label}}{{end}}",
 					"", true));
+		tests.add(new TestParse("switch",
+					"{{switch .x}}\n{{case \"a\" 1}}one{{case true}}two{{default}}three{{end}}",
+					"{{switch .x}}{{case \"a\" 1}}one{{case true}}two{{default}}three{{end}}", false));
+		tests.add(new TestParse("switch with decl",
+					"{{switch $x := .x}}{{case 'a'}}{{$x}}{{end}}",
+					"{{switch $x := .x}}{{case 'a'}}{{$x}}{{end}}", false));
+		tests.add(new TestParse("switch without cases",
+					"{{switch .x}}{{end}}", "{{switch .x}}{{end}}", false));
+		tests.add(new TestParse("duplicate case label",
+					"{{switch .x}}{{case 1 2}}{{case 2}}{{end}}", "", true));
+		tests.add(new TestParse("non-constant case label",
+					"{{switch .x}}{{case .y}}{{end}}", "", true));
+		tests.add(new TestParse("empty case",
+					"{{switch .x}}{{case}}{{end}}", "", true));
+		tests.add(new TestParse("text before case",
+					"{{switch .x}}x{{case 1}}{{end}}", "", true));
+		tests.add(new TestParse("case after default",
+					"{{switch .x}}{{default}}{{case 1}}{{end}}", "", true));
+		tests.add(new TestParse("case outside of switch",
+					"{{if .x}}{{case 1}}{{end}}", "", true));
+		tests.add(new TestParse("else in switch",
+					"{{switch .x}}{{case 1}}{{else}}{{end}}", "", true));
 
 		for (TestParse test : tests) {
 			Template tmpl = new Template(test.name);
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the static analysis of the data paths read by templates
+ */
+
+public class PathAnalyzerTest
+{
+	class TestPaths
+	{
+		String name;
+		String input;
+		String paths;
+
+		public TestPaths(String name, String input, String paths)
+		{
+			this.name = name;
+			this.input = input;
+			this.paths = paths;
+		}
+	}
+
+	@Test
+	public void testAccessedPaths()
+	{
+		ArrayList<TestPaths> tests = new ArrayList<>();
+		tests.add(new TestPaths("empty", "", "[]"));
+		tests.add(new TestPaths("text", "hello", "[]"));
+		tests.add(new TestPaths("field", "{{.Name}}", "[Name]"));
+		tests.add(new TestPaths("nested fields", "{{.User.Name}} {{.User.Age}}", "[User.Age, User.Name]"));
+		tests.add(new TestPaths("prefix", "{{.User}} {{.User.Name}}", "[User.Name]"));
+		tests.add(new TestPaths("function args", "{{printf \"%s\" .A .B.C}}", "[A, B.C]"));
+		tests.add(new TestPaths("pipeline", "{{.A | printf \"%s\"}}", "[A]"));
+		tests.add(new TestPaths("chain", "{{(.A).B}}", "[A.B]"));
+		tests.add(new TestPaths("function result", "{{(printf \"%s\" .A).B}}", "[A]"));
+		tests.add(new TestPaths("with", "{{with .User}}{{.Name}}{{else}}{{.Guest}}{{end}}", "[Guest, User.Name]"));
+		tests.add(new TestPaths("for", "{{for .Orders}}{{.Customer.Name}}{{end}}", "[Orders[].Customer.Name]"));
+		tests.add(new TestPaths("for root", "{{for .Orders}}{{$.Title}}{{end}}", "[Orders[], Title]"));
+		tests.add(new TestPaths("for else", "{{for .Items}}{{.}}{{else}}{{.Empty}}{{end}}", "[Empty, Items[]]"));
+		tests.add(new TestPaths("for variables",
+				"{{for $i, $o := .Orders}}{{$i}} {{$o.Id}}{{end}}", "[Orders[].Id]"));
+		tests.add(new TestPaths("nested for",
+				"{{for .Orders}}{{for .Lines}}{{.Sku}}{{end}}{{end}}", "[Orders[].Lines[].Sku]"));
+		tests.add(new TestPaths("for slice",
+				"{{for first 2 .Orders}}{{.Id}}{{end}}", "[Orders[].Id]"));
+		tests.add(new TestPaths("for slice pipeline",
+				"{{for .Orders | skip 1}}{{.Id}}{{end}}", "[Orders[].Id]"));
+		tests.add(new TestPaths("variable", "{{$u := .User}}{{$u.Name}}", "[User.Name]"));
+		tests.add(new TestPaths("variable assign",
+				"{{$u := .A}}{{$u = .B}}{{$u.Name}}", "[A, B.Name]"));
+		tests.add(new TestPaths("variable scope",
+				"{{with .A}}{{$x := .B}}{{$x.C}}{{end}}", "[A.B.C]"));
+		tests.add(new TestPaths("if", "{{if .Show}}{{.Name}}{{else}}{{.Other}}{{end}}", "[Name, Other, Show]"));
+		tests.add(new TestPaths("switch",
+				"{{switch .Kind}}{{case 1}}{{.A}}{{default}}{{.B}}{{end}}", "[A, B, Kind]"));
+		tests.add(new TestPaths("template",
+				"{{define \"user\"}}{{.Name}}{{end}}{{template \"user\" .Owner}}", "[Owner.Name]"));
+		tests.add(new TestPaths("template in for",
+				"{{define \"line\"}}{{.Sku}} {{$.Qty}}{{end}}" +
+				"{{for .Lines}}{{template \"line\" .}}{{end}}", "[Lines[].Qty, Lines[].Sku]"));
+		tests.add(new TestPaths("template without data",
+				"{{define \"t\"}}{{.Name}}{{end}}{{template \"t\"}}", "[]"));
+		tests.add(new TestPaths("recursive template",
+				"{{define \"node\"}}{{.Name}}{{for .Children}}{{template \"node\" .}}{{end}}{{end}}" +
+				"{{template \"node\" .Root}}", "[Root.Children[], Root.Name]"));
+
+		for (TestPaths test : tests) {
+			Template tmpl = new Template(test.name);
+			try {
+				tmpl.parse(test.input);
+			} catch (Exception e) {
+				fail(String.format("%s: unexpected error: %s", test.name, e));
+				continue;
+			}
+			assertEquals(test.name, test.paths, tmpl.accessedPaths().toString());
+		}
+	}
+
+	@Test
+	public void testPathsTree()
+	{
+		Template tmpl = new Template("tree");
+		try {
+			tmpl.parse("{{for .Orders}}{{.Customer.Name}} {{.Total}}{{end}}");
+		} catch (Exception e) {
+			fail(e.toString());
+			return;
+		}
+
+		DataPaths paths = tmpl.accessedPaths();
+		assertEquals(1, paths.getChildren().size());
+		DataPaths elem = paths.get("Orders").get(DataPaths.ELEMENTS);
+		assertNotNull(elem);
+		assertEquals("[Customer.Name, Total]", elem.toString());
+	}
+}
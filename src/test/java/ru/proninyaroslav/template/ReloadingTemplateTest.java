@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for reloading templates when their files change
+ */
+
+public class ReloadingTemplateTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private long time = System.currentTimeMillis() - 100000;
+
+	private File write(String name, String text) throws IOException
+	{
+		File file = new File(folder.getRoot(), name);
+		try (FileOutputStream os = new FileOutputStream(file)) {
+			os.write(text.getBytes());
+		}
+		/* The modification time must change even if the file system is coarse */
+		time += 2000;
+		assertTrue(file.setLastModified(time));
+
+		return file;
+	}
+
+	private static String render(Template tmpl) throws Exception
+	{
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		tmpl.execute(stream, "data");
+
+		return stream.toString();
+	}
+
+	@Test
+	public void testReload() throws Exception
+	{
+		File page = write("page", "<{{template \"header\" .}}|{{.}}>");
+		File header = write("header.tmpl", "{{define \"header\"}}h1{{end}}");
+		ReloadingTemplate reloading = new ReloadingTemplate(null, page, header);
+		reloading.setDebounce(0, TimeUnit.MILLISECONDS);
+		Template first = reloading.getTemplate();
+		assertEquals("<h1|data>", render(first));
+		assertFalse(reloading.reload());
+
+		write("header.tmpl", "{{define \"header\"}}h2:{{.}}{{end}}");
+		assertTrue(reloading.reload());
+		assertEquals("<h2:data|data>", render(reloading.getTemplate()));
+		/* The previous set isn't changed */
+		assertEquals("<h1|data>", render(first));
+		assertNull(reloading.getLastError());
+
+		/* A broken edit keeps the previous version */
+		Template second = reloading.getTemplate();
+		write("page", "<{{template \"header\" .}");
+		assertFalse(reloading.reload());
+		assertNotNull(reloading.getLastError());
+		assertSame(second, reloading.getTemplate());
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		reloading.execute(stream, "data");
+		assertEquals("<h2:data|data>", stream.toString());
+
+		write("page", "[{{template \"header\" .}}]");
+		assertTrue(reloading.reload());
+		assertNull(reloading.getLastError());
+		assertEquals("[h2:data]", render(reloading.getTemplate()));
+		reloading.close();
+	}
+
+	@Test
+	public void testDebounce() throws Exception
+	{
+		File page = write("page", "a");
+		ReloadingTemplate reloading = new ReloadingTemplate(null, page);
+		reloading.setDebounce(1, TimeUnit.HOURS);
+		write("page", "b");
+		assertFalse(reloading.reload());
+		assertEquals("a", render(reloading.getTemplate()));
+		reloading.setDebounce(0, TimeUnit.MILLISECONDS);
+		assertTrue(reloading.reload());
+		assertEquals("b", render(reloading.getTemplate()));
+		reloading.close();
+	}
+
+	@Test
+	public void testWatching() throws Exception
+	{
+		File page = write("page", "a");
+		final FragmentCache cache = new FragmentCache(1000);
+		ReloadingTemplate reloading = new ReloadingTemplate(null, page)
+		{
+			@Override
+			protected void configure(Template set)
+			{
+				set.setFragmentCache(cache);
+			}
+		};
+		reloading.setDebounce(10, TimeUnit.MILLISECONDS);
+		reloading.setPollInterval(10, TimeUnit.MILLISECONDS);
+		reloading.startWatching();
+		/* The file may be reloaded while it's being written, the last content wins */
+		write("page", "{{cache 1}}b{{end}}");
+		for (int i = 0; i < 500 && !render(reloading.getTemplate()).equals("b"); i++)
+			Thread.sleep(10);
+		assertEquals("b", render(reloading.getTemplate()));
+
+		/* The fragments of the previous version aren't served */
+		write("page", "{{cache 1}}c{{end}}");
+		for (int i = 0; i < 500 && !render(reloading.getTemplate()).equals("c"); i++)
+			Thread.sleep(10);
+		assertEquals("c", render(reloading.getTemplate()));
+		reloading.close();
+	}
+
+	@Test
+	public void testWatchEvents() throws Exception
+	{
+		/* The modification time isn't set by the test */
+		File page = new File(folder.getRoot(), "page");
+		try (FileOutputStream os = new FileOutputStream(page)) {
+			os.write("a".getBytes());
+		}
+		ReloadingTemplate reloading = new ReloadingTemplate(null, page);
+		reloading.setDebounce(10, TimeUnit.MILLISECONDS);
+		/* Only the watch events are seen */
+		reloading.setPollInterval(1, TimeUnit.HOURS);
+		reloading.startWatching();
+		long modified = page.lastModified();
+		try (FileOutputStream os = new FileOutputStream(page)) {
+			os.write("b".getBytes());
+		}
+		/* The same size and time tick */
+		page.setLastModified(modified);
+		for (int i = 0; i < 500 && !render(reloading.getTemplate()).equals("b"); i++)
+			Thread.sleep(10);
+		assertEquals("b", render(reloading.getTemplate()));
+		reloading.close();
+	}
+
+	@Test
+	public void testDebounceDirectly() throws Exception
+	{
+		File page = new File(folder.getRoot(), "page");
+		try (FileOutputStream os = new FileOutputStream(page)) {
+			os.write("a".getBytes());
+		}
+		ReloadingTemplate reloading = new ReloadingTemplate(null, page);
+		reloading.setDebounce(50, TimeUnit.MILLISECONDS);
+		Thread.sleep(100);
+		try (FileOutputStream os = new FileOutputStream(page)) {
+			os.write("bb".getBytes());
+		}
+		/* The debounce time is counted from the modification time */
+		Thread.sleep(100);
+		assertTrue(reloading.reload());
+		assertEquals("bb", render(reloading.getTemplate()));
+		reloading.close();
+	}
+
+	@Test
+	public void testConfigureError() throws Exception
+	{
+		File page = write("page", "a");
+		final boolean[] fail = new boolean[1];
+		ReloadingTemplate reloading = new ReloadingTemplate(null, page)
+		{
+			@Override
+			protected void configure(Template set)
+			{
+				if (fail[0])
+					throw new IllegalStateException("configure");
+			}
+		};
+		reloading.setDebounce(0, TimeUnit.MILLISECONDS);
+		fail[0] = true;
+		write("page", "b");
+		assertFalse(reloading.reload());
+		assertTrue(reloading.getLastError() instanceof IllegalStateException);
+		assertEquals("a", render(reloading.getTemplate()));
+
+		/* The watching thread goes on after the error */
+		reloading.setPollInterval(10, TimeUnit.MILLISECONDS);
+		reloading.startWatching();
+		write("page", "c");
+		Thread.sleep(100);
+		assertEquals("a", render(reloading.getTemplate()));
+		fail[0] = false;
+		write("page", "d");
+		for (int i = 0; i < 500 && !render(reloading.getTemplate()).equals("d"); i++)
+			Thread.sleep(10);
+		assertEquals("d", render(reloading.getTemplate()));
+		assertNull(reloading.getLastError());
+		reloading.close();
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2018 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.proninyaroslav.template;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for partial evaluation of templates against static data
+ */
+
+public class SpecializeTest
+{
+	public static class Config
+	{
+		public String currency;
+		public boolean beta;
+
+		Config(String currency, boolean beta)
+		{
+			this.currency = currency;
+			this.beta = beta;
+		}
+	}
+
+	public static class Data
+	{
+		public Config config;
+		public String user;
+		public String[] items = new String[]{"a", "b"};
+
+		Data(Config config, String user)
+		{
+			this.config = config;
+			this.user = user;
+		}
+	}
+
+	class TestSpecialize
+	{
+		String name;
+		String input;
+		String output;
+		String tree;   /* the residual tree, null if not checked */
+		boolean hasError;
+
+		public TestSpecialize(String name, String input, String output,
+				      String tree, boolean hasError)
+		{
+			this.name = name;
+			this.input = input;
+			this.output = output;
+			this.tree = tree;
+			this.hasError = hasError;
+		}
+	}
+
+	@Test
+	public void testSpecialize()
+	{
+		ArrayList<TestSpecialize> tests = new ArrayList<>();
+		tests.add(new TestSpecialize("field", "{{.config.currency}} {{.user}}", "USD bob",
+					     "USD {{.user}}", false));
+		tests.add(new TestSpecialize("dollar", "{{for .items}}{{.}}{{$.config.currency}}{{end}}", "aUSDbUSD",
+					     "{{for .items}}{{.}}USD{{end}}", false));
+		tests.add(new TestSpecialize("not static", "{{.user}}{{$.user}}", "bobbob",
+					     "{{.user}}{{$.user}}", false));
+		tests.add(new TestSpecialize("func", "{{printf \"%s!\" .config.currency}}", "USD!",
+					     "USD!", false));
+		tests.add(new TestSpecialize("if", "{{if .config.beta}}beta {{.user}}{{else}}stable{{end}}", "beta bob",
+					     "beta {{.user}}", false));
+		tests.add(new TestSpecialize("with", "{{with .config}}{{.currency}}{{end}}", "USD",
+					     "USD", false));
+		tests.add(new TestSpecialize("with dynamic", "{{with .config}}{{.currency}}{{$.user}}{{end}}", "USDbob",
+					     "USD{{$.user}}", false));
+		tests.add(new TestSpecialize("with error", "{{with .config}}{{.missing}}{{end}}", null,
+					     null, true));
+		tests.add(new TestSpecialize("var", "{{$c := .config}}{{$c.currency}}", "USD",
+					     null, false));
+		tests.add(new TestSpecialize("assigned var", "{{$c := .config}}{{$c = 1}}{{$c}}", "1",
+					     null, false));
+		tests.add(new TestSpecialize("template static",
+					     "{{define \"cur\"}}[{{.currency}}]{{end}}{{template \"cur\" .config}}", "[USD]",
+					     "[USD]", false));
+		tests.add(new TestSpecialize("template root",
+					     "{{define \"hello\"}}Hello, {{.user}}{{if $.config.beta}}!{{end}}{{end}}{{template \"hello\" .}}",
+					     "Hello, bob!", "Hello, {{.user}}!", false));
+		tests.add(new TestSpecialize("template dynamic",
+					     "{{define \"item\"}}<{{.}}>{{end}}{{for .items}}{{template \"item\" .}}{{end}}",
+					     "<a><b>", "{{for .items}}{{template \"item\" .}}{{end}}", false));
+		tests.add(new TestSpecialize("template recursive",
+					     "{{define \"r\"}}{{if .}}x{{template \"r\" false}}{{end}}{{end}}{{template \"r\" true}}",
+					     "x", "x{{template \"r\" false}}", false));
+		tests.add(new TestSpecialize("template vars",
+					     "{{define \"v\"}}{{$x := 2}}{{$x}}{{end}}{{$x := 1}}{{template \"v\" .config}}{{$x}}",
+					     "21", null, false));
+
+		Data staticData = new Data(new Config("USD", true), null);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (TestSpecialize test : tests) {
+			Template tmpl = new Template(test.name);
+			try {
+				tmpl.parse(test.input);
+			} catch (Exception e) {
+				fail(String.format("%s: %s", test.name, e));
+			}
+			Template residual = tmpl.specialize(staticData, "config");
+			if (test.tree != null)
+				assertEquals(test.name, test.tree, residual.tree.root.toString());
+			stream.reset();
+			try {
+				residual.execute(stream, new Data(staticData.config, "bob"));
+			} catch (Exception e) {
+				if (!test.hasError)
+					fail(String.format("%s: unexpected error: %s", test.name, e.getMessage()));
+				continue;
+			}
+			if (test.hasError)
+				fail(String.format("%s: expected error; got none", test.name));
+			assertEquals(test.name, test.output, new String(stream.toByteArray()));
+		}
+	}
+
+	@Test
+	public void testSpecializeCopy()
+	{
+		Template tmpl = new Template("copy");
+		try {
+			tmpl.parse("{{.config.currency}}");
+		} catch (Exception e) {
+			fail(e.toString());
+		}
+		Template residual = tmpl.specialize(new Data(new Config("USD", false), null), "config");
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		try {
+			/* The original template is unchanged */
+			tmpl.execute(stream, new Data(new Config("EUR", false), null));
+			assertEquals("EUR", new String(stream.toByteArray()));
+			stream.reset();
+			residual.execute(stream, null);
+			assertEquals("USD", new String(stream.toByteArray()));
+		} catch (Exception e) {
+			fail(e.toString());
+		}
+
+		/* The whole data is static */
+		residual = tmpl.specialize(new Data(new Config("RUB", false), null));
+		assertEquals("RUB", residual.tree.root.toString());
+	}
+}